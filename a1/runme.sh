@@ -13,15 +13,17 @@ CONFIG="$ROOT_DIR/config.json"
 compile_service() {
     SERVICE_NAME=$1
     # Compiles all .java files in the service directory into the compiled folder
-    # Includes Helpers.java in every compilation to ensure dependencies are met
-    javac -d "$COMPILED_DIR" "$SRC_DIR/$SERVICE_NAME"/*.java "$SRC_DIR/Helpers/Helpers.java"
+    # Includes the Helpers sources in every compilation to ensure dependencies are met
+    javac -d "$COMPILED_DIR" "$SRC_DIR/$SERVICE_NAME"/*.java "$SRC_DIR/Helpers"/*.java
 }
 
 # Function to run a Java service - generated by gemini
 run_service() {
     SERVICE_NAME=$1
     # Runs the class matching the package name from the compiled directory
-    java -cp "$COMPILED_DIR" "$SERVICE_NAME.$SERVICE_NAME" "$CONFIG"
+    # (the optional second argument is the instance number from the config's "instances" list,
+    # or "backup"/"follower" followed by the number of an entry of the "backups"/"followers" list)
+    java -cp "$COMPILED_DIR" "$SERVICE_NAME.$SERVICE_NAME" "$CONFIG" $2 $3
 }
 # if arguement 1 is -c (compile all services)
 if [ "$1" == "-c" ]; then
@@ -30,7 +32,7 @@ if [ "$1" == "-c" ]; then
     mkdir -p "$COMPILED_DIR"
     
     # Compile Helpers as they are the dependency for the other services
-    javac -d "$COMPILED_DIR" "$SRC_DIR/Helpers/Helpers.java"
+    javac -d "$COMPILED_DIR" "$SRC_DIR/Helpers"/*.java
     
     compile_service "ISCS"
     compile_service "UserService"
@@ -39,10 +41,24 @@ if [ "$1" == "-c" ]; then
     echo "Compilation Complete"
 
 elif [ "$1" == "-u" ]; then
-    run_service "UserService"
+    run_service "UserService" "$2"
 
 elif [ "$1" == "-p" ]; then
-    run_service "ProductService"
+    run_service "ProductService" "$2"
+
+elif [ "$1" == "-b" ]; then
+    if [ -z "$2" ]; then
+        echo "Error: Provide a backup number"
+        exit 1
+    fi
+    run_service "ProductService" "backup" "$2"
+
+elif [ "$1" == "-f" ]; then
+    if [ -z "$2" ]; then
+        echo "Error: Provide a follower number"
+        exit 1
+    fi
+    run_service "UserService" "follower" "$2"
 
 elif [ "$1" == "-i" ]; then
     run_service "ISCS"
@@ -56,16 +72,28 @@ elif [ "$1" == "-w" ]; then
         exit 1
     fi
     # compile workload parser and run it
-    javac -d "$COMPILED_DIR" "$SRC_DIR/OrderService/WorkloadParser.java" "$SRC_DIR/Helpers/Helpers.java"
-    java -cp "$COMPILED_DIR" "OrderService.WorkloadParser" "$2"
+    javac -d "$COMPILED_DIR" "$SRC_DIR/OrderService/WorkloadParser.java" "$SRC_DIR/OrderService/ReplayLanes.java" "$SRC_DIR/Helpers"/*.java
+    java -cp "$COMPILED_DIR" "OrderService.WorkloadParser" "$2" $3 $4
+
+elif [ "$1" == "-t" ]; then
+    if [ -z "$2" ]; then
+        echo "Error: Provide a tool name"
+        exit 1
+    fi
+    # compile the tools and run the one asked for with the remaining arguments
+    javac -d "$COMPILED_DIR" "$SRC_DIR/Tools"/*.java "$SRC_DIR/Helpers"/*.java
+    java -cp "$COMPILED_DIR" "Tools.$2" "${@:3}"
 
 else
     # print usage instructions - generated by gemini
     echo "Usage Instructions:"
     echo "  ./runme.sh -c                Compile all services"
-    echo "  ./runme.sh -u                Start User Service"
-    echo "  ./runme.sh -p                Start Product Service"
+    echo "  ./runme.sh -u [instance]     Start User Service (optionally instance n of the config)"
+    echo "  ./runme.sh -p [instance]     Start Product Service (optionally instance n of the config)"
+    echo "  ./runme.sh -b <backup>       Start Product Service backup n of the config"
+    echo "  ./runme.sh -f <follower>     Start User Service follower n of the config"
     echo "  ./runme.sh -i                Start ISCS (Router)"
     echo "  ./runme.sh -o                Start Order Service"
-    echo "  ./runme.sh -w <file>         Run Workload Parser"
+    echo "  ./runme.sh -w <file> [n] [b] Run Workload Parser (optionally n concurrent workers, batches of b writes)"
+    echo "  ./runme.sh -t <tool> [args]  Run a tool or benchmark from src/Tools"
 fi
\ No newline at end of file
@@ -0,0 +1,115 @@
+package Helpers;
+
+import com.sun.net.httpserver.HttpExchange;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Runs the commands of a batch request, {"commands": [{...}, {...}]}, as if each had been sent
+ * on its own. Every command is queued in the executor lane of its id, so it keeps its place
+ * among the other requests for that id, and commands for different ids run in parallel.
+ * The answer lists the status code and body of every command in the order they were given:
+ * {"results": [{"code": 200, "body": {...}}, ...]}.
+ * @author Agnibha Misra
+ */
+public final class BatchRunner {
+    private static final byte[] EMPTY = "{}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] INTERNAL_ERROR = "{\"status\": \"Internal Error\"}".getBytes(StandardCharsets.UTF_8);
+
+    private BatchRunner() {
+    }
+
+    /**
+     * Queues the commands of a batch and answers the exchange once the last one has run.
+     * @param exchange the batch request
+     * @param body the request body
+     * @param executor the service's ordered executor
+     * @param command runs one command, returning [status code (int), body (byte[] holding a JSON value)]
+     * and optionally [2] a CompletableFuture that has to complete before the command counts as done
+     */
+    public static void run(HttpExchange exchange, String body, OrderedExecutor executor, Function<JsonFields, Object[]> command) {
+        String commands = JsonFields.parse(body).getRaw("commands");
+        if (commands == null) {
+            send(exchange, 400, EMPTY);
+            return;
+        }
+
+        List<String> items = JsonFields.elements(commands);
+        Object[][] results = new Object[items.size()][];
+        if (items.isEmpty()) {
+            send(exchange, 200, encode(results));
+            return;
+        }
+
+        // the command that brings this to zero writes the answer
+        AtomicInteger remaining = new AtomicInteger(items.size());
+        for (int i = 0; i < items.size(); i++) {
+            int index = i;
+            JsonFields fields = JsonFields.parse(items.get(i));
+            Integer id = fields.getInteger("id");
+            executor.execute(id == null ? 0 : id, () -> {
+                Object[] result;
+                try {
+                    result = command.apply(fields);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    result = new Object[] {500, INTERNAL_ERROR};
+                }
+                if (result.length > 2) {
+                    // a change counts as done once its log entry is durable
+                    Object[] logged = result;
+                    ((CompletableFuture<?>) result[2]).whenComplete((done, error) -> {
+                        results[index] = error == null ? logged : new Object[] {500, INTERNAL_ERROR};
+                        finish(exchange, results, remaining);
+                    });
+                    return;
+                }
+                results[index] = result;
+                finish(exchange, results, remaining);
+            });
+        }
+    }
+
+    /**
+     * Counts a command as done, the last one writes the answer.
+     */
+    private static void finish(HttpExchange exchange, Object[][] results, AtomicInteger remaining) {
+        if (remaining.decrementAndGet() == 0) {
+            send(exchange, 200, encode(results));
+        }
+    }
+
+    private static byte[] encode(Object[][] results) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 + results.length * 96);
+        out.writeBytes("{\"results\": [".getBytes(StandardCharsets.UTF_8));
+        for (int i = 0; i < results.length; i++) {
+            if (i > 0) {
+                out.write(',');
+                out.write(' ');
+            }
+            out.writeBytes(("{\"code\": " + results[i][0] + ", \"body\": ").getBytes(StandardCharsets.UTF_8));
+            out.writeBytes((byte[]) results[i][1]);
+            out.write('}');
+        }
+        out.writeBytes("]}".getBytes(StandardCharsets.UTF_8));
+        return out.toByteArray();
+    }
+
+    private static void send(HttpExchange exchange, int code, byte[] bytes) {
+        try {
+            exchange.sendResponseHeaders(code, bytes.length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(bytes);
+            os.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            exchange.close();
+        }
+    }
+}
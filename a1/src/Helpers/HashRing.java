@@ -0,0 +1,103 @@
+package Helpers;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Consistent-hash ring that assigns int ids to nodes. Every node is placed on the ring at
+ * virtualNodes points, hashed from its name, and an id belongs to the node of the first point
+ * at or after the hash of the id. Adding or removing a node only moves the ids next to its own
+ * points, about 1/n of them, and the virtual nodes even out the share of each node.
+ * The ring is immutable, a lookup is a binary search over a sorted long[].
+ * @author Agnibha Misra
+ */
+public class HashRing {
+    // the hashes of the points, sorted
+    private final long[] points;
+    // the node index of each point
+    private final int[] owners;
+    private final int nodes;
+
+    /**
+     * Builds the ring.
+     * @param names the names of the nodes, e.g. their ip:port; the same names always give the same ring
+     * @param virtualNodes points per node
+     */
+    public HashRing(List<String> names, int virtualNodes) {
+        if (names.isEmpty() || virtualNodes < 1) {
+            throw new IllegalArgumentException("A ring needs at least one node and one point per node");
+        }
+        nodes = names.size();
+        long[] packed = new long[nodes * virtualNodes];
+        long[] hashes = new long[packed.length];
+        for (int node = 0; node < nodes; node++) {
+            for (int v = 0; v < virtualNodes; v++) {
+                hashes[node * virtualNodes + v] = hash(names.get(node) + "#" + v);
+            }
+        }
+
+        // sort the points, carrying their node along
+        Integer[] order = new Integer[hashes.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(hashes[a], hashes[b]));
+        points = new long[hashes.length];
+        owners = new int[hashes.length];
+        for (int i = 0; i < order.length; i++) {
+            points[i] = hashes[order[i]];
+            owners[i] = order[i] / virtualNodes;
+        }
+    }
+
+    /**
+     * @return the number of nodes
+     */
+    public int size() {
+        return nodes;
+    }
+
+    /**
+     * @param id the id
+     * @return the index of the node that owns the id
+     */
+    public int owner(int id) {
+        return owners[firstPoint(id)];
+    }
+
+    /**
+     * @return the index of the first point at or after the hash of the id, wrapping round
+     */
+    private int firstPoint(int id) {
+        int index = Arrays.binarySearch(points, mix(id));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return index == points.length ? 0 : index;
+    }
+
+    /**
+     * 64-bit FNV-1a of the name, then mixed so that similar names land far apart.
+     */
+    private static long hash(String name) {
+        long h = 0xCBF29CE484222325L;
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001B3L;
+        }
+        return mix(h);
+    }
+
+    /**
+     * Spreads a value over all 64 bits (the Murmur3 64-bit finalizer).
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
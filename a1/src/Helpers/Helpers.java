@@ -1,11 +1,9 @@
 package Helpers;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.Scanner;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 /**
@@ -15,20 +13,14 @@ import java.util.regex.Pattern;
 public class Helpers {
     /**
      * Extracts a string value from a JSON string for a given key.
+     * Callers that need several fields of the same body should use JsonFields directly,
+     * which reads the body once for all of them.
      * @param json the JSON string to parse
      * @param key the key to search for
      * @return the string value associated with the key, or null if not found
      */
     public static String parseString (String json, String key) {
-
-        // look for the pattern of ["key" : "someValue"]
-        Pattern pattern = Pattern.compile("\"" + key + "\"\\s*:\\s*\"([^\"]*)\"");
-        Matcher matcher = pattern.matcher(json);
-        if (matcher.find()) {
-            return matcher.group(1);
-
-        }
-        return null;
+        return JsonFields.parse(json).getString(key);
     }
 
     /**
@@ -38,23 +30,7 @@ public class Helpers {
      * @return the integer value, or null if invalid or not found
      */
     public static Integer parseInteger(String json, String key) {
-        // looks for pattern of ["key" : (int) 1234...]
-        Pattern pattern = Pattern.compile("\"" + key + "\"\\s*:\\s*([-0-9.]+)");
-        Matcher matcher = pattern.matcher(json);
-        if (matcher.find()) {
-            String value = matcher.group(1);
-            
-            if (value.contains(".")) {
-                return null;
-            }
-            try {
-                // format the value into an int
-                return Integer.parseInt(value);
-            } catch (NumberFormatException e) {
-                return null;
-            }
-        }
-        return null;
+        return JsonFields.parse(json).getInteger(key);
     }
 
     /**
@@ -64,17 +40,7 @@ public class Helpers {
      * @return the float value, or null if invalid or not found
      */
     public static Float parseFloat(String json, String key) {
-        // pattern looks for ["key" : (int) 1234.5678]
-        Pattern pattern = Pattern.compile("\"" + key + "\"\\s*:\\s*(-?[0-9]+\\.[0-9]+|-?[0-9]+)");
-        Matcher matcher = pattern.matcher(json);
-        if (matcher.find()) {
-            try {
-                return Float.parseFloat(matcher.group(1));
-            } catch (NumberFormatException e) {
-                return null;
-            }
-        }
-        return null;
+        return JsonFields.parse(json).getFloat(key);
     }
 
     /**
@@ -84,8 +50,8 @@ public class Helpers {
      * @return the port number (int), if invalid return -1
      */
     public static int getPort(String json, String service) {
-        Pattern pattern = Pattern.compile("\"" + service + "\"\\s*:\\s*\\{[^}]*\"port\"\\s*:\\s*(\\d+)");
-        Matcher matcher = pattern.matcher(json);
+        Pattern pattern = Pattern.compile("\"port\"\\s*:\\s*(\\d+)");
+        Matcher matcher = pattern.matcher(getConfigSettings(json, service));
 
         if (matcher.find()) {
             return Integer.parseInt(matcher.group(1));
@@ -101,8 +67,8 @@ public class Helpers {
      * @return the IP number (int), if invalid return -1
      */
     public static String getIP(String json, String service) {
-        Pattern pattern = Pattern.compile("\"" + service + "\"\\s*:\\s*\\{[^}]*\"ip\"\\s*:\\s*\"([^\"]+)\"");
-        Matcher matcher = pattern.matcher(json);
+        Pattern pattern = Pattern.compile("\"ip\"\\s*:\\s*\"([^\"]+)\"");
+        Matcher matcher = pattern.matcher(getConfigSettings(json, service));
 
         if (matcher.find()) {
             return matcher.group(1);
@@ -111,8 +77,164 @@ public class Helpers {
         return null;
     }
 
+    /**
+     * Helper function to return the instances of a service from the "instances" list in the
+     * config file, e.g. "instances": [{"ip": "127.0.0.1", "port": 14005}, ...].
+     * A service without a list has a single instance at its top level ip and port.
+     * @param json the config file json data
+     * @param service the service name
+     * @return the instances as "ip:port" strings, empty if the service is not configured
+     */
+    public static List<String> getInstances(String json, String service) {
+        List<String> instances = new ArrayList<>();
+        List<String> entries = getConfigList(json, service, "instances");
+        if (entries != null) {
+            for (String entry : entries) {
+                String address = getAddress(entry);
+                if (address != null) {
+                    instances.add(address);
+                }
+            }
+            return instances;
+        }
+
+        String ip = getIP(json, service);
+        int port = getPort(json, service);
+        if (ip != null && port != -1) {
+            instances.add(ip + ":" + port);
+        }
+        return instances;
+    }
+
+    /**
+     * Helper function to return the objects of a list of a service from the config file,
+     * e.g. "backups": [{"ip": "127.0.0.1", "port": 14027, "primary": 0}, ...].
+     * The objects may not contain nested objects or lists.
+     * @param json the config file json data
+     * @param service the service name
+     * @param list the name of the list
+     * @return the objects as JSON strings, or null if the service has no such list
+     */
+    public static List<String> getConfigList(String json, String service, String list) {
+        String section = getConfigSection(json, service);
+        Matcher matcher = Pattern.compile("\"" + list + "\"\\s*:\\s*\\[([^\\]]*)\\]").matcher(section);
+        if (!matcher.find()) {
+            return null;
+        }
+        List<String> entries = new ArrayList<>();
+        Matcher entry = Pattern.compile("\\{[^}]*\\}").matcher(matcher.group(1));
+        while (entry.find()) {
+            entries.add(entry.group());
+        }
+        return entries;
+    }
+
+    /**
+     * @param entry an object of a list in the config file
+     * @return its "ip" and "port" as an "ip:port" string, or null if either is missing
+     */
+    public static String getAddress(String entry) {
+        Matcher ip = Pattern.compile("\"ip\"\\s*:\\s*\"([^\"]+)\"").matcher(entry);
+        Matcher port = Pattern.compile("\"port\"\\s*:\\s*(\\d+)").matcher(entry);
+        if (ip.find() && port.find()) {
+            return ip.group(1) + ":" + port.group(1);
+        }
+        return null;
+    }
+
+    /**
+     * Helper function to return an optional setting for a service from the config file
+     * @param json the config file json data
+     * @param service the service name
+     * @param key the setting name
+     * @return the value as a String (quotes removed), or null if the setting is not present
+     */
+    public static String getConfigValue(String json, String service, String key) {
+        Pattern pattern = Pattern.compile("\"" + key + "\"\\s*:\\s*(?:\"([^\"]*)\"|([-0-9.]+|true|false))");
+        Matcher matcher = pattern.matcher(getConfigSettings(json, service));
+
+        if (matcher.find()) {
+            return matcher.group(1) != null ? matcher.group(1) : matcher.group(2);
+        }
+        return null;
+    }
+
+    /**
+     * Helper function to return an optional integer setting for a service from the config file
+     * @param json the config file json data
+     * @param service the service name
+     * @param key the setting name
+     * @param fallback the value used when the setting is missing or not an integer
+     * @return the integer setting
+     */
+    public static int getConfigInt(String json, String service, String key, int fallback) {
+        String value = getConfigValue(json, service, key);
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    /**
+     * Returns the whole {...} object of a service in the config file.
+     * @param json the config file json data
+     * @param service the service name
+     * @return the service's object including nested lists, or "" if it is not configured
+     */
+    private static String getConfigSection(String json, String service) {
+        Matcher matcher = Pattern.compile("\"" + service + "\"\\s*:\\s*\\{").matcher(json);
+        if (!matcher.find()) {
+            return "";
+        }
+        int start = matcher.end() - 1;
+        int depth = 0;
+        for (int i = start; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                depth--;
+                if (depth == 0) {
+                    return json.substring(start, i + 1);
+                }
+            }
+        }
+        return json.substring(start);
+    }
+
+    /**
+     * Returns only the top level settings of a service, leaving out nested objects and lists
+     * so that for example an instance's "port" is not mistaken for the service's own.
+     * @param json the config file json data
+     * @param service the service name
+     * @return the service's own settings
+     */
+    private static String getConfigSettings(String json, String service) {
+        String section = getConfigSection(json, service);
+        StringBuilder settings = new StringBuilder(section.length());
+        int depth = 0;
+        for (int i = 0; i < section.length(); i++) {
+            char c = section.charAt(i);
+            if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                depth--;
+            } else if (depth == 1) {
+                settings.append(c);
+            }
+        }
+        return settings.toString();
+    }
+
     /**
      * Sends an HTTP request and returns the status code and response body.
+     * The request goes over a pooled keep-alive connection from HttpClientPool.
+     * If the request being handled on this thread is traced, the trace goes along in the
+     * headers and the call is recorded as an "upstream" span.
      * @param url the destination URL
      * @param method the HTTP method (GET, POST, etc.)
      * @param body the request body for POST requests
@@ -120,47 +242,40 @@ public class Helpers {
      * @throws IOException if an I/O error occurs during the request
      */
     public static Object[] requestSend(String url, String method, String body) throws IOException {
-        // use the url to create a connection
-        URL Url = new URL(url);
-        HttpURLConnection connection = (HttpURLConnection) Url.openConnection();
-        connection.setRequestMethod(method);
-
-        // in the case that this is a post request
-        if (body != null && !body.isEmpty() && method.equalsIgnoreCase("post")) {
-            connection.setDoOutput(true);
-            connection.setRequestProperty("Content-Type", "application/json");
-
-            try (OutputStream os = connection.getOutputStream()){
-                os.write(body.getBytes());
-            }
-        }
-
-        // get the status code indicating success of failure
-        int code = connection.getResponseCode();
-
-        // based on the code read the appropriate response body
-        InputStream is;
-        if (code >= 400) {
-            is = connection.getErrorStream();
+        Tracer.Span span = Tracer.current();
+        if (span == null) {
+            return HttpClientPool.shared().send(url, method, body);
         }
-        else {
-            is = connection.getInputStream();
+        Tracer.Span call = span.child("upstream", method + " " + url);
+        String outcome = "error";
+        try {
+            Object[] response = HttpClientPool.shared().send(url, method, body, call.headers());
+            outcome = String.valueOf(response[0]);
+            return response;
+        } finally {
+            call.end(outcome);
         }
+    }
 
-        String response = "";
-        if (is != null) {
-            Scanner scanner = new Scanner(is).useDelimiter("\\A");
-
-            // Check if stream has content and read it
-            if (scanner.hasNext()) {
-                response = scanner.next();
-            } else {
-                response = "";
-            }
-            
-            scanner.close();
+    /**
+     * Sends an HTTP request without waiting for it, over the same pooled connections as requestSend.
+     * The trace of the request being handled on the calling thread goes along, as in requestSend.
+     * @param url the destination URL
+     * @param method the HTTP method (GET, POST, etc.)
+     * @param body the request body for POST requests
+     * @param timeoutMillis milliseconds to wait for the response before failing
+     * @return a future of the Object array where [0] is the status code (int) and [1] is the response (String)
+     */
+    public static CompletableFuture<Object[]> requestSendAsync(String url, String method, String body, int timeoutMillis) {
+        Tracer.Span span = Tracer.current();
+        if (span == null) {
+            return HttpClientPool.shared().sendAsync(url, method, body, timeoutMillis);
         }
-        return new Object[]{code, response};
+        Tracer.Span call = span.child("upstream", method + " " + url);
+        CompletableFuture<Object[]> future = HttpClientPool.shared().sendAsync(url, method, body, call.headers(), timeoutMillis);
+        future.whenComplete((response, error) ->
+            call.end(future.isCancelled() ? "cancelled" : error != null ? "error" : String.valueOf(response[0])));
+        return future;
     }
 
 
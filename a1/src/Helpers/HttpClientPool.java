@@ -0,0 +1,602 @@
+package Helpers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small HTTP/1.1 client that keeps a bounded pool of persistent connections for every
+ * backend (ip:port) it talks to. Each connection owns its read, request and body buffers,
+ * so once the pool is warm a request does not open a socket or allocate I/O buffers.
+ * @author Agnibha Misra
+ */
+public class HttpClientPool {
+    // the client used by Helpers.requestSend
+    private static final HttpClientPool shared = new HttpClientPool(64, 5000, 30000);
+    // runs the blocking sends of sendAsync
+    private static final Executor asyncExecutor = OrderedExecutor.createExecutor("virtual", 256);
+    // longest a connection may have been idle and still carry a request that must not be sent
+    // twice, well below the 30 seconds after which the JDK's HttpServer closes idle connections
+    private static final long MAX_IDLE_REUSE_NANOS = 5_000_000_000L;
+
+    private final int maxConnectionsPerHost;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final Map<String, HostPool> hosts = new ConcurrentHashMap<>();
+
+    // pool statistics
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong closed = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong waited = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+
+    /**
+     * Creates a client.
+     * @param maxConnectionsPerHost max open connections to a single ip:port
+     * @param connectTimeout milliseconds to wait for a connection (or a free pool slot)
+     * @param readTimeout default milliseconds to wait for a response
+     */
+    public HttpClientPool(int maxConnectionsPerHost, int connectTimeout, int readTimeout) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * @return the client shared by everything in this JVM
+     */
+    public static HttpClientPool shared() {
+        return shared;
+    }
+
+    /**
+     * Sends a request using the default read timeout.
+     * @param url the destination URL (http://ip:port/path)
+     * @param method the HTTP method
+     * @param body the request body, only sent for POST requests
+     * @return an Object array where [0] is the status code (int) and [1] is the response (String)
+     * @throws IOException if the request fails
+     */
+    public Object[] send(String url, String method, String body) throws IOException {
+        return send(url, method, body, null, readTimeout);
+    }
+
+    /**
+     * Sends a request with extra headers using the default read timeout.
+     * @param url the destination URL (http://ip:port/path)
+     * @param method the HTTP method
+     * @param body the request body, only sent for POST requests
+     * @param headers extra request headers, may be null
+     * @return an Object array where [0] is the status code (int) and [1] is the response (String)
+     * @throws IOException if the request fails
+     */
+    public Object[] send(String url, String method, String body, Map<String, String> headers) throws IOException {
+        return send(url, method, body, headers, readTimeout);
+    }
+
+    /**
+     * Sends a request on a pooled connection and reads the whole response.
+     * A reused connection that turns out to be closed by the server is discarded and the request
+     * is sent once more on a new connection, if the request could not be written or is idempotent.
+     * A POST that was written may have been processed, so it is not sent again; it only reuses
+     * connections that have not been idle long enough for the server to close them.
+     * @param url the destination URL (http://ip:port/path)
+     * @param method the HTTP method
+     * @param body the request body, only sent for POST requests
+     * @param headers extra request headers, may be null
+     * @param timeoutMillis milliseconds to wait for the response
+     * @return an Object array where [0] is the status code (int) and [1] is the response (String)
+     * @throws IOException if the request fails
+     */
+    public Object[] send(String url, String method, String body, Map<String, String> headers, int timeoutMillis) throws IOException {
+        return send(url, method, body, headers, timeoutMillis, null);
+    }
+
+    /**
+     * Sends a request, see send above.
+     * @param cancellation aborts the exchange when cancelled, may be null
+     */
+    private Object[] send(String url, String method, String body, Map<String, String> headers, int timeoutMillis,
+                          Cancellation cancellation) throws IOException {
+        requests.incrementAndGet();
+
+        // split http://host:port/path without building a URL object
+        int hostStart = url.indexOf("://") + 3;
+        int pathStart = url.indexOf('/', hostStart);
+        String hostPort = pathStart == -1 ? url.substring(hostStart) : url.substring(hostStart, pathStart);
+        String path = pathStart == -1 ? "/" : url.substring(pathStart);
+
+        byte[] payload = null;
+        if (body != null && !body.isEmpty() && method.equalsIgnoreCase("post")) {
+            payload = body.getBytes(StandardCharsets.UTF_8);
+        }
+
+        boolean idempotent = isIdempotent(method);
+        HostPool pool = hosts.computeIfAbsent(hostPort, HostPool::new);
+        pool.acquire();
+        try {
+            Connection connection = pool.idle.poll();
+            while (connection != null && !idempotent && System.nanoTime() - connection.idleSince > MAX_IDLE_REUSE_NANOS) {
+                close(connection);
+                connection = pool.idle.poll();
+            }
+            boolean fresh = connection == null;
+            if (fresh) {
+                connection = pool.open();
+            } else {
+                reused.incrementAndGet();
+            }
+
+            while (true) {
+                if (cancellation != null && !cancellation.attach(connection)) {
+                    close(connection);
+                    throw new IOException("Request cancelled");
+                }
+                try {
+                    Object[] response = connection.exchange(method, path, hostPort, payload, headers, timeoutMillis);
+                    // once pooled the connection belongs to the next request, a late cancel must not close it
+                    if (connection.reusable && (cancellation == null || cancellation.detach())) {
+                        connection.idleSince = System.nanoTime();
+                        pool.idle.offer(connection);
+                    } else {
+                        close(connection);
+                    }
+                    return response;
+                } catch (StaleConnectionException e) {
+                    close(connection);
+                    if (fresh || (e.written && !idempotent) || (cancellation != null && cancellation.isCancelled())) {
+                        throw e;
+                    }
+                    // the server dropped an idle connection, it never got the request or sending it again is harmless
+                    retried.incrementAndGet();
+                    connection = pool.open();
+                    fresh = true;
+                } catch (IOException | RuntimeException e) {
+                    close(connection);
+                    throw e;
+                }
+            }
+        } finally {
+            pool.release();
+        }
+    }
+
+    /**
+     * Sends a request on another thread. Cancelling the future aborts the request: its connection
+     * is closed, so the thread stops waiting for the response and the connection is not reused.
+     * @param url the destination URL (http://ip:port/path)
+     * @param method the HTTP method
+     * @param body the request body, only sent for POST requests
+     * @param timeoutMillis milliseconds to wait for the response
+     * @return a future completed with [status code, response], or exceptionally with the IOException
+     */
+    public CompletableFuture<Object[]> sendAsync(String url, String method, String body, int timeoutMillis) {
+        return sendAsync(url, method, body, null, timeoutMillis);
+    }
+
+    /**
+     * Sends a request with extra headers on another thread, see sendAsync above.
+     * @param headers extra request headers, may be null
+     */
+    public CompletableFuture<Object[]> sendAsync(String url, String method, String body, Map<String, String> headers, int timeoutMillis) {
+        Cancellation cancellation = new Cancellation();
+        CompletableFuture<Object[]> future = CompletableFuture.supplyAsync(() -> {
+            try {
+                return send(url, method, body, headers, timeoutMillis, cancellation);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, asyncExecutor);
+        future.whenComplete((response, error) -> {
+            if (future.isCancelled()) {
+                cancelled.incrementAndGet();
+                cancellation.cancel();
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Returns the pool statistics as a JSON object.
+     * @return JSON string with the counters and the idle/leased connections per backend
+     */
+    public String stats() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"requests\": ").append(requests.get())
+            .append(", \"created\": ").append(created.get())
+            .append(", \"reused\": ").append(reused.get())
+            .append(", \"closed\": ").append(closed.get())
+            .append(", \"retried\": ").append(retried.get())
+            .append(", \"waited\": ").append(waited.get())
+            .append(", \"cancelled\": ").append(cancelled.get())
+            .append(", \"hosts\": {");
+        boolean first = true;
+        for (HostPool pool : hosts.values()) {
+            if (!first) {
+                json.append(", ");
+            }
+            first = false;
+            json.append("\"").append(pool.hostPort).append("\": {\"idle\": ").append(pool.idle.size())
+                .append(", \"leased\": ").append(maxConnectionsPerHost - pool.permits.availablePermits()).append("}");
+        }
+        return json.append("}}").toString();
+    }
+
+    private void close(Connection connection) {
+        closed.incrementAndGet();
+        try {
+            connection.socket.close();
+        } catch (IOException e) {
+            // already broken, nothing left to release
+        }
+    }
+
+    /**
+     * The connections to one backend. The semaphore bounds how many exist at once.
+     */
+    private class HostPool {
+        final String hostPort;
+        final String host;
+        final int port;
+        final Semaphore permits = new Semaphore(maxConnectionsPerHost);
+        final ArrayBlockingQueue<Connection> idle = new ArrayBlockingQueue<>(maxConnectionsPerHost);
+
+        HostPool(String hostPort) {
+            this.hostPort = hostPort;
+            int colon = hostPort.lastIndexOf(':');
+            this.host = colon == -1 ? hostPort : hostPort.substring(0, colon);
+            this.port = colon == -1 ? 80 : Integer.parseInt(hostPort.substring(colon + 1));
+        }
+
+        void acquire() throws IOException {
+            if (permits.tryAcquire()) {
+                return;
+            }
+            waited.incrementAndGet();
+            try {
+                if (!permits.tryAcquire(connectTimeout, TimeUnit.MILLISECONDS)) {
+                    throw new IOException("Connection pool exhausted for " + hostPort);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for a connection to " + hostPort);
+            }
+        }
+
+        void release() {
+            permits.release();
+        }
+
+        /**
+         * @throws ConnectException if the backend could not be reached, nothing was sent to it
+         */
+        Connection open() throws IOException {
+            Socket socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.setKeepAlive(true);
+                socket.connect(new InetSocketAddress(host, port), connectTimeout);
+            } catch (IOException e) {
+                socket.close();
+                // a connect timeout is reported like a refused connection, callers may safely retry both
+                if (e instanceof ConnectException) {
+                    throw e;
+                }
+                ConnectException failed = new ConnectException("Could not connect to " + host + ":" + port + ": " + e.getMessage());
+                failed.initCause(e);
+                throw failed;
+            }
+            created.incrementAndGet();
+            return new Connection(socket);
+        }
+    }
+
+    /**
+     * Links a request sent by sendAsync to the connection it is using, so that cancelling the
+     * request can close that connection.
+     */
+    private static class Cancellation {
+        private Connection connection;
+        private boolean cancelled;
+
+        /**
+         * @return false if the request was cancelled and must not use the connection
+         */
+        synchronized boolean attach(Connection connection) {
+            this.connection = connection;
+            return !cancelled;
+        }
+
+        /**
+         * Lets go of the connection so that a later cancel leaves it alone.
+         * @return false if the request was cancelled, its connection may already be closed
+         */
+        synchronized boolean detach() {
+            connection = null;
+            return !cancelled;
+        }
+
+        synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            if (connection != null) {
+                try {
+                    connection.socket.close();
+                } catch (IOException e) {
+                    // the exchange fails either way
+                }
+            }
+        }
+    }
+
+    /**
+     * @param method an HTTP method
+     * @return whether sending a request with the method twice has the effect of sending it once
+     */
+    private static boolean isIdempotent(String method) {
+        return method.equalsIgnoreCase("get") || method.equalsIgnoreCase("head") || method.equalsIgnoreCase("put")
+            || method.equalsIgnoreCase("delete") || method.equalsIgnoreCase("options");
+    }
+
+    /**
+     * Thrown when a connection fails before any part of the response was received.
+     */
+    private static class StaleConnectionException extends IOException {
+        private static final long serialVersionUID = 1L;
+        // whether the whole request was written, in which case the server may have processed it
+        final boolean written;
+
+        StaleConnectionException(String message, boolean written) {
+            super(message);
+            this.written = written;
+        }
+    }
+
+    /**
+     * One persistent connection and the buffers it reuses for every exchange.
+     */
+    private static class Connection {
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+
+        // read buffer for the socket
+        final byte[] buffer = new byte[8192];
+        int position;
+        int limit;
+
+        // System.nanoTime at which the connection was last put back in the pool
+        long idleSince;
+
+        // request bytes are assembled here and written in one go
+        byte[] request = new byte[512];
+        int requestLength;
+
+        // the response body is drained here, grows to the largest body seen
+        byte[] body = new byte[1024];
+        int bodyLength;
+
+        final StringBuilder line = new StringBuilder(64);
+        boolean reusable;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = socket.getInputStream();
+            this.out = socket.getOutputStream();
+        }
+
+        Object[] exchange(String method, String path, String hostPort, byte[] payload, Map<String, String> headers, int timeoutMillis) throws IOException {
+            socket.setSoTimeout(timeoutMillis);
+
+            // request line and headers
+            requestLength = 0;
+            appendAscii(method.toUpperCase());
+            appendAscii(" ");
+            appendAscii(path);
+            appendAscii(" HTTP/1.1\r\nHost: ");
+            appendAscii(hostPort);
+            appendAscii("\r\n");
+            if (payload != null) {
+                appendAscii("Content-Type: application/json\r\nContent-Length: ");
+                appendAscii(Integer.toString(payload.length));
+                appendAscii("\r\n");
+            }
+            if (headers != null) {
+                for (Map.Entry<String, String> header : headers.entrySet()) {
+                    appendAscii(header.getKey());
+                    appendAscii(": ");
+                    appendAscii(header.getValue());
+                    appendAscii("\r\n");
+                }
+            }
+            appendAscii("\r\n");
+            if (payload != null) {
+                append(payload, 0, payload.length);
+            }
+
+            try {
+                out.write(request, 0, requestLength);
+                out.flush();
+            } catch (IOException e) {
+                throw new StaleConnectionException("Write failed: " + e.getMessage(), false);
+            }
+
+            // status line, a closed connection here means the server dropped it while idle
+            position = 0;
+            limit = 0;
+            String statusLine;
+            try {
+                statusLine = readLine();
+            } catch (SocketException e) {
+                throw new StaleConnectionException("Connection reset: " + e.getMessage(), true);
+            }
+            if (statusLine == null) {
+                throw new StaleConnectionException("Connection closed by server", true);
+            }
+            int code = Integer.parseInt(statusLine.substring(9, 12));
+
+            // headers
+            long contentLength = -1;
+            boolean chunked = false;
+            reusable = true;
+            String header;
+            while ((header = readLine()) != null && !header.isEmpty()) {
+                int colon = header.indexOf(':');
+                if (colon == -1) {
+                    continue;
+                }
+                String name = header.substring(0, colon).trim();
+                String value = header.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("content-length")) {
+                    contentLength = Long.parseLong(value);
+                } else if (name.equalsIgnoreCase("transfer-encoding")) {
+                    chunked = value.equalsIgnoreCase("chunked");
+                } else if (name.equalsIgnoreCase("connection")) {
+                    reusable = !value.equalsIgnoreCase("close");
+                }
+            }
+            if (header == null) {
+                throw new IOException("Connection closed while reading headers");
+            }
+
+            // body
+            bodyLength = 0;
+            if (method.equalsIgnoreCase("head") || code == 204 || code == 304 || (code >= 100 && code < 200)) {
+                // no body
+            } else if (chunked) {
+                readChunked();
+            } else if (contentLength >= 0) {
+                readBody(contentLength);
+            } else {
+                // no length given, the body ends when the server closes the connection
+                readToEnd();
+                reusable = false;
+            }
+            return new Object[]{code, new String(body, 0, bodyLength, StandardCharsets.UTF_8)};
+        }
+
+        private void appendAscii(String text) {
+            int length = text.length();
+            ensureRequest(length);
+            for (int i = 0; i < length; i++) {
+                request[requestLength++] = (byte) text.charAt(i);
+            }
+        }
+
+        private void append(byte[] bytes, int offset, int length) {
+            ensureRequest(length);
+            System.arraycopy(bytes, offset, request, requestLength, length);
+            requestLength += length;
+        }
+
+        private void ensureRequest(int extra) {
+            if (requestLength + extra > request.length) {
+                byte[] larger = new byte[Math.max(request.length * 2, requestLength + extra)];
+                System.arraycopy(request, 0, larger, 0, requestLength);
+                request = larger;
+            }
+        }
+
+        private void ensureBody(int extra) {
+            if (bodyLength + extra > body.length) {
+                byte[] larger = new byte[Math.max(body.length * 2, bodyLength + extra)];
+                System.arraycopy(body, 0, larger, 0, bodyLength);
+                body = larger;
+            }
+        }
+
+        private boolean fill() throws IOException {
+            int read = in.read(buffer, 0, buffer.length);
+            if (read <= 0) {
+                return false;
+            }
+            position = 0;
+            limit = read;
+            return true;
+        }
+
+        private String readLine() throws IOException {
+            line.setLength(0);
+            while (true) {
+                if (position == limit && !fill()) {
+                    return line.length() == 0 ? null : line.toString();
+                }
+                char c = (char) (buffer[position++] & 0xff);
+                if (c == '\n') {
+                    int end = line.length();
+                    if (end > 0 && line.charAt(end - 1) == '\r') {
+                        line.setLength(end - 1);
+                    }
+                    return line.toString();
+                }
+                line.append(c);
+            }
+        }
+
+        private void readBody(long length) throws IOException {
+            ensureBody((int) length);
+            long remaining = length;
+            while (remaining > 0) {
+                if (position == limit && !fill()) {
+                    throw new IOException("Connection closed before the response body ended");
+                }
+                int count = (int) Math.min(remaining, limit - position);
+                System.arraycopy(buffer, position, body, bodyLength, count);
+                position += count;
+                bodyLength += count;
+                remaining -= count;
+            }
+        }
+
+        private void readChunked() throws IOException {
+            while (true) {
+                String sizeLine = readLine();
+                if (sizeLine == null) {
+                    throw new IOException("Connection closed inside a chunked body");
+                }
+                int semicolon = sizeLine.indexOf(';');
+                int size = Integer.parseInt((semicolon == -1 ? sizeLine : sizeLine.substring(0, semicolon)).trim(), 16);
+                if (size == 0) {
+                    // skip the trailers up to the blank line
+                    String trailer;
+                    while ((trailer = readLine()) != null && !trailer.isEmpty()) {
+                        // ignored
+                    }
+                    return;
+                }
+                readBody(size);
+                readLine();
+            }
+        }
+
+        private void readToEnd() throws IOException {
+            while (position < limit || fill()) {
+                int count = limit - position;
+                ensureBody(count);
+                System.arraycopy(buffer, position, body, bodyLength, count);
+                bodyLength += count;
+                position = limit;
+            }
+        }
+    }
+}
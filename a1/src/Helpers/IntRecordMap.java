@@ -0,0 +1,290 @@
+package Helpers;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Concurrent map from int ids to records, without boxing the ids or a node object per entry.
+ * The ids are spread over segments, each an open addressing table over two parallel arrays,
+ * int[] keys and Object[] values, probed linearly. Writes lock their segment; reads are
+ * optimistic and only take the lock if a write to the same segment got in the way.
+ * @param <T> the record type
+ * @author Agnibha Misra
+ */
+public class IntRecordMap<T> {
+    private static final int SEGMENT_BITS = 6;
+    private static final int SEGMENTS = 1 << SEGMENT_BITS;
+    private static final int INITIAL_CAPACITY = 16;
+    // marks a slot whose record was removed, probes continue past it
+    private static final Object REMOVED = new Object();
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    /**
+     * Receives the entries of the map.
+     * @param <T> the record type
+     */
+    public interface Visitor<T> {
+        /**
+         * @param id the record id
+         * @param record the record
+         */
+        void accept(int id, T record);
+    }
+
+    /**
+     * Creates an empty map.
+     */
+    public IntRecordMap() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * @param id the record id
+     * @return the record, or null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    public T get(int id) {
+        int hash = mix(id);
+        return (T) segments[hash >>> (32 - SEGMENT_BITS)].get(id, hash);
+    }
+
+    /**
+     * @param id the record id
+     * @return whether there is a record with the id
+     */
+    public boolean containsKey(int id) {
+        return get(id) != null;
+    }
+
+    /**
+     * Stores a record, replacing the one with the same id.
+     * @param id the record id
+     * @param record the record, not null
+     */
+    public void put(int id, T record) {
+        int hash = mix(id);
+        segments[hash >>> (32 - SEGMENT_BITS)].put(id, hash, record);
+    }
+
+    /**
+     * Replaces a record only if it is still the one expected, compared by identity.
+     * @param id the record id
+     * @param expected the record the caller read before
+     * @param record the new record, not null
+     * @return whether the record was replaced
+     */
+    public boolean replace(int id, T expected, T record) {
+        int hash = mix(id);
+        return segments[hash >>> (32 - SEGMENT_BITS)].replace(id, hash, expected, record);
+    }
+
+    /**
+     * Removes a record.
+     * @param id the record id
+     */
+    public void remove(int id) {
+        int hash = mix(id);
+        segments[hash >>> (32 - SEGMENT_BITS)].put(id, hash, null);
+    }
+
+    /**
+     * @return the number of records
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    /**
+     * Calls the visitor for every record. Each segment is copied under its lock and visited
+     * afterwards, so a slow visitor does not hold up writes. Records written meanwhile may or
+     * may not be seen.
+     * @param visitor receives the records
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(Visitor<T> visitor) {
+        for (Segment segment : segments) {
+            int[] keys;
+            Object[] values;
+            long stamp = segment.lock.readLock();
+            try {
+                keys = segment.keys.clone();
+                values = segment.values.clone();
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+            for (int i = 0; i < keys.length; i++) {
+                Object value = values[i];
+                if (value != null && value != REMOVED) {
+                    visitor.accept(keys[i], (T) value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Spreads sequential ids over the segments and slots (the Murmur3 finalizer).
+     */
+    private static int mix(int id) {
+        int h = id;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * One open addressing table. The arrays are replaced, never resized in place, so a reader
+     * holding the old pair still probes a consistent table.
+     */
+    private static class Segment {
+        final StampedLock lock = new StampedLock();
+        int[] keys = new int[INITIAL_CAPACITY];
+        Object[] values = new Object[INITIAL_CAPACITY];
+        // live records
+        volatile int size;
+        // live and removed slots, the table grows when they fill half of it
+        int used;
+
+        Object get(int id, int hash) {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp != 0) {
+                Object value = find(keys, values, id, hash);
+                if (lock.validate(stamp)) {
+                    return value;
+                }
+            }
+            stamp = lock.readLock();
+            try {
+                return find(keys, values, id, hash);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        /**
+         * Probes for an id. Under an optimistic read the arrays may be changing, the caller
+         * validates the result; the probe is bounded so it ends either way.
+         */
+        private static Object find(int[] keys, Object[] values, int id, int hash) {
+            int mask = Math.min(keys.length, values.length) - 1;
+            int slot = hash & mask;
+            for (int probes = 0; probes <= mask; probes++) {
+                Object value = values[slot];
+                if (value == null) {
+                    return null;
+                }
+                if (keys[slot] == id) {
+                    return value == REMOVED ? null : value;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return null;
+        }
+
+        /**
+         * Stores a record, or removes it when record is null.
+         */
+        void put(int id, int hash, Object record) {
+            long stamp = lock.writeLock();
+            try {
+                int mask = keys.length - 1;
+                int slot = hash & mask;
+                int free = -1;
+                while (values[slot] != null) {
+                    if (keys[slot] == id) {
+                        Object old = values[slot];
+                        if (record != null) {
+                            values[slot] = record;
+                            if (old == REMOVED) {
+                                size++;
+                            }
+                        } else if (old != REMOVED) {
+                            values[slot] = REMOVED;
+                            size--;
+                        }
+                        return;
+                    }
+                    if (free < 0 && values[slot] == REMOVED) {
+                        free = slot;
+                    }
+                    slot = (slot + 1) & mask;
+                }
+                if (record == null) {
+                    return;
+                }
+                if (free >= 0) {
+                    // reuse the first removed slot on the probe path, the id is not further along
+                    keys[free] = id;
+                    values[free] = record;
+                    size++;
+                    return;
+                }
+                keys[slot] = id;
+                values[slot] = record;
+                size++;
+                if (++used * 2 > keys.length) {
+                    rehash();
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * Swaps the record of an id for another if it is the expected one.
+         */
+        boolean replace(int id, int hash, Object expected, Object record) {
+            long stamp = lock.writeLock();
+            try {
+                int mask = keys.length - 1;
+                int slot = hash & mask;
+                while (values[slot] != null) {
+                    if (keys[slot] == id) {
+                        if (values[slot] != expected) {
+                            return false;
+                        }
+                        values[slot] = record;
+                        return true;
+                    }
+                    slot = (slot + 1) & mask;
+                }
+                return false;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * Copies the live records into new arrays, twice as large unless most slots were removed ones.
+         */
+        private void rehash() {
+            int capacity = size * 4 > keys.length ? keys.length * 2 : keys.length;
+            int[] newKeys = new int[capacity];
+            Object[] newValues = new Object[capacity];
+            int mask = capacity - 1;
+            for (int i = 0; i < keys.length; i++) {
+                Object value = values[i];
+                if (value == null || value == REMOVED) {
+                    continue;
+                }
+                int slot = mix(keys[i]) & mask;
+                while (newValues[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                newKeys[slot] = keys[i];
+                newValues[slot] = value;
+            }
+            keys = newKeys;
+            values = newValues;
+            used = size;
+        }
+    }
+}
@@ -0,0 +1,402 @@
+package Helpers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A view of the top level fields of a JSON object, built by reading the text once.
+ * Only the positions of each key and value are recorded while scanning; a String is
+ * created when a field is actually asked for, and numbers are parsed straight out of
+ * the text. A view can be pointed at another body with reset() to reuse its arrays.
+ * Like the old regex helpers, a missing field or a value of the wrong type gives null,
+ * and scanning stops quietly at the first malformed token, keeping the fields read so far.
+ * @author Agnibha Misra
+ */
+public final class JsonFields {
+    private static final byte STRING = 1;
+    private static final byte NUMBER = 2;
+    private static final byte LITERAL = 3;
+    private static final byte OBJECT = 4;
+    private static final byte ARRAY = 5;
+
+    private String json;
+    private int count;
+
+    // positions of each field in json, values exclude the quotes of strings
+    private int[] keyStart = new int[8];
+    private int[] keyEnd = new int[8];
+    private int[] valueStart = new int[8];
+    private int[] valueEnd = new int[8];
+    private byte[] type = new byte[8];
+    // whether a string value contains escape sequences that need decoding
+    private boolean[] escaped = new boolean[8];
+    // set by endOfString when the string it just read had a backslash in it
+    private boolean sawEscape;
+
+    /**
+     * Reads the fields of a JSON object.
+     * @param json the JSON text
+     * @return a new view of its fields
+     */
+    public static JsonFields parse(String json) {
+        return new JsonFields().reset(json);
+    }
+
+    /**
+     * Reads another JSON object into this view, replacing the previous fields.
+     * @param json the JSON text
+     * @return this view
+     */
+    public JsonFields reset(String json) {
+        this.json = json == null ? "" : json;
+        this.count = 0;
+        scan();
+        return this;
+    }
+
+    /**
+     * @param key the key to search for
+     * @return true if the object has the key, whatever its value
+     */
+    public boolean has(String key) {
+        return find(key) >= 0;
+    }
+
+    /**
+     * @param key the key to search for
+     * @return the decoded string value, or null if missing or not a string
+     */
+    public String getString(String key) {
+        int i = find(key);
+        if (i < 0 || type[i] != STRING) {
+            return null;
+        }
+        if (!escaped[i]) {
+            return json.substring(valueStart[i], valueEnd[i]);
+        }
+        return unescape(valueStart[i], valueEnd[i]);
+    }
+
+    /**
+     * @param key the key to search for
+     * @return the integer value, or null if missing, not a whole number or out of range
+     */
+    public Integer getInteger(String key) {
+        int i = find(key);
+        if (i < 0 || type[i] != NUMBER) {
+            return null;
+        }
+        for (int p = valueStart[i]; p < valueEnd[i]; p++) {
+            char c = json.charAt(p);
+            if (c == '.' || c == 'e' || c == 'E') {
+                return null;
+            }
+        }
+        try {
+            return Integer.parseInt(json, valueStart[i], valueEnd[i], 10);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param key the key to search for
+     * @return the float value, or null if missing, not a number, or not finite like -NaN or a
+     * value too large for a float
+     */
+    public Float getFloat(String key) {
+        int i = find(key);
+        if (i < 0 || type[i] != NUMBER) {
+            return null;
+        }
+        try {
+            float value = Float.parseFloat(json.substring(valueStart[i], valueEnd[i]));
+            return Float.isFinite(value) ? value : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param key the key to search for
+     * @return the raw text of an object or array value, or null if missing or not an object/array
+     */
+    public String getRaw(String key) {
+        int i = find(key);
+        if (i < 0 || (type[i] != OBJECT && type[i] != ARRAY)) {
+            return null;
+        }
+        return json.substring(valueStart[i], valueEnd[i]);
+    }
+
+    /**
+     * Splits a JSON array, e.g. the text returned by getRaw, into the raw text of its elements.
+     * String elements keep their quotes. Like parse, it stops quietly at the first malformed element.
+     * @param array the JSON array text
+     * @return the elements in order, empty if the text is not an array
+     */
+    public static List<String> elements(String array) {
+        JsonFields view = new JsonFields();
+        view.json = array == null ? "" : array;
+        return view.scanElements();
+    }
+
+    /**
+     * Appends a string to a JSON document as a quoted string, escaping what JSON requires.
+     * @param builder the document being built
+     * @param value the string value
+     * @return the builder
+     */
+    public static StringBuilder appendString(StringBuilder builder, String value) {
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': builder.append("\\\""); break;
+                case '\\': builder.append("\\\\"); break;
+                case '\n': builder.append("\\n"); break;
+                case '\r': builder.append("\\r"); break;
+                case '\t': builder.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+        return builder.append('"');
+    }
+
+    private int find(String key) {
+        int length = key.length();
+        for (int i = 0; i < count; i++) {
+            if (keyEnd[i] - keyStart[i] == length && json.regionMatches(keyStart[i], key, 0, length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void scan() {
+        int n = json.length();
+        int i = skipWhitespace(0);
+        if (i >= n || json.charAt(i) != '{') {
+            return;
+        }
+        i++;
+        while (true) {
+            i = skipWhitespace(i);
+            if (i >= n) {
+                return;
+            }
+            char c = json.charAt(i);
+            if (c == '}') {
+                return;
+            }
+            if (c == ',') {
+                i++;
+                continue;
+            }
+            if (c != '"') {
+                return;
+            }
+
+            // key
+            int ks = i + 1;
+            int ke = endOfString(ks);
+            if (ke < 0) {
+                return;
+            }
+            i = skipWhitespace(ke + 1);
+            if (i >= n || json.charAt(i) != ':') {
+                return;
+            }
+            i = skipWhitespace(i + 1);
+            if (i >= n) {
+                return;
+            }
+
+            // value
+            c = json.charAt(i);
+            int vs;
+            int ve;
+            byte t;
+            boolean hasEscape = false;
+            if (c == '"') {
+                vs = i + 1;
+                ve = endOfString(vs);
+                if (ve < 0) {
+                    return;
+                }
+                hasEscape = sawEscape;
+                t = STRING;
+                i = ve + 1;
+            } else if (c == '{' || c == '[') {
+                vs = i;
+                ve = endOfContainer(i);
+                if (ve < 0) {
+                    return;
+                }
+                t = c == '{' ? OBJECT : ARRAY;
+                i = ve;
+            } else {
+                vs = i;
+                while (i < n && ",}] \t\r\n".indexOf(json.charAt(i)) < 0) {
+                    i++;
+                }
+                ve = i;
+                t = (c == '-' || (c >= '0' && c <= '9')) ? NUMBER : LITERAL;
+            }
+            add(ks, ke, vs, ve, t, hasEscape);
+        }
+    }
+
+    private List<String> scanElements() {
+        List<String> elements = new ArrayList<>();
+        int n = json.length();
+        int i = skipWhitespace(0);
+        if (i >= n || json.charAt(i) != '[') {
+            return elements;
+        }
+        i++;
+        while (true) {
+            i = skipWhitespace(i);
+            if (i >= n) {
+                return elements;
+            }
+            char c = json.charAt(i);
+            if (c == ']') {
+                return elements;
+            }
+            if (c == ',') {
+                i++;
+                continue;
+            }
+
+            int start = i;
+            if (c == '"') {
+                i = endOfString(i + 1);
+                if (i < 0) {
+                    return elements;
+                }
+                i++;
+            } else if (c == '{' || c == '[') {
+                i = endOfContainer(i);
+                if (i < 0) {
+                    return elements;
+                }
+            } else {
+                while (i < n && ",}] \t\r\n".indexOf(json.charAt(i)) < 0) {
+                    i++;
+                }
+            }
+            elements.add(json.substring(start, i));
+        }
+    }
+
+    private void add(int ks, int ke, int vs, int ve, byte t, boolean hasEscape) {
+        if (count == type.length) {
+            int size = count * 2;
+            keyStart = Arrays.copyOf(keyStart, size);
+            keyEnd = Arrays.copyOf(keyEnd, size);
+            valueStart = Arrays.copyOf(valueStart, size);
+            valueEnd = Arrays.copyOf(valueEnd, size);
+            type = Arrays.copyOf(type, size);
+            escaped = Arrays.copyOf(escaped, size);
+        }
+        keyStart[count] = ks;
+        keyEnd[count] = ke;
+        valueStart[count] = vs;
+        valueEnd[count] = ve;
+        type[count] = t;
+        escaped[count] = hasEscape;
+        count++;
+    }
+
+    private int skipWhitespace(int i) {
+        while (i < json.length() && Character.isWhitespace(json.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @param start the index just after the opening quote
+     * @return the index of the closing quote, or -1 if the string never ends
+     */
+    private int endOfString(int start) {
+        sawEscape = false;
+        for (int i = start; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (c == '\\') {
+                sawEscape = true;
+                i++;
+            } else if (c == '"') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param start the index of the opening { or [
+     * @return the index just after the matching } or ], or -1 if it never closes
+     */
+    private int endOfContainer(int start) {
+        int depth = 0;
+        for (int i = start; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (c == '"') {
+                i = endOfString(i + 1);
+                if (i < 0) {
+                    return -1;
+                }
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                depth--;
+                if (depth == 0) {
+                    return i + 1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private String unescape(int start, int end) {
+        StringBuilder builder = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            char c = json.charAt(i);
+            if (c != '\\' || i + 1 >= end) {
+                builder.append(c);
+                continue;
+            }
+            char next = json.charAt(++i);
+            switch (next) {
+                case 'n': builder.append('\n'); break;
+                case 'r': builder.append('\r'); break;
+                case 't': builder.append('\t'); break;
+                case 'b': builder.append('\b'); break;
+                case 'f': builder.append('\f'); break;
+                case 'u':
+                    if (i + 4 < end) {
+                        try {
+                            builder.append((char) Integer.parseInt(json, i + 1, i + 5, 16));
+                            i += 4;
+                            break;
+                        } catch (NumberFormatException e) {
+                            // not a valid escape, keep the text as it is
+                        }
+                    }
+                    builder.append("\\u");
+                    break;
+                default:
+                    // \" \\ \/ and anything unknown stand for the character itself
+                    builder.append(next);
+            }
+        }
+        return builder.toString();
+    }
+}
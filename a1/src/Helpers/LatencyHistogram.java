@@ -0,0 +1,100 @@
+package Helpers;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of latencies with log-linear buckets, the layout HdrHistogram uses.
+ * Values below 64 microseconds have a bucket each; above that every power of two is split into
+ * 32 buckets, so a percentile is within about 3% of the true value at any magnitude. Recording
+ * is a shift, a leading-zero count and one atomic increment, with no allocation.
+ * @author Agnibha Misra
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    // values are clamped to 2^36 microseconds, about 19 hours
+    private static final int MAX_LOG2 = 36;
+    private static final int BUCKETS = (MAX_LOG2 - SUB_BITS + 1) * SUB_BUCKETS + SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+
+    /**
+     * Records a latency.
+     * @param nanos the latency in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        counts.incrementAndGet(index(micros));
+        count.increment();
+        sumNanos.add(nanos);
+    }
+
+    /**
+     * @return the number of latencies recorded
+     */
+    public long count() {
+        return count.sum();
+    }
+
+    /**
+     * @return the sum of the latencies recorded, in nanoseconds
+     */
+    public long sumNanos() {
+        return sumNanos.sum();
+    }
+
+    /**
+     * Finds a percentile. Latencies recorded while it runs may or may not be counted.
+     * @param quantile the quantile, e.g. 0.99
+     * @return the latency in microseconds at the quantile, the middle of its bucket, or 0 if nothing was recorded
+     */
+    public long percentileMicros(double quantile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return middle(i);
+            }
+        }
+        return middle(BUCKETS - 1);
+    }
+
+    /**
+     * Below 2 * SUB_BUCKETS the value is its own bucket. Above, the top SUB_BITS + 1 bits of
+     * the value pick the bucket within its power of two.
+     */
+    private static int index(long micros) {
+        if (micros < 2 * SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int log2 = Math.min(MAX_LOG2, 63 - Long.numberOfLeadingZeros(micros));
+        int shift = log2 - SUB_BITS;
+        long sub = Math.min(2 * SUB_BUCKETS - 1, micros >>> shift);
+        return (shift + 1) * SUB_BUCKETS + (int) (sub - SUB_BUCKETS);
+    }
+
+    /**
+     * @return the value in the middle of a bucket
+     */
+    private static long middle(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) / 2;
+    }
+}
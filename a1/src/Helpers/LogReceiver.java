@@ -0,0 +1,246 @@
+package Helpers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The backup's side of log shipping: listens for the primary's LogShipper and applies the
+ * frames it sends to the backup's own RecordStore, which logs them like any other change.
+ * Frames are applied in the order they arrive. Once every frame read so far is durable in the
+ * backup's log, the seq of the last one is sent back, so one acknowledgement covers a whole
+ * group of frames the way one fsync covers a group of log entries.
+ * Promoting the backup stops it listening and drops the primary's connection, after which the
+ * store is written by the backup's own requests only.
+ * A read-only follower uses the primary's heartbeats to tell how stale its records may be.
+ * @param <T> the record type
+ * @author Agnibha Misra
+ */
+public class LogReceiver<T> {
+    // frames applied before their logging is awaited and acknowledged
+    private static final int MAX_GROUP = 1024;
+    // a primary is dropped after missing this many heartbeats, but never sooner than the floor
+    private static final int MISSED_HEARTBEATS = 10;
+    private static final int MIN_SILENCE_MILLIS = 1000;
+
+    private final RecordStore<T> store;
+    private final RecordStore.Decoder<T> decoder;
+    private final ServerSocket listener;
+    private final Thread thread;
+    private final int silenceMillis;
+    private final int windowMillis;
+    private volatile Socket primary;
+    private volatile boolean promoted;
+
+    // statistics
+    private final AtomicLong applied = new AtomicLong();
+    private final AtomicLong resets = new AtomicLong();
+    private volatile long lastSeq;
+    // the primary's System.currentTimeMillis in the last heartbeat, or end of resync, that has
+    // been applied and logged along with every frame before it; 0 while the store is not a
+    // complete copy
+    private volatile long caughtUpAt;
+
+    /**
+     * Starts listening for the primary on a daemon thread.
+     * @param store the backup's store
+     * @param decoder turns the data of a frame back into a record
+     * @param ip the address to listen on
+     * @param port the replication port
+     * @param heartbeatMillis the primary's heartbeat interval, 0 if it sends none and is never
+     * dropped for being silent
+     * @param windowMillis how long after the primary sent the last heartbeat applied here the
+     * backup may still be promoted, 0 for as long as it likes; the primary's LogShipper must hold
+     * writes for as long after losing a backup
+     * @throws IOException if the port cannot be bound
+     */
+    public LogReceiver(RecordStore<T> store, RecordStore.Decoder<T> decoder, String ip, int port, int heartbeatMillis,
+            int windowMillis) throws IOException {
+        this.store = store;
+        this.decoder = decoder;
+        this.windowMillis = windowMillis;
+        this.silenceMillis = heartbeatMillis > 0 ? Math.max(MIN_SILENCE_MILLIS, MISSED_HEARTBEATS * heartbeatMillis) : 0;
+        this.listener = new ServerSocket();
+        listener.bind(new InetSocketAddress(ip, port));
+        thread = new Thread(this::accept, "replication-" + port);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return whether the backup has been promoted
+     */
+    public boolean isPromoted() {
+        return promoted;
+    }
+
+    /**
+     * Stops taking frames from the primary and waits until the last one read has been applied,
+     * so that requests to the promoted backup see it. A change the primary sent after that is
+     * lost if it was not acknowledged, which in sync replication means it was never
+     * acknowledged to a client either.
+     * A backup that has not applied the end of a resync holds only part of the records and is
+     * not promoted. Nor is one whose last heartbeat is older than the window: the primary may
+     * have dropped it and acknowledged writes without it since, which it only does once the
+     * window has passed.
+     * @return whether the backup is promoted
+     */
+    public boolean promote() {
+        synchronized (this) {
+            if (promoted) {
+                return true;
+            }
+            long at = caughtUpAt;
+            if (at == 0 || windowMillis > 0 && System.currentTimeMillis() - at >= windowMillis) {
+                return false;
+            }
+            promoted = true;
+            close(listener);
+            Socket current = primary;
+            if (current != null) {
+                close(current);
+            }
+        }
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return true;
+    }
+
+    /**
+     * How far the records may be behind the primary's: the time since the primary sent the last
+     * heartbeat, or started the resync, that has been applied here. That includes the time the
+     * heartbeat waited behind other frames, but it is read off two clocks, so the hosts' clocks
+     * need to be in step for it to hold.
+     * @return the staleness in milliseconds, Long.MAX_VALUE if the store has never caught up
+     */
+    public long stalenessMillis() {
+        long at = caughtUpAt;
+        return at == 0 ? Long.MAX_VALUE : Math.max(0, System.currentTimeMillis() - at);
+    }
+
+    /**
+     * @return the replication counters as a JSON object
+     */
+    public String stats() {
+        return "{\"promoted\": " + promoted + ", \"connected\": " + (primary != null)
+            + ", \"applied\": " + applied.get() + ", \"resets\": " + resets.get() + ", \"lastSeq\": " + lastSeq
+            + ", \"stalenessMillis\": " + (caughtUpAt == 0 ? -1 : stalenessMillis()) + "}";
+    }
+
+    /**
+     * Takes one primary at a time; a primary that reconnects starts over with a resync.
+     * A primary that stops sending heartbeats is dropped, it may have lost power without
+     * closing the connection, and a backup promoted in its place must be able to connect.
+     */
+    private void accept() {
+        while (!promoted) {
+            try (Socket connection = listener.accept()) {
+                synchronized (this) {
+                    if (promoted) {
+                        return;
+                    }
+                    primary = connection;
+                }
+                connection.setTcpNoDelay(true);
+                connection.setSoTimeout(silenceMillis);
+                receive(connection);
+            } catch (IOException e) {
+                // the primary went away, went silent or the backup was promoted
+            } finally {
+                primary = null;
+            }
+        }
+    }
+
+    private void receive(Socket connection) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream(), 1 << 16));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+        List<CompletableFuture<Void>> group = new ArrayList<>();
+        // a new connection numbers its frames from 1 again
+        long groupSeq = 0;
+        lastSeq = 0;
+        // heartbeats only count once the resync is over, and only once the frames before them
+        // are logged too
+        boolean synced = false;
+        long heartbeatAt = 0;
+        while (true) {
+            long seq;
+            try {
+                seq = in.readLong();
+            } catch (EOFException e) {
+                return;
+            }
+            byte op = in.readByte();
+            int id = in.readInt();
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+
+            // the primary's ordering holds here because frames are applied one at a time
+            if (op == WriteAheadLog.PUT) {
+                group.add(store.put(id, decoder.decode(id, data)));
+            } else if (op == WriteAheadLog.DELETE) {
+                group.add(store.remove(id));
+            } else if (op == LogShipper.RESET) {
+                resets.incrementAndGet();
+                if (!synced) {
+                    // a resync starts, the records are incomplete until it ends; once promoted
+                    // the backup keeps the complete records it has
+                    synchronized (this) {
+                        if (promoted) {
+                            return;
+                        }
+                        caughtUpAt = 0;
+                    }
+                }
+                group.add(store.wipe());
+            } else if (op == LogShipper.SYNCED) {
+                synced = true;
+                heartbeatAt = ByteBuffer.wrap(data).getLong();
+            } else if (op == LogShipper.HEARTBEAT && synced) {
+                heartbeatAt = ByteBuffer.wrap(data).getLong();
+            }
+            applied.incrementAndGet();
+            if (seq != 0) {
+                groupSeq = seq;
+            }
+
+            // acknowledge once nothing more has arrived, or the group is large
+            if (in.available() == 0 || group.size() >= MAX_GROUP) {
+                CompletableFuture.allOf(group.toArray(new CompletableFuture<?>[0])).join();
+                group.clear();
+                if (heartbeatAt != 0) {
+                    caughtUpAt = heartbeatAt;
+                    heartbeatAt = 0;
+                }
+                if (groupSeq != 0 && groupSeq != lastSeq) {
+                    lastSeq = groupSeq;
+                    out.writeLong(groupSeq);
+                    out.flush();
+                }
+            }
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+}
@@ -0,0 +1,412 @@
+package Helpers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The primary's side of log shipping: every change to a RecordStore is streamed, in the order
+ * it was applied, to the LogReceiver of each backup over a TCP connection of its own.
+ * A frame is [long seq][byte op][int id][int length][data] with the op of the write-ahead log,
+ * or RESET, which drops every record on the backup. The backup answers with the seq of the
+ * last frame it has applied and logged, acknowledging every frame up to it.
+ * <p>
+ * When a backup connects, or reconnects after an outage, it gets a RESET and then every
+ * record of the store, followed by a SYNCED marker and the changes made since it connected.
+ * The resync frames have seq 0; the backup counts as in sync once the marker is acknowledged.
+ * <p>
+ * In sync mode a change is acknowledged to the client only once every in-sync backup has
+ * logged it too, so a promoted backup has every acknowledged write. A backup that does not
+ * acknowledge within the timeout is disconnected and resynced rather than holding up writes.
+ * The backup cannot be told it was dropped, it may be cut off, so it keeps its records
+ * promotable for a window after the last heartbeat it applied; once an in-sync backup is lost,
+ * writes are held until that window has passed.
+ * In async mode a change is acknowledged as soon as it is durable locally and the backups
+ * catch up behind it; the writes still unacknowledged by a backup ("lag" in the stats) are
+ * the ones lost if it is promoted after the primary dies.
+ * <p>
+ * The same stream feeds read-only followers, which use the heartbeats to know how stale they are.
+ * @author Agnibha Misra
+ */
+public class LogShipper {
+    /**
+     * Frame op that drops every record, sent before a full resync and for a wipe.
+     */
+    public static final byte RESET = 3;
+    /**
+     * Frame op that marks the end of a resync, it changes nothing. Its data is the primary's
+     * System.currentTimeMillis when the resync started, like a heartbeat's.
+     */
+    public static final byte SYNCED = 4;
+    /**
+     * Frame op sent at a fixed interval, it changes nothing. Its data is the primary's
+     * System.currentTimeMillis when it was queued: a follower that has applied it has every
+     * change made before that time, which bounds how far behind the follower's reads are.
+     */
+    public static final byte HEARTBEAT = 5;
+
+    private static final int RECONNECT_MILLIS = 500;
+
+    private final RecordStore<?> store;
+    private final boolean sync;
+    private final long timeoutNanos;
+    private final long fenceNanos;
+    private final List<Link> links = new ArrayList<>();
+    // System.nanoTime until which sync writes wait because a backup was lost
+    private volatile long fencedUntil = System.nanoTime();
+
+    // statistics
+    private final AtomicLong shipped = new AtomicLong();
+    private final AtomicLong resyncs = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong fences = new AtomicLong();
+
+    /**
+     * Starts shipping the changes of a store to its backups. Call before the store takes writes.
+     * @param store the primary's store
+     * @param backups the replication ports of the backups, as ip:port
+     * @param sync whether a change waits for the backups before it is acknowledged
+     * @param timeoutMillis how long an in-sync backup may take to acknowledge a change
+     * @param heartbeatMillis milliseconds between heartbeats, 0 for none
+     * @param fenceMillis in sync mode, how long writes wait after an in-sync backup is lost: the
+     * window in which its LogReceiver may still be promoted, 0 for backups that never are
+     */
+    public LogShipper(RecordStore<?> store, List<String> backups, boolean sync, int timeoutMillis, int heartbeatMillis,
+            int fenceMillis) {
+        this.store = store;
+        this.sync = sync;
+        this.timeoutNanos = timeoutMillis * 1_000_000L;
+        this.fenceNanos = fenceMillis * 1_000_000L;
+        for (String backup : backups) {
+            String[] address = backup.split(":");
+            Link link = new Link(new InetSocketAddress(address[0], Integer.parseInt(address[1])));
+            links.add(link);
+            Thread thread = new Thread(link::run, "ship-" + backup);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        store.shipTo(this);
+
+        if (heartbeatMillis > 0) {
+            ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "ship-heartbeat");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleAtFixedRate(() -> {
+                byte[] heartbeat = marker(HEARTBEAT);
+                for (Link link : links) {
+                    link.send(heartbeat, null);
+                }
+            }, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sends a change to every connected backup. Changes to the same id must be shipped in the
+     * order they were applied, which holds when they are shipped by the thread that applied them.
+     * @param op the op of the change
+     * @param id the record id
+     * @param data the record data, empty for DELETE and RESET
+     * @param logged completes when the change is durable locally
+     * @return completes when the change may be acknowledged: in async mode once it is logged,
+     * in sync mode once it is also logged by every in-sync backup and no lost backup may still
+     * be promoted
+     */
+    public CompletableFuture<Void> ship(byte op, int id, byte[] data, CompletableFuture<Void> logged) {
+        byte[] payload = ByteBuffer.allocate(9 + data.length).put(op).putInt(id).putInt(data.length).put(data).array();
+        shipped.incrementAndGet();
+
+        Pending pending = sync ? new Pending() : null;
+        for (Link link : links) {
+            link.send(payload, pending);
+        }
+        CompletableFuture<Void> done = pending == null || pending.release()
+            ? logged : CompletableFuture.allOf(logged, pending.acked);
+        long fenced = fencedUntil - System.nanoTime();
+        if (!sync || fenced <= 0) {
+            return done;
+        }
+        return CompletableFuture.allOf(done, CompletableFuture.runAsync(() -> { },
+            CompletableFuture.delayedExecutor(fenced, TimeUnit.NANOSECONDS)));
+    }
+
+    /**
+     * A frame payload that changes nothing and carries the time it was made, so that the backup
+     * measures its staleness against the primary's clock rather than against when the frame
+     * happened to arrive.
+     */
+    private static byte[] marker(byte op) {
+        return ByteBuffer.allocate(17).put(op).putInt(0).putInt(8).putLong(System.currentTimeMillis()).array();
+    }
+
+    /**
+     * @return the replication counters and the state of every backup as a JSON object
+     */
+    public String stats() {
+        StringBuilder json = new StringBuilder("{\"mode\": \"").append(sync ? "sync" : "async")
+            .append("\", \"shipped\": ").append(shipped.get()).append(", \"resyncs\": ").append(resyncs.get())
+            .append(", \"timeouts\": ").append(timeouts.get()).append(", \"fences\": ").append(fences.get()).append(", \"replicas\": [");
+        for (int i = 0; i < links.size(); i++) {
+            if (i > 0) {
+                json.append(", ");
+            }
+            json.append(links.get(i).stats());
+        }
+        return json.append("]}").toString();
+    }
+
+    /**
+     * A change waiting for the backups in sync mode. It starts with one reference held by ship
+     * and gets one more for every in-sync backup it is sent to.
+     */
+    private static class Pending {
+        private final AtomicInteger references = new AtomicInteger(1);
+        private final CompletableFuture<Void> acked = new CompletableFuture<>();
+
+        private void retain() {
+            references.incrementAndGet();
+        }
+
+        /**
+         * @return whether this was the last reference
+         */
+        private boolean release() {
+            if (references.decrementAndGet() == 0) {
+                acked.complete(null);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A frame queued for a backup, with the change waiting for it if any.
+     */
+    private record Frame(long seq, byte[] payload, Pending pending, long sentAt) { }
+
+    /**
+     * The connection to one backup. A thread connects, resyncs and then writes the queued frames,
+     * another reads the acknowledgements.
+     */
+    private class Link {
+        private final InetSocketAddress address;
+        // frames to write, one without a payload tells the writer the connection failed
+        private final LinkedBlockingQueue<Frame> outbox = new LinkedBlockingQueue<>();
+        // frames written and not yet acknowledged, in seq order
+        private final ConcurrentLinkedQueue<Frame> unacked = new ConcurrentLinkedQueue<>();
+        private long nextSeq;
+        // the connection frames are queued for, null while there is none
+        private Socket socket;
+        // whether the backup has every record, and the seq that says so once it is acknowledged
+        private volatile boolean inSync;
+        private volatile long resyncSeq;
+        // whether the backup may have the end of the resync, and so may be promoted
+        private volatile boolean marked;
+        private final AtomicLong acked = new AtomicLong();
+
+        private Link(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        /**
+         * Queues a frame if the backup is connected. In sync mode the change waits for it only
+         * if the backup is in sync, a backup that is still resyncing does not hold up writes.
+         */
+        private synchronized void send(byte[] payload, Pending pending) {
+            if (socket == null) {
+                return;
+            }
+            Pending wait = inSync ? pending : null;
+            if (wait != null) {
+                wait.retain();
+            }
+            outbox.add(new Frame(++nextSeq, payload, wait, System.nanoTime()));
+        }
+
+        /**
+         * Connects, resyncs and writes frames until the connection fails, then tries again.
+         */
+        private void run() {
+            while (true) {
+                try (Socket connection = new Socket()) {
+                    connection.connect(address, RECONNECT_MILLIS);
+                    connection.setTcpNoDelay(true);
+                    stream(connection);
+                } catch (IOException | UncheckedIOException e) {
+                    // the backup is down or went away, it is resynced when it is back
+                } catch (InterruptedException e) {
+                    return;
+                }
+                disconnect();
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private void stream(Socket connection) throws IOException, InterruptedException {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream(), 1 << 16));
+            // from here on every change is queued, behind a marker that ends the resync
+            synchronized (this) {
+                socket = connection;
+                resyncSeq = ++nextSeq;
+                outbox.add(new Frame(resyncSeq, marker(SYNCED), null, System.nanoTime()));
+            }
+            resyncs.incrementAndGet();
+            Thread reader = new Thread(() -> readAcks(connection), "ship-acks-" + address.getPort());
+            reader.setDaemon(true);
+            reader.start();
+
+            // the records go out before the queued changes, each record is at least as new as
+            // the moment the queue started, so replaying the queue over them gives the current
+            // state even when a record changed while it was being sent
+            out.writeLong(0);
+            out.write(new byte[] {RESET, 0, 0, 0, 0, 0, 0, 0, 0});
+            store.forEachEncoded((id, data) -> {
+                try {
+                    out.writeLong(0);
+                    out.writeByte(WriteAheadLog.PUT);
+                    out.writeInt(id);
+                    out.writeInt(data.length);
+                    out.write(data);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+
+            while (true) {
+                Frame frame = outbox.take();
+                do {
+                    if (frame.payload == null) {
+                        throw new IOException("Disconnected");
+                    }
+                    unacked.add(frame);
+                    if (frame.seq == resyncSeq) {
+                        marked = true;
+                    }
+                    out.writeLong(frame.seq);
+                    out.write(frame.payload);
+                    frame = outbox.poll();
+                } while (frame != null);
+                out.flush();
+            }
+        }
+
+        /**
+         * Reads acknowledgements and releases the changes they cover. Disconnects a backup whose
+         * oldest unacknowledged in-sync change has waited longer than the timeout.
+         */
+        private void readAcks(Socket connection) {
+            try {
+                connection.setSoTimeout((int) Math.max(1, timeoutNanos / 2_000_000));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+                while (true) {
+                    long seq;
+                    try {
+                        seq = in.readLong();
+                    } catch (SocketTimeoutException e) {
+                        Frame oldest = unacked.peek();
+                        if (oldest != null && oldest.pending != null && System.nanoTime() - oldest.sentAt > timeoutNanos) {
+                            timeouts.incrementAndGet();
+                            throw new IOException("Backup did not acknowledge in time");
+                        }
+                        continue;
+                    }
+                    acked.set(seq);
+                    Frame frame;
+                    while ((frame = unacked.peek()) != null && frame.seq <= seq) {
+                        unacked.poll();
+                        if (frame.pending != null) {
+                            frame.pending.release();
+                        }
+                    }
+                    if (!inSync && seq >= resyncSeq) {
+                        inSync = true;
+                    }
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    if (socket == connection) {
+                        // wakes the writer, which then disconnects
+                        outbox.add(new Frame(0, null, null, 0));
+                    }
+                }
+                try {
+                    connection.close();
+                } catch (IOException ignored) {
+                    // already closed
+                }
+            }
+        }
+
+        /**
+         * Stops queueing frames and lets every change that waited for this backup go ahead,
+         * the backup gets a full resync when it is back. In sync mode a backup that may have
+         * finished its resync may also be promoted before it is back, so the changes go ahead
+         * only once its window has passed, and so do the ones shipped until then.
+         */
+        private void disconnect() {
+            boolean fence = sync && marked && fenceNanos > 0;
+            if (fence) {
+                fences.incrementAndGet();
+                synchronized (LogShipper.this) {
+                    long until = System.nanoTime() + fenceNanos;
+                    if (until - fencedUntil > 0) {
+                        fencedUntil = until;
+                    }
+                }
+            }
+            synchronized (this) {
+                socket = null;
+                inSync = false;
+                nextSeq = 0;
+                marked = false;
+            }
+            List<Pending> waiting = new ArrayList<>();
+            Frame frame;
+            while ((frame = outbox.poll()) != null || (frame = unacked.poll()) != null) {
+                if (frame.pending != null) {
+                    waiting.add(frame.pending);
+                }
+            }
+            acked.set(0);
+            Runnable release = () -> waiting.forEach(Pending::release);
+            if (fence) {
+                CompletableFuture.delayedExecutor(fenceNanos, TimeUnit.NANOSECONDS).execute(release);
+            } else {
+                release.run();
+            }
+        }
+
+        private String stats() {
+            long seq;
+            boolean connected;
+            synchronized (this) {
+                seq = nextSeq;
+                connected = socket != null;
+            }
+            return "{\"address\": \"" + address.getHostString() + ":" + address.getPort() + "\", \"connected\": " + connected
+                + ", \"inSync\": " + inSync + ", \"lag\": " + Math.max(0, seq - acked.get()) + "}";
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package Helpers;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The latency histograms and response counters of a service, served on GET /metrics in the
+ * Prometheus text format. A timer is a histogram plus a counter per status code for one set of
+ * labels, e.g. one route of the service or one backend of ISCS. Looking a timer up is a read of
+ * a ConcurrentHashMap and recording into it is lock-free, so timing every request is cheap.
+ * The percentiles cover everything since the service started.
+ * @author Agnibha Misra
+ */
+public class Metrics {
+    private static final Metrics SHARED = new Metrics();
+    // quantiles reported for every timer
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+    // a family with more timers than this puts new label sets together, e.g. routes of bad paths
+    private static final int MAX_TIMERS = 500;
+
+    // families by name
+    private final Map<String, Family> families = new ConcurrentHashMap<>();
+
+    /**
+     * @return the metrics of this process
+     */
+    public static Metrics shared() {
+        return SHARED;
+    }
+
+    /**
+     * Finds or creates a timer.
+     * @param name the metric name, e.g. "http_server_requests"
+     * @param help the description of the metric
+     * @param labels the labels in Prometheus form, e.g. route="/user/{id}",method="GET"
+     * @return the timer
+     */
+    public Timer timer(String name, String help, String labels) {
+        Family family = families.get(name);
+        if (family == null) {
+            family = families.computeIfAbsent(name, key -> new Family(help));
+        }
+        Timer timer = family.timers.get(labels);
+        if (timer != null) {
+            return timer;
+        }
+        if (family.timers.size() >= MAX_TIMERS) {
+            return family.timers.computeIfAbsent("overflow=\"true\"", key -> new Timer());
+        }
+        return family.timers.computeIfAbsent(labels, key -> new Timer());
+    }
+
+    /**
+     * Times every request of a context as http_server_requests, by route, method and status code.
+     * A request is timed from when the handler gets it until its response headers are sent.
+     * @param context the context
+     */
+    public void instrument(HttpContext context) {
+        context.getFilters().add(new Filter() {
+            @Override
+            public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+                chain.doFilter(new TimedExchange(exchange, System.nanoTime()));
+            }
+
+            @Override
+            public String description() {
+                return "request metrics";
+            }
+        });
+    }
+
+    /**
+     * Serves GET /metrics on a server, and times the requests of its contexts created so far.
+     * @param server the server
+     * @param contexts the contexts of the server to time
+     */
+    public void serve(HttpServer server, HttpContext... contexts) {
+        for (HttpContext context : contexts) {
+            instrument(context);
+        }
+        server.createContext("/metrics", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            byte[] bytes = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(bytes);
+            os.close();
+        });
+    }
+
+    /**
+     * Turns a request path into the route it is counted under: path segments that are numbers
+     * become {id}, so /user/17 and /user/18 are both /user/{id}.
+     * @param path the request path
+     * @return the route
+     */
+    public static String route(String path) {
+        StringBuilder route = new StringBuilder(path.length());
+        int start = 0;
+        while (start < path.length()) {
+            int end = path.indexOf('/', start + 1);
+            if (end < 0) {
+                end = path.length();
+            }
+            String segment = path.substring(start, end);
+            route.append(isNumber(segment) ? "/{id}" : segment);
+            start = end;
+        }
+        return route.length() == 0 ? "/" : route.toString();
+    }
+
+    /**
+     * @param segment a path segment with its leading slash
+     * @return whether the rest of it is a whole number
+     */
+    private static boolean isNumber(String segment) {
+        int start = segment.startsWith("/-") ? 2 : 1;
+        if (segment.length() <= start) {
+            return false;
+        }
+        for (int i = start; i < segment.length(); i++) {
+            if (!Character.isDigit(segment.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param value a label value
+     * @return the value escaped for the Prometheus text format
+     */
+    public static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * @return every metric in the Prometheus text format; each timer is a summary in seconds
+     * with its quantiles, count and sum, and a counter of responses by status code
+     */
+    public String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        // sorted so that the output is stable
+        for (Map.Entry<String, Family> entry : new TreeMap<>(families).entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            Map<String, Timer> timers = new TreeMap<>(family.timers);
+            out.append("# HELP ").append(name).append("_seconds ").append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append("_seconds summary\n");
+            for (Map.Entry<String, Timer> timer : timers.entrySet()) {
+                String labels = timer.getKey();
+                LatencyHistogram histogram = timer.getValue().histogram;
+                for (double quantile : QUANTILES) {
+                    out.append(name).append("_seconds{").append(labels).append(",quantile=\"").append(quantile).append("\"} ")
+                        .append(histogram.percentileMicros(quantile) / 1e6).append('\n');
+                }
+                out.append(name).append("_seconds_count{").append(labels).append("} ").append(histogram.count()).append('\n');
+                out.append(name).append("_seconds_sum{").append(labels).append("} ").append(histogram.sumNanos() / 1e9).append('\n');
+            }
+            out.append("# HELP ").append(name).append("_total ").append(family.help).append(", by status code\n");
+            out.append("# TYPE ").append(name).append("_total counter\n");
+            for (Map.Entry<String, Timer> timer : timers.entrySet()) {
+                for (Map.Entry<String, LongAdder> code : timer.getValue().codes.entrySet()) {
+                    out.append(name).append("_total{").append(timer.getKey()).append(",code=\"").append(code.getKey()).append("\"} ")
+                        .append(code.getValue().sum()).append('\n');
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * The timers of one metric name.
+     */
+    private static class Family {
+        private final String help;
+        private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+        private Family(String help) {
+            this.help = help;
+        }
+    }
+
+    /**
+     * A latency histogram and a counter per status code for one set of labels.
+     */
+    public static class Timer {
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private final Map<String, LongAdder> codes = new ConcurrentHashMap<>();
+
+        /**
+         * Records a request.
+         * @param code the status code, or -1 if there was no answer
+         * @param nanos how long the request took
+         */
+        public void record(int code, long nanos) {
+            histogram.record(nanos);
+            String key = code < 0 ? "error" : Integer.toString(code);
+            LongAdder counter = codes.get(key);
+            if (counter == null) {
+                counter = codes.computeIfAbsent(key, k -> new LongAdder());
+            }
+            counter.increment();
+        }
+    }
+
+    /**
+     * Records the request when the handler sends the response headers.
+     */
+    private class TimedExchange extends ForwardingExchange {
+        private final long start;
+
+        private TimedExchange(HttpExchange exchange, long start) {
+            super(exchange);
+            this.start = start;
+        }
+
+        @Override
+        public void sendResponseHeaders(int code, long length) throws IOException {
+            exchange.sendResponseHeaders(code, length);
+            String labels = "route=\"" + escape(route(exchange.getRequestURI().getPath())) + "\",method=\"" + escape(exchange.getRequestMethod()) + "\"";
+            timer("http_server_requests", "Requests handled by this service", labels).record(code, System.nanoTime() - start);
+        }
+    }
+}
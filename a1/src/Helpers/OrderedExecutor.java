@@ -0,0 +1,195 @@
+package Helpers;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Runs tasks concurrently on a backing executor while keeping every task submitted
+ * under the same key in submission order. Keys are hashed onto a fixed number of lanes
+ * and each lane runs at most one task at a time, so two commands for the same id can
+ * never overtake each other but commands for different ids proceed in parallel.
+ * @author Agnibha Misra
+ */
+public class OrderedExecutor {
+    // max tasks a lane runs before giving its thread back to other lanes
+    private static final int DRAIN_LIMIT = 32;
+
+    private final Executor executor;
+    private final Lane[] lanes;
+
+    /**
+     * Creates an ordered executor on top of the given executor.
+     * @param executor the executor that actually runs the lanes
+     * @param laneCount number of independent lanes keys are hashed onto
+     */
+    public OrderedExecutor(Executor executor, int laneCount) {
+        this.executor = executor;
+        this.lanes = new Lane[Math.max(1, laneCount)];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane();
+        }
+    }
+
+    /**
+     * Builds the ordered executor for a service from its section of config.json.
+     * Recognised keys are "executor" (virtual, pool or none), "threads" and "lanes".
+     * @param config the config file json data
+     * @param service the service name
+     * @return the ordered executor for that service
+     */
+    public static OrderedExecutor fromConfig(String config, String service) {
+        String mode = Helpers.getConfigValue(config, service, "executor");
+        int threads = Helpers.getConfigInt(config, service, "threads", Runtime.getRuntime().availableProcessors() * 4);
+        int lanes = Helpers.getConfigInt(config, service, "lanes", 256);
+        return new OrderedExecutor(createExecutor(mode == null ? "virtual" : mode, threads), lanes);
+    }
+
+    /**
+     * Creates the backing executor for a mode.
+     * "virtual" starts a virtual thread per task when the JVM supports it (Java 21+) and
+     * falls back to the bounded pool otherwise, "pool" is a fixed number of platform threads,
+     * and "none" runs everything on the calling thread.
+     * @param mode the executor mode
+     * @param threads the size of the platform pool
+     * @return the executor
+     */
+    public static Executor createExecutor(String mode, int threads) {
+        if (mode.equalsIgnoreCase("none")) {
+            return Runnable::run;
+        }
+        if (mode.equalsIgnoreCase("virtual")) {
+            try {
+                // looked up reflectively so the code still compiles and runs on Java 17
+                return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("Virtual threads unavailable, using a pool of " + threads + " threads");
+            }
+        }
+        // a lane is queued at most once, so the pool queue never holds more entries than there are lanes
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Queues a task behind every earlier task submitted with the same key.
+     * @param key the ordering key, usually the user or product id
+     * @param task the task to run
+     */
+    public void execute(int key, Runnable task) {
+        lanes[Math.floorMod(key * 0x9E3779B9, lanes.length)].add(task);
+    }
+
+    /**
+     * Runs a task once every task submitted before it has run, whatever its key, and before
+     * any task submitted after it. Lanes that reach the barrier first wait for the others
+     * without holding a thread. Submitters must not race with the barrier call itself, e.g.
+     * it is called from the one dispatcher thread that also submits the requests.
+     * @param task the task
+     * @param <R> the result type
+     * @return completes with the task's result after it has run, exceptionally if it threw
+     */
+    public <R> CompletableFuture<R> barrier(Supplier<R> task) {
+        Barrier<R> barrier = new Barrier<>(task);
+        for (Lane lane : lanes) {
+            lane.add(barrier);
+        }
+        return barrier.done;
+    }
+
+    /**
+     * A task queued in every lane. The last lane to reach it runs it and lets the others go on.
+     */
+    private class Barrier<R> implements Runnable {
+        private final Supplier<R> task;
+        private final CompletableFuture<R> done = new CompletableFuture<>();
+        private final List<Lane> parked = new ArrayList<>();
+        private int waiting = lanes.length;
+
+        Barrier(Supplier<R> task) {
+            this.task = task;
+        }
+
+        /**
+         * @param lane the lane that reached the barrier
+         * @return true if the lane may go on, false if it has to stop until the barrier is passed
+         */
+        boolean arrive(Lane lane) {
+            synchronized (this) {
+                if (--waiting > 0) {
+                    parked.add(lane);
+                    return false;
+                }
+            }
+            try {
+                done.complete(task.get());
+            } catch (RuntimeException e) {
+                done.completeExceptionally(e);
+            }
+            // the parked lanes are still marked as scheduled, so this is their only wake up
+            for (Lane other : parked) {
+                executor.execute(other);
+            }
+            return true;
+        }
+
+        @Override
+        public void run() {
+            // handled by the lanes, see Lane.run
+        }
+    }
+
+    /**
+     * A serial queue of tasks. Only one thread drains a lane at a time.
+     */
+    private class Lane implements Runnable {
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        private boolean scheduled;
+
+        void add(Runnable task) {
+            synchronized (this) {
+                tasks.add(task);
+                if (scheduled) {
+                    return;
+                }
+                scheduled = true;
+            }
+            executor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < DRAIN_LIMIT; i++) {
+                Runnable task;
+                synchronized (this) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        scheduled = false;
+                        return;
+                    }
+                }
+                if (task instanceof Barrier) {
+                    if (!((Barrier<?>) task).arrive(this)) {
+                        return;
+                    }
+                    continue;
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+            // still work left, go to the back of the executor's queue so other lanes get a turn
+            executor.execute(this);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package Helpers;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * The records of a service in memory, kept durable by a write-ahead log. The records are held
+ * in an IntRecordMap, so looking one up by id does not box the id.
+ * Every change is applied to the map and appended to the log; the caller acknowledges it once
+ * the returned future completes. The map is replaced as a whole when the data is wiped, so
+ * a wipe takes the same time however many records there are.
+ * A primary with backups also ships every change to them, see LogShipper.
+ * @param <T> the record type
+ * @author Agnibha Misra
+ */
+public class RecordStore<T> {
+    private final WriteAheadLog log;
+    private final Function<T, byte[]> encoder;
+    // swapped for an empty map by wipe
+    private volatile IntRecordMap<T> records = new IntRecordMap<>();
+    // streams every change to the backups when this is a primary with backups
+    private volatile LogShipper shipper;
+
+    /**
+     * Turns a log entry back into a record.
+     * @param <T> the record type
+     */
+    public interface Decoder<T> {
+        /**
+         * @param id the record id
+         * @param data the data written by the encoder
+         * @return the record
+         */
+        T decode(int id, byte[] data);
+    }
+
+    private RecordStore(WriteAheadLog log, Function<T, byte[]> encoder) {
+        this.log = log;
+        this.encoder = encoder;
+    }
+
+    /**
+     * Opens the store of a service, recovering its records from the snapshot and log, and
+     * schedules snapshots as configured by "snapshotIntervalMillis" and "snapshotMinEntries".
+     * @param config the config file json data
+     * @param service the service name
+     * @param port the port of this instance, so instances on one machine keep separate data
+     * @param encoder turns a record into bytes for the log
+     * @param decoder turns the id and bytes of a log entry back into a record
+     * @param <T> the record type
+     * @return the store
+     * @throws IOException if the data cannot be read
+     */
+    public static <T> RecordStore<T> open(String config, String service, int port, Function<T, byte[]> encoder,
+                                          Decoder<T> decoder) throws IOException {
+        long start = System.nanoTime();
+        RecordStore<T> store = new RecordStore<>(WriteAheadLog.fromConfig(config, service, port), encoder);
+        IntRecordMap<T> records = store.records;
+        long entries = store.log.recover((op, id, data) -> {
+            if (op == WriteAheadLog.PUT) {
+                records.put(id, decoder.decode(id, data));
+            } else {
+                records.remove(id);
+            }
+        });
+        System.out.println("Recovered " + records.size() + " records from " + entries + " snapshot records and log entries in "
+            + (System.nanoTime() - start) / 1_000_000 + " ms");
+
+        // snapshots keep the log, and with it the next recovery, short
+        int interval = Helpers.getConfigInt(config, service, "snapshotIntervalMillis", 10000);
+        int minEntries = Helpers.getConfigInt(config, service, "snapshotMinEntries", 10000);
+        store.scheduleSnapshots(interval, minEntries);
+        return store;
+    }
+
+    /**
+     * @param id the record id
+     * @return the record, or null if there is none
+     */
+    public T get(int id) {
+        return records.get(id);
+    }
+
+    /**
+     * @param id the record id
+     * @return whether there is a record with the id
+     */
+    public boolean containsKey(int id) {
+        return records.containsKey(id);
+    }
+
+    /**
+     * @return the number of records
+     */
+    public int size() {
+        return records.size();
+    }
+
+    /**
+     * Calls the visitor for every record, see IntRecordMap.forEach.
+     * @param visitor receives the records
+     */
+    public void forEach(IntRecordMap.Visitor<T> visitor) {
+        records.forEach(visitor);
+    }
+
+    /**
+     * Calls the visitor for every record in its logged form, see IntRecordMap.forEach.
+     * @param visitor receives the ids and the data the encoder makes of the records
+     */
+    public void forEachEncoded(IntRecordMap.Visitor<byte[]> visitor) {
+        records.forEach((id, record) -> visitor.accept(id, encoder.apply(record)));
+    }
+
+    /**
+     * Ships every later change to the backups of the shipper as well.
+     * @param shipper the shipper
+     */
+    void shipTo(LogShipper shipper) {
+        this.shipper = shipper;
+    }
+
+    /**
+     * Stores a record and logs the change.
+     * @param id the record id
+     * @param record the new record
+     * @return completes when the log entry is durable, and in sync replication once the backups have it too
+     */
+    public CompletableFuture<Void> put(int id, T record) {
+        records.put(id, record);
+        return append(WriteAheadLog.PUT, id, encoder.apply(record));
+    }
+
+    /**
+     * Stores a record only if the current one is still the expected one, and logs the change.
+     * Of several callers replacing the same record, exactly one succeeds.
+     * @param id the record id
+     * @param expected the record the caller read with get
+     * @param record the new record
+     * @return completes when the log entry is durable, or null if the record had changed
+     */
+    public CompletableFuture<Void> replace(int id, T expected, T record) {
+        if (!records.replace(id, expected, record)) {
+            return null;
+        }
+        return append(WriteAheadLog.PUT, id, encoder.apply(record));
+    }
+
+    /**
+     * Removes a record and logs the change.
+     * @param id the record id
+     * @return completes when the log entry is durable
+     */
+    public CompletableFuture<Void> remove(int id) {
+        records.remove(id);
+        return append(WriteAheadLog.DELETE, id, new byte[0]);
+    }
+
+    /**
+     * Logs a change that has been applied to the map, and ships it if there are backups.
+     */
+    private CompletableFuture<Void> append(byte op, int id, byte[] data) {
+        CompletableFuture<Void> logged = log.append(op, id, data);
+        LogShipper current = shipper;
+        return current == null ? logged : current.ship(op, id, data, logged);
+    }
+
+    /**
+     * Drops every record by switching to an empty map and a new log generation. No change may
+     * be in progress, run it as an OrderedExecutor barrier.
+     * @return completes when the empty generation is the one that will be recovered
+     */
+    public synchronized CompletableFuture<Void> wipe() {
+        records = new IntRecordMap<>();
+        CompletableFuture<Void> durable = log.newGeneration();
+        LogShipper current = shipper;
+        return current == null ? durable : current.ship(LogShipper.RESET, 0, new byte[0], durable);
+    }
+
+    /**
+     * Flushes the log and closes it, later changes fail. No change may be in progress.
+     * @return completes when every logged change is durable
+     */
+    public CompletableFuture<Void> close() {
+        return log.close();
+    }
+
+    /**
+     * Writes a snapshot of the records and deletes the log segments it replaces.
+     * @throws IOException if the snapshot cannot be written
+     */
+    public void snapshot() throws IOException {
+        // the map and the position in the log must belong to the same generation
+        IntRecordMap<T> current;
+        CompletableFuture<long[]> position;
+        synchronized (this) {
+            current = records;
+            position = log.rotate();
+        }
+        log.writeSnapshot(position.join(), current, encoder);
+    }
+
+    /**
+     * @return the log counters as a JSON object
+     */
+    public String stats() {
+        return log.stats();
+    }
+
+    /**
+     * @return the replication counters as a JSON object, or null if this store has no backups
+     */
+    public String replicationStats() {
+        LogShipper current = shipper;
+        return current == null ? null : current.stats();
+    }
+
+    /**
+     * Takes a snapshot every interval once enough entries have been appended since the last one.
+     */
+    private void scheduleSnapshots(int intervalMillis, int minEntries) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "wal-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            if (log.sinceSnapshot() < minEntries) {
+                return;
+            }
+            try {
+                snapshot();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+}
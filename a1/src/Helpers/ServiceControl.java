@@ -0,0 +1,117 @@
+package Helpers;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The wipe, shutdown and health commands of a service that keeps its records in a RecordStore.
+ * POST {prefix}/wipe drops every record: it waits for the requests before it, then the store
+ * switches to an empty generation while the old files are deleted in the background.
+ * POST {prefix}/shutdown stops taking requests, waits for the ones in progress, flushes the
+ * log and exits. Neither rewrites the data, so both take the same time however much there is.
+ * GET {prefix}/health answers 200 while the service takes requests, it is what ISCS probes.
+ * Both must be handled on the thread that queues the other requests, so that the requests
+ * queued before them are exactly the ones they wait for.
+ * @author Agnibha Misra
+ */
+public class ServiceControl {
+    private static final byte[] EMPTY = "{}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] INTERNAL_ERROR = "{\"status\": \"Internal Error\"}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SHUTTING_DOWN = "{\"status\": \"Shutting down\"}".getBytes(StandardCharsets.UTF_8);
+
+    private final HttpServer server;
+    private final OrderedExecutor executor;
+    private final RecordStore<?> store;
+    private final String prefix;
+    // set by shutdown, later requests are turned away
+    private volatile boolean stopping;
+
+    /**
+     * @param server the service's server, stopped by shutdown
+     * @param executor the executor that runs the service's requests
+     * @param store the service's records
+     * @param prefix the path the commands are under, e.g. "/user"
+     */
+    public ServiceControl(HttpServer server, OrderedExecutor executor, RecordStore<?> store, String prefix) {
+        this.server = server;
+        this.executor = executor;
+        this.store = store;
+        this.prefix = prefix;
+    }
+
+    /**
+     * Answers the request if it is a wipe, shutdown or health check, or if the service is shutting down.
+     * @param exchange the request
+     * @param method the request method
+     * @param path the request path
+     * @return true if the request was answered here
+     */
+    public boolean handle(HttpExchange exchange, String method, String path) {
+        if (stopping) {
+            send(exchange, 503, SHUTTING_DOWN);
+            return true;
+        }
+        if (method.equalsIgnoreCase("get") && path.equals(prefix + "/health")) {
+            send(exchange, 200, EMPTY);
+            return true;
+        }
+        if (!method.equalsIgnoreCase("post")) {
+            return false;
+        }
+        if (path.equals(prefix + "/wipe")) {
+            wipe(exchange);
+            return true;
+        }
+        if (path.equals(prefix + "/shutdown")) {
+            shutdown(exchange);
+            return true;
+        }
+        return false;
+    }
+
+    private void wipe(HttpExchange exchange) {
+        executor.barrier(store::wipe)
+            .thenCompose(durable -> durable)
+            .whenComplete((done, error) -> reply(exchange, error));
+    }
+
+    private void shutdown(HttpExchange exchange) {
+        stopping = true;
+        // every request queued so far has run once the barrier passes, and their changes
+        // are acknowledged by the time the log is closed
+        executor.barrier(() -> null)
+            .thenCompose(drained -> store.close())
+            .whenComplete((done, error) -> {
+                reply(exchange, error);
+                // stop waits for the dispatcher thread, so it cannot run on a request's thread
+                Thread exit = new Thread(() -> {
+                    server.stop(1);
+                    System.exit(error == null ? 0 : 1);
+                }, "shutdown");
+                exit.start();
+            });
+    }
+
+    private void reply(HttpExchange exchange, Throwable error) {
+        if (error != null) {
+            error.printStackTrace();
+        }
+        send(exchange, error == null ? 200 : 500, error == null ? EMPTY : INTERNAL_ERROR);
+    }
+
+    private void send(HttpExchange exchange, int code, byte[] bytes) {
+        try {
+            exchange.sendResponseHeaders(code, bytes.length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(bytes);
+            os.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            exchange.close();
+        }
+    }
+}
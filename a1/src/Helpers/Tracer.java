@@ -0,0 +1,384 @@
+package Helpers;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.BufferedWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Follows a request through the services. OrderService starts a trace for a sample of the
+ * requests it gets, or for any request that comes with an X-Trace-Id header, and the id travels
+ * on every request that Helpers.requestSend makes for it, to ISCS and on to the user and product
+ * instances. Each service records spans for the stages of the request, such as waiting in a
+ * queue, parsing the body, calling another service and writing the answer, to a trace file of its
+ * own. The trace files of all the services are put together by Tools.TraceReport.
+ * <p>
+ * A span is one line of tab separated fields: trace id, span id, parent span id (0 for the root),
+ * service, stage, detail, start in microseconds since the epoch, duration in microseconds and
+ * outcome. Lines are queued and written by a background thread every few milliseconds, so a
+ * request never waits on the file; when the queue is full spans are dropped.
+ * @author Agnibha Misra
+ */
+public class Tracer {
+    /** The header with the trace id, in hex. A request that has it is traced. */
+    public static final String TRACE_HEADER = "X-Trace-Id";
+    /** The header with the id of the span that sent the request, in hex. */
+    public static final String PARENT_HEADER = "X-Parent-Span-Id";
+
+    private static final Tracer SHARED = new Tracer();
+    // the span of the request the thread is working on, read by Helpers.requestSend
+    private static final ThreadLocal<Span> CURRENT = new ThreadLocal<>();
+    // when the executor of the server was given the request the thread runs next, 0 if not known
+    private static final ThreadLocal<long[]> QUEUED = ThreadLocal.withInitial(() -> new long[1]);
+    // spans waiting for the writer
+    private static final int QUEUE_SIZE = 65536;
+    // how often the writer takes the queued spans, it is not woken for every span
+    private static final int FLUSH_MILLIS = 10;
+    // System.nanoTime() / 1000 plus this is microseconds since the epoch, so the spans of services on one machine line up
+    private static final long EPOCH_OFFSET_MICROS;
+
+    static {
+        Instant now = Instant.now();
+        EPOCH_OFFSET_MICROS = now.getEpochSecond() * 1_000_000 + now.getNano() / 1000 - System.nanoTime() / 1000;
+    }
+
+    private volatile String service = "unknown";
+    private volatile Path file;
+    private volatile int samplePercent;
+    private final BlockingQueue<String> pending = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final AtomicBoolean overflowed = new AtomicBoolean();
+    // started with the first span, so services that are never traced leave no file behind
+    private volatile Thread writer;
+    private BufferedWriter out;
+
+    /**
+     * @return the tracer of this process
+     */
+    public static Tracer shared() {
+        return SHARED;
+    }
+
+    /**
+     * Sets up the tracer from the "traceDir" and "traceSamplePercent" settings of a service.
+     * The spans go to traceDir/service-port.trace. traceSamplePercent is how many of the requests
+     * without a trace id get one, and only matters where requests come in from outside.
+     * @param config the config file json data
+     * @param service the service name
+     * @param port the port of this instance, so instances on one machine keep separate files
+     */
+    public void open(String config, String service, int port) {
+        String dir = Helpers.getConfigValue(config, service, "traceDir");
+        this.file = Path.of(dir == null ? "traces" : dir, service + "-" + port + ".trace");
+        this.samplePercent = Helpers.getConfigInt(config, service, "traceSamplePercent", 0);
+        this.service = service;
+    }
+
+    /**
+     * Traces the requests of a context that have a trace id, and starts a trace for a sample of
+     * the others if they come from outside. The span of a request covers the time it waited for
+     * a thread, if the server's executor went through timeQueue, until its response is closed.
+     * @param context the context
+     * @param root whether requests of the context come from outside, so traces may start here
+     */
+    public void instrument(HttpContext context, boolean root) {
+        context.getFilters().add(new Filter() {
+            @Override
+            public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+                long[] queued = QUEUED.get();
+                long waited = queued[0];
+                queued[0] = 0;
+                Span span = begin(exchange, root, waited != 0 ? waited : System.nanoTime());
+                if (span == null) {
+                    chain.doFilter(exchange);
+                    return;
+                }
+                if (waited != 0) {
+                    span.stage("queue", waited);
+                }
+                exchange.getResponseHeaders().set(TRACE_HEADER, Long.toHexString(span.traceId));
+                Span previous = CURRENT.get();
+                CURRENT.set(span);
+                try {
+                    chain.doFilter(new TracedExchange(exchange, span));
+                } finally {
+                    CURRENT.set(previous);
+                }
+            }
+
+            @Override
+            public String description() {
+                return "request tracing";
+            }
+        });
+    }
+
+    /**
+     * Starts the span of a request.
+     * @return the span, or null if the request is not traced
+     */
+    private Span begin(HttpExchange exchange, boolean root, long start) {
+        long traceId;
+        long parent = 0;
+        String trace = exchange.getRequestHeaders().getFirst(TRACE_HEADER);
+        if (trace != null) {
+            try {
+                traceId = Long.parseUnsignedLong(trace, 16);
+                String parentSpan = exchange.getRequestHeaders().getFirst(PARENT_HEADER);
+                if (parentSpan != null) {
+                    parent = Long.parseUnsignedLong(parentSpan, 16);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        } else if (root && samplePercent > 0 && ThreadLocalRandom.current().nextInt(100) < samplePercent) {
+            traceId = newId();
+        } else {
+            return null;
+        }
+        String detail = exchange.getRequestMethod() + " " + Metrics.route(exchange.getRequestURI().getPath());
+        return new Span(this, traceId, parent, "request", detail, start);
+    }
+
+    /**
+     * Wraps the executor of a server so that requests traced by instrument get a span for the
+     * time they waited for a thread.
+     * @param executor the executor
+     * @return the executor to give the server
+     */
+    public static Executor timeQueue(Executor executor) {
+        return task -> {
+            long queued = System.nanoTime();
+            executor.execute(() -> {
+                QUEUED.get()[0] = queued;
+                task.run();
+            });
+        };
+    }
+
+    /**
+     * @return the span of the request the thread is working on, or null if it is not traced
+     */
+    public static Span current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Makes a span the current one of the thread, for work done on another thread for a request.
+     * @param span the span, may be null
+     * @return the span that was current before, to put back when the work is done
+     */
+    public static Span resume(Span span) {
+        Span previous = CURRENT.get();
+        CURRENT.set(span);
+        return previous;
+    }
+
+    /**
+     * Records a stage of a request that ends now, if the request is traced.
+     * @param exchange the request
+     * @param stage the stage, e.g. "parse"
+     * @param startNanos when the stage started, from System.nanoTime()
+     */
+    public static void stage(HttpExchange exchange, String stage, long startNanos) {
+        // the span is found through the wrappers of the filters, exchange attributes are shared
+        // by all the requests of a context on Java 17
+        while (exchange instanceof ForwardingExchange) {
+            if (exchange instanceof TracedExchange) {
+                ((TracedExchange) exchange).span.stage(stage, startNanos);
+                return;
+            }
+            exchange = ((ForwardingExchange) exchange).exchange;
+        }
+    }
+
+    private static long newId() {
+        long id;
+        do {
+            id = ThreadLocalRandom.current().nextLong();
+        } while (id == 0);
+        return id;
+    }
+
+    /**
+     * Queues a span for the writer.
+     */
+    private void write(long traceId, long id, long parent, String stage, String detail, long startNanos, long endNanos, String outcome) {
+        String line = Long.toHexString(traceId) + '\t' + Long.toHexString(id) + '\t' + Long.toHexString(parent) + '\t'
+            + service + '\t' + stage + '\t' + detail.replace('\t', ' ').replace('\n', ' ') + '\t'
+            + (startNanos / 1000 + EPOCH_OFFSET_MICROS) + '\t' + Math.max(0, (endNanos - startNanos) / 1000) + '\t' + outcome + '\n';
+        if (!pending.offer(line) && overflowed.compareAndSet(false, true)) {
+            System.err.println("Trace queue full, spans are being dropped");
+        }
+        if (writer == null) {
+            startWriter();
+        }
+    }
+
+    private synchronized void startWriter() {
+        if (writer != null || file == null) {
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            List<String> lines = new ArrayList<>();
+            while (true) {
+                try {
+                    Thread.sleep(FLUSH_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                pending.drainTo(lines);
+                writeLines(lines);
+                lines.clear();
+            }
+        }, "trace-writer");
+        thread.setDaemon(true);
+        thread.start();
+        // the spans of the last requests before a shutdown still make it to the file
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            List<String> lines = new ArrayList<>();
+            pending.drainTo(lines);
+            writeLines(lines);
+        }, "trace-flush"));
+        writer = thread;
+    }
+
+    /**
+     * Appends spans to the file and flushes it.
+     */
+    private synchronized void writeLines(List<String> lines) {
+        if (lines.isEmpty()) {
+            return;
+        }
+        try {
+            if (out == null) {
+                Files.createDirectories(file.getParent());
+                out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            for (String line : lines) {
+                out.write(line);
+            }
+            out.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * One stage of a traced request, with the ids that tie it to the rest of the trace.
+     */
+    public static final class Span {
+        private final Tracer tracer;
+        private final long traceId;
+        private final long id = newId();
+        private final long parent;
+        private final String stage;
+        private final String detail;
+        private final long start;
+        private final AtomicBoolean ended = new AtomicBoolean();
+
+        private Span(Tracer tracer, long traceId, long parent, String stage, String detail, long start) {
+            this.tracer = tracer;
+            this.traceId = traceId;
+            this.parent = parent;
+            this.stage = stage;
+            this.detail = detail;
+            this.start = start;
+        }
+
+        /**
+         * Starts a span inside this one, e.g. a call to another service.
+         * @param stage the stage, e.g. "upstream"
+         * @param detail what the stage is about, e.g. the method and URL called
+         * @return the span, ended with end
+         */
+        public Span child(String stage, String detail) {
+            return new Span(tracer, traceId, id, stage, detail, System.nanoTime());
+        }
+
+        /**
+         * @return the headers that carry the trace to a request sent for this span
+         */
+        public Map<String, String> headers() {
+            return Map.of(TRACE_HEADER, Long.toHexString(traceId), PARENT_HEADER, Long.toHexString(id));
+        }
+
+        /**
+         * Records a stage inside this span that ends now.
+         * @param stage the stage, e.g. "parse"
+         * @param startNanos when the stage started, from System.nanoTime()
+         */
+        public void stage(String stage, long startNanos) {
+            tracer.write(traceId, newId(), id, stage, "", startNanos, System.nanoTime(), "-");
+        }
+
+        /**
+         * Records the span, once; later calls do nothing.
+         * @param outcome how it ended, e.g. the status code of the answer or "error"
+         */
+        public void end(String outcome) {
+            if (ended.compareAndSet(false, true)) {
+                tracer.write(traceId, id, parent, stage, detail, start, System.nanoTime(), outcome);
+            }
+        }
+    }
+
+    /**
+     * Ends the span of the request when its response is closed.
+     */
+    private static class TracedExchange extends ForwardingExchange {
+        private final Span span;
+        private volatile int code = -1;
+
+        private TracedExchange(HttpExchange exchange, Span span) {
+            super(exchange);
+            this.span = span;
+        }
+
+        @Override
+        public void sendResponseHeaders(int code, long length) throws IOException {
+            this.code = code;
+            exchange.sendResponseHeaders(code, length);
+        }
+
+        @Override
+        public OutputStream getResponseBody() {
+            return new FilterOutputStream(exchange.getResponseBody()) {
+                @Override
+                public void write(byte[] bytes, int offset, int length) throws IOException {
+                    out.write(bytes, offset, length);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        out.close();
+                    } finally {
+                        span.end(code < 0 ? "error" : Integer.toString(code));
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+            exchange.close();
+            span.end(code < 0 ? "error" : Integer.toString(code));
+        }
+    }
+}
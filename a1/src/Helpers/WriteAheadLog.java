@@ -0,0 +1,732 @@
+package Helpers;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only binary log of the changes made to a service's records, with snapshots that
+ * compact it, replayed on start up.
+ * Appends from all request threads are queued and written by a single writer thread, which
+ * takes everything queued since its last write as one group: one write and one fsync cover
+ * the whole group, and the futures of its appends complete once it is on disk.
+ * Every entry is [int length][int crc32][byte op][int id][data], so a torn write at the end
+ * of the file, e.g. after a crash, is detected on replay and cut off.
+ * <p>
+ * The files of a log live in a generation directory, name.G/, and name.current holds the
+ * number of the generation in use. Inside it the log is a series of segment files, N.wal.
+ * A snapshot first moves the log on to a new segment, then writes every record of the store
+ * to the snapshot file while requests carry on, and finally deletes the segments before the
+ * new one. Entries are whole records, so replaying the new segment over the snapshot gives
+ * the exact state even though records changed while it was being written.
+ * Wiping the data starts an empty generation by rewriting name.current, the old directory
+ * is deleted in the background.
+ * @author Agnibha Misra
+ */
+public class WriteAheadLog {
+    /**
+     * The entry stores the record's new data.
+     */
+    public static final byte PUT = 1;
+    /**
+     * The entry removes the record.
+     */
+    public static final byte DELETE = 2;
+
+    // entries written by one group at most, so one huge burst does not hold back every future
+    private static final int MAX_GROUP = 4096;
+    // length and crc in front of every entry
+    private static final int HEADER = 8;
+    // first bytes of a snapshot file, "SNAP"
+    private static final int SNAPSHOT_MAGIC = 0x534E4150;
+
+    /**
+     * When a group is forced to disk.
+     */
+    public enum SyncPolicy {
+        /** fsync every group as soon as it is written */
+        BATCH,
+        /** wait up to the sync interval to let a group grow, then write and fsync it */
+        INTERVAL,
+        /** write without fsync, the OS decides when the data reaches the disk (not durable) */
+        NONE;
+
+        /**
+         * @param name "batch", "interval" or "none", null for the default
+         * @return the policy, BATCH when the name is not known
+         */
+        public static SyncPolicy parse(String name) {
+            if ("interval".equalsIgnoreCase(name)) {
+                return INTERVAL;
+            }
+            if ("none".equalsIgnoreCase(name)) {
+                return NONE;
+            }
+            return BATCH;
+        }
+    }
+
+    /**
+     * Receives the records of the snapshot and then the entries of the log during recovery,
+     * in the order they were appended.
+     */
+    public interface Replayer {
+        /**
+         * @param op PUT or DELETE
+         * @param id the record id
+         * @param data the record data, empty for DELETE
+         */
+        void apply(byte op, int id, byte[] data);
+    }
+
+    // kinds of queued items
+    private static final int ENTRY = 0;
+    private static final int ROTATE = 1;
+    private static final int GENERATION = 2;
+    private static final int CLOSE = 3;
+
+    private final Path dir;
+    private final String name;
+    private final SyncPolicy policy;
+    private final long intervalNanos;
+    private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    // completes the futures of written groups
+    private final Executor completions = OrderedExecutor.createExecutor("virtual", 4);
+    // deletes the directories of old generations
+    private final Executor reclaimer = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "wal-reclaim");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // the segment being appended to, only the writer thread uses it after recover
+    private FileChannel channel;
+    private volatile long generation;
+    private volatile long segment;
+    private volatile boolean closed;
+    // reused by the writer thread for every group
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+    private long lastSync = System.nanoTime();
+
+    // log statistics
+    private final AtomicLong appends = new AtomicLong();
+    private final AtomicLong groups = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong sinceSnapshot = new AtomicLong();
+    private final AtomicLong snapshots = new AtomicLong();
+    private volatile long snapshotRecords;
+
+    /**
+     * Opens a log, creating its directory if needed. Call recover before appending.
+     * @param dir the directory of the log's generations
+     * @param name the name the generations start with, e.g. UserService-14005
+     * @param policy when groups are forced to disk
+     * @param intervalMillis how long INTERVAL lets a group grow
+     * @throws IOException if the directory cannot be created
+     */
+    public WriteAheadLog(Path dir, String name, SyncPolicy policy, int intervalMillis) throws IOException {
+        Files.createDirectories(dir);
+        this.dir = dir;
+        this.name = name;
+        this.policy = policy;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+
+        Thread writer = new Thread(this::writeLoop, "wal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Opens the log of a service as configured by its "dataDir", "syncPolicy" and "syncIntervalMillis" settings.
+     * @param config the config file json data
+     * @param service the service name
+     * @param port the port of this instance, so instances on one machine keep separate logs
+     * @return the log
+     * @throws IOException if the directory cannot be created
+     */
+    public static WriteAheadLog fromConfig(String config, String service, int port) throws IOException {
+        String dataDir = Helpers.getConfigValue(config, service, "dataDir");
+        SyncPolicy policy = SyncPolicy.parse(Helpers.getConfigValue(config, service, "syncPolicy"));
+        int interval = Helpers.getConfigInt(config, service, "syncIntervalMillis", 2);
+        return new WriteAheadLog(Path.of(dataDir == null ? "data" : dataDir), service + "-" + port, policy, interval);
+    }
+
+    /**
+     * Loads the snapshot, if there is one, and replays the log segments written after it.
+     * Both are memory mapped and read in place. An incomplete or corrupt entry ends the replay
+     * of its segment and is cut off, so appends continue after the last good entry.
+     * @param replayer receives the snapshot records as PUT entries, then the log entries
+     * @return the number of records and entries replayed
+     * @throws IOException if the files cannot be read, or the snapshot is damaged
+     */
+    public long recover(Replayer replayer) throws IOException {
+        generation = readGeneration();
+        Files.createDirectories(generationPath(generation));
+        // a wipe that was cut short may have left an older generation behind
+        for (long old : listGenerations()) {
+            if (old != generation) {
+                reclaimer.execute(() -> reclaim(old));
+            }
+        }
+
+        long first = loadSnapshot(replayer);
+        long replayed = snapshotRecords;
+
+        List<Long> segments = listSegments();
+        long last = first;
+        for (long seq : segments) {
+            if (seq < first) {
+                // already in the snapshot, left over from a compaction that did not finish
+                Files.delete(segmentPath(seq));
+                continue;
+            }
+            replayed += replaySegment(seq, replayer);
+            last = seq;
+        }
+
+        // continue appending to the newest segment
+        segment = last;
+        channel = FileChannel.open(segmentPath(last), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        syncDirectory(generationPath(generation));
+        if (!Files.exists(currentPath())) {
+            writeGeneration(generation);
+        }
+        return replayed;
+    }
+
+    /**
+     * Queues an entry for the next group.
+     * @param op PUT or DELETE
+     * @param id the record id
+     * @param data the record data, empty for DELETE
+     * @return a future completed once the entry is written (and forced to disk unless the policy is NONE)
+     */
+    public CompletableFuture<Void> append(byte op, int id, byte[] data) {
+        if (closed) {
+            return CompletableFuture.failedFuture(new IOException("The log is closed"));
+        }
+        // the entry is built and checksummed here so the writer thread only copies bytes
+        ByteBuffer entry = ByteBuffer.allocate(HEADER + 5 + data.length);
+        entry.putInt(5 + data.length).putInt(0).put(op).putInt(id).put(data);
+        CRC32 crc = new CRC32();
+        crc.update(entry.array(), HEADER, 5 + data.length);
+        entry.putInt(4, (int) crc.getValue());
+
+        Pending pending = new Pending(ENTRY, entry.array());
+        sinceSnapshot.incrementAndGet();
+        queue.add(pending);
+        return pending.done;
+    }
+
+    /**
+     * Moves the log on to a new segment, the first step of a snapshot. Every entry queued before
+     * the call stays in the old segments, so its change must already be in the store given to
+     * writeSnapshot, and every later entry is in the new segment.
+     * @return completes with {generation, first segment} to pass to writeSnapshot
+     */
+    public CompletableFuture<long[]> rotate() {
+        Pending rotation = new Pending(ROTATE, null);
+        sinceSnapshot.set(0);
+        queue.add(rotation);
+        return rotation.done.thenApply(done -> new long[] {rotation.generation, rotation.segment});
+    }
+
+    /**
+     * Writes a snapshot of a store and deletes the log segments it replaces. Requests are not
+     * held up: the store is read while it keeps changing, and the segment from rotate covers the changes.
+     * @param position the result of rotate
+     * @param records the store, whose changes are all appended to this log
+     * @param encoder turns a record into the data of its PUT entries
+     * @param <T> the record type
+     * @throws IOException if the snapshot cannot be written, the old segments are then kept
+     */
+    public synchronized <T> void writeSnapshot(long[] position, IntRecordMap<T> records, Function<T, byte[]> encoder) throws IOException {
+        long snapshotGeneration = position[0];
+        long first = position[1];
+        if (snapshotGeneration != generation) {
+            // the data was wiped in the meantime
+            return;
+        }
+
+        Path temporary = generationPath(snapshotGeneration).resolve("snapshot.tmp");
+        long count;
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            SnapshotOutput snapshot = new SnapshotOutput(out, first);
+            try {
+                records.forEach((id, record) -> snapshot.add(id, encoder.apply(record)));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            count = snapshot.finish();
+        }
+        Files.move(temporary, snapshotPath(snapshotGeneration), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory(generationPath(snapshotGeneration));
+
+        for (long seq : listSegments(snapshotGeneration)) {
+            if (seq < first) {
+                Files.delete(segmentPath(snapshotGeneration, seq));
+            }
+        }
+        snapshotRecords = count;
+        snapshots.incrementAndGet();
+    }
+
+    /**
+     * Switches to a new, empty generation. Entries queued before the call belong to the old
+     * generation, which is deleted in the background; the time taken does not depend on how
+     * much data it holds.
+     * @return completes once the new generation is the one that will be recovered
+     */
+    public CompletableFuture<Void> newGeneration() {
+        Pending switchover = new Pending(GENERATION, null);
+        sinceSnapshot.set(0);
+        queue.add(switchover);
+        return switchover.done;
+    }
+
+    /**
+     * Writes and forces everything queued so far, then closes the log. Later appends fail.
+     * @return completes once the log is closed
+     */
+    public CompletableFuture<Void> close() {
+        Pending close = new Pending(CLOSE, null);
+        closed = true;
+        queue.add(close);
+        return close.done;
+    }
+
+    /**
+     * @return the number of entries appended since the last rotation
+     */
+    public long sinceSnapshot() {
+        return sinceSnapshot.get();
+    }
+
+    /**
+     * @return the log counters as a JSON object
+     */
+    public String stats() {
+        long groupCount = groups.get();
+        return "{\"policy\": \"" + policy.name().toLowerCase() + "\", \"appends\": " + appends.get()
+            + ", \"groups\": " + groupCount + ", \"bytes\": " + bytes.get()
+            + ", \"averageGroup\": " + (groupCount == 0 ? 0 : appends.get() / groupCount)
+            + ", \"generation\": " + generation + ", \"segment\": " + segment + ", \"sinceSnapshot\": " + sinceSnapshot.get()
+            + ", \"snapshots\": " + snapshots.get() + ", \"snapshotRecords\": " + snapshotRecords + "}";
+    }
+
+    private Path currentPath() {
+        return dir.resolve(name + ".current");
+    }
+
+    private Path generationPath(long gen) {
+        return dir.resolve(name + "." + gen);
+    }
+
+    private Path segmentPath(long gen, long seq) {
+        return generationPath(gen).resolve(seq + ".wal");
+    }
+
+    private Path segmentPath(long seq) {
+        return segmentPath(generation, seq);
+    }
+
+    private Path snapshotPath(long gen) {
+        return generationPath(gen).resolve("snapshot");
+    }
+
+    /**
+     * @return the generation in name.current, 0 when there is none yet
+     */
+    private long readGeneration() throws IOException {
+        Path current = currentPath();
+        if (!Files.exists(current)) {
+            return 0;
+        }
+        return Long.parseLong(Files.readString(current).trim());
+    }
+
+    /**
+     * Replaces name.current in one step, so a crash leaves either the old or the new generation.
+     */
+    private void writeGeneration(long gen) throws IOException {
+        Path temporary = dir.resolve(name + ".current.tmp");
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer text = ByteBuffer.wrap(Long.toString(gen).getBytes(StandardCharsets.UTF_8));
+            while (text.hasRemaining()) {
+                out.write(text);
+            }
+            out.force(true);
+        }
+        Files.move(temporary, currentPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory(dir);
+    }
+
+    /**
+     * @return the numbers of the generation directories of this log
+     */
+    private List<Long> listGenerations() throws IOException {
+        List<Long> generations = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, name + ".*")) {
+            for (Path file : files) {
+                if (!Files.isDirectory(file)) {
+                    continue;
+                }
+                String fileName = file.getFileName().toString();
+                try {
+                    generations.add(Long.parseLong(fileName.substring(name.length() + 1)));
+                } catch (NumberFormatException e) {
+                    // not a generation of this log
+                }
+            }
+        }
+        return generations;
+    }
+
+    /**
+     * Deletes the directory of an old generation.
+     */
+    private synchronized void reclaim(long gen) {
+        Path path = generationPath(gen);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(path)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+            Files.delete(path);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private List<Long> listSegments() throws IOException {
+        return listSegments(generation);
+    }
+
+    /**
+     * @return the sequence numbers of the segment files of a generation, in order
+     */
+    private List<Long> listSegments(long gen) throws IOException {
+        List<Long> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(generationPath(gen), "*.wal")) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                try {
+                    segments.add(Long.parseLong(fileName.substring(0, fileName.length() - 4)));
+                } catch (NumberFormatException e) {
+                    // not a segment
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /**
+     * Applies the records of the snapshot file.
+     * @return the first segment not covered by the snapshot, 0 when there is no snapshot
+     */
+    private long loadSnapshot(Replayer replayer) throws IOException {
+        Path path = snapshotPath(generation);
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = file.size();
+            if (size < 24 || size > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot " + path + " has an invalid size");
+            }
+            MappedByteBuffer map = file.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            CRC32 crc = new CRC32();
+            crc.update(map.duplicate().limit((int) size - 4));
+            if (map.getInt(0) != SNAPSHOT_MAGIC || map.getInt((int) size - 4) != (int) crc.getValue()) {
+                throw new IOException("Snapshot " + path + " is damaged");
+            }
+
+            long first = map.getLong(4);
+            long count = map.getLong((int) size - 12);
+            map.position(12);
+            for (long i = 0; i < count; i++) {
+                int id = map.getInt();
+                byte[] data = new byte[map.getInt()];
+                map.get(data);
+                replayer.apply(PUT, id, data);
+            }
+            snapshotRecords = count;
+            return first;
+        }
+    }
+
+    /**
+     * Replays one segment, cutting it off at the first incomplete or corrupt entry.
+     * @return the number of entries replayed
+     */
+    private long replaySegment(long seq, Replayer replayer) throws IOException {
+        Path path = segmentPath(seq);
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = file.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Log segment " + path + " is too large");
+            }
+            MappedByteBuffer map = file.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            CRC32 crc = new CRC32();
+            int position = 0;
+            long entries = 0;
+            while (position + HEADER <= size) {
+                int length = map.getInt(position);
+                int checksum = map.getInt(position + 4);
+                if (length < 5 || position + HEADER + (long) length > size) {
+                    break;
+                }
+                crc.reset();
+                crc.update(map.duplicate().position(position + HEADER).limit(position + HEADER + length));
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                byte op = map.get(position + HEADER);
+                int id = map.getInt(position + HEADER + 1);
+                byte[] data = new byte[length - 5];
+                map.get(position + HEADER + 5, data);
+                replayer.apply(op, id, data);
+                entries++;
+                position += HEADER + length;
+            }
+            if (position < size) {
+                System.err.println("Write-ahead log: dropping " + (size - position) + " bytes after the last complete entry of " + path);
+                file.truncate(position);
+            }
+            return entries;
+        }
+    }
+
+    /**
+     * Makes file creations and renames in the directory durable.
+     */
+    private void syncDirectory(Path path) {
+        try (FileChannel directory = FileChannel.open(path, StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            // not every platform can open a directory, the files themselves are still forced
+        }
+    }
+
+    private void writeLoop() {
+        List<Pending> group = new ArrayList<>();
+        while (true) {
+            try {
+                group.add(queue.take());
+                if (policy == SyncPolicy.INTERVAL) {
+                    // let the group grow until the interval since the last sync has passed
+                    long wait = lastSync + intervalNanos - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                }
+                queue.drainTo(group, MAX_GROUP - 1);
+
+                // a marker splits the group, entries before it go to the current segment
+                int from = 0;
+                boolean close = false;
+                for (int i = 0; i < group.size() && !close; i++) {
+                    Pending pending = group.get(i);
+                    if (pending.kind == ENTRY) {
+                        continue;
+                    }
+                    write(group.subList(from, i));
+                    if (pending.kind == ROTATE) {
+                        rotate(generation, segment + 1);
+                    } else if (pending.kind == GENERATION) {
+                        long old = generation;
+                        Files.createDirectories(generationPath(old + 1));
+                        rotate(old + 1, 0);
+                        writeGeneration(old + 1);
+                        reclaimer.execute(() -> reclaim(old));
+                    } else {
+                        channel.force(false);
+                        channel.close();
+                        close = true;
+                    }
+                    pending.generation = generation;
+                    pending.segment = segment;
+                    from = i + 1;
+                }
+                if (close) {
+                    // appends that raced with close are not written
+                    IOException error = new IOException("The log is closed");
+                    queue.drainTo(group);
+                    for (Pending pending : group.subList(from, group.size())) {
+                        pending.done.completeExceptionally(error);
+                    }
+                } else {
+                    write(group.subList(from, group.size()));
+                    from = group.size();
+                }
+
+                // the futures answer requests, that is left to another thread so the next group can start
+                Pending[] written = group.subList(0, from).toArray(new Pending[0]);
+                completions.execute(() -> {
+                    for (Pending pending : written) {
+                        pending.done.complete(null);
+                    }
+                });
+                if (close) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+                for (Pending pending : group) {
+                    pending.done.completeExceptionally(e);
+                }
+            }
+            group.clear();
+        }
+    }
+
+    /**
+     * Closes the current segment and continues in another one.
+     */
+    private void rotate(long gen, long seq) throws IOException {
+        channel.force(false);
+        channel.close();
+        channel = FileChannel.open(segmentPath(gen, seq), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        generation = gen;
+        segment = seq;
+        syncDirectory(generationPath(gen));
+    }
+
+    private void write(List<Pending> group) throws IOException {
+        if (group.isEmpty()) {
+            return;
+        }
+        int length = 0;
+        for (Pending pending : group) {
+            length += pending.entry.length;
+        }
+        if (buffer.capacity() < length) {
+            buffer = ByteBuffer.allocateDirect(Integer.highestOneBit(length) << 1);
+        }
+        buffer.clear();
+        for (Pending pending : group) {
+            buffer.put(pending.entry);
+        }
+        buffer.flip();
+        long start = channel.position();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (policy != SyncPolicy.NONE) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            // none of the group is acknowledged, so none of it may be replayed either
+            channel.truncate(start);
+            channel.position(start);
+            throw e;
+        }
+        lastSync = System.nanoTime();
+
+        appends.addAndGet(group.size());
+        groups.incrementAndGet();
+        bytes.addAndGet(length);
+    }
+
+    /**
+     * Writes the records of a snapshot file in blocks: magic, first segment, [id][length][data]
+     * for every record, then the count and a crc of everything before it.
+     */
+    private static class SnapshotOutput {
+        private final FileChannel out;
+        private final CRC32 crc = new CRC32();
+        private ByteBuffer block = ByteBuffer.allocate(1 << 16);
+        private long count;
+
+        SnapshotOutput(FileChannel out, long first) {
+            this.out = out;
+            block.putInt(SNAPSHOT_MAGIC).putLong(first);
+        }
+
+        /**
+         * Adds a record, called from IntRecordMap.forEach so an I/O error is thrown unchecked.
+         */
+        void add(int id, byte[] data) {
+            try {
+                if (block.remaining() < 8 + data.length) {
+                    writeBlock();
+                    if (block.capacity() < 8 + data.length) {
+                        block = ByteBuffer.allocate(8 + data.length);
+                    }
+                }
+                block.putInt(id).putInt(data.length).put(data);
+                count++;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Writes the count and the crc and forces the file.
+         * @return the number of records written
+         */
+        long finish() throws IOException {
+            // the count is at the end since the store may change size while it is read
+            if (block.remaining() < 8) {
+                writeBlock();
+            }
+            block.putLong(count);
+            writeBlock();
+            block.putInt((int) crc.getValue()).flip();
+            while (block.hasRemaining()) {
+                out.write(block);
+            }
+            out.force(true);
+            return count;
+        }
+
+        private void writeBlock() throws IOException {
+            block.flip();
+            crc.update(block.duplicate());
+            while (block.hasRemaining()) {
+                out.write(block);
+            }
+            block.clear();
+        }
+    }
+
+    /**
+     * An entry waiting for the writer thread, or a marker asking it to rotate, switch generation or close.
+     */
+    private static class Pending {
+        final int kind;
+        final byte[] entry;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        // where the log continues after a marker, set by the writer thread
+        long generation;
+        long segment;
+
+        Pending(int kind, byte[] entry) {
+            this.kind = kind;
+            this.entry = entry;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package ISCS;
+
+import Helpers.Metrics;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One running instance of the User or Product service that ISCS can send requests to.
+ * Each instance has a circuit breaker. After a number of failures in a row (requests or health
+ * probes) the instance is ejected and gets no requests. Once the ejection time has passed it is
+ * half open: a single trial, a request or a probe, decides whether it is admitted again or
+ * ejected for another round.
+ * An instance may have standbys, backups that the primary ships its changes to. When the
+ * primary is ejected the health checker promotes the first standby that has every record,
+ * which then takes the primary's place under the same name, so its share of the ids does not move.
+ * The other standbys stay, the promoted one ships its changes to them from then on.
+ * An instance may also have read-only followers that take the GETs for its ids.
+ * @author Agnibha Misra
+ */
+public class Backend {
+    // circuit breaker states
+    private static final int CLOSED = 0;
+    private static final int OPEN = 1;
+    private static final int HALF_OPEN = 2;
+    private static final String[] STATE_NAMES = {"closed", "open", "half-open"};
+
+    // base URL of the instance, http://ip:port, a standby's once it has been promoted
+    private volatile String url;
+    // base URLs of the backups not promoted yet, in the order they are tried
+    private final List<String> standbys = new ArrayList<>();
+    // the followers that serve reads for this instance, null if there are none
+    private volatile Followers followers;
+    // failures in a row that eject the instance
+    private final int failureThreshold;
+    // how long an ejected instance gets no requests
+    private final long ejectNanos;
+    // requests sent to this instance that have not been answered yet
+    private final AtomicInteger outstanding = new AtomicInteger();
+    // requests sent to this instance in total
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicInteger state = new AtomicInteger(CLOSED);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    // System.nanoTime at which an open circuit may take a trial
+    private volatile long retryAt;
+
+    // circuit breaker statistics
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong ejections = new AtomicLong();
+    private final AtomicLong readmissions = new AtomicLong();
+    private final AtomicLong promotions = new AtomicLong();
+
+    /**
+     * Creates a backend for an instance.
+     * @param address the instance in the form ip:port
+     * @param failureThreshold failures in a row that eject the instance
+     * @param ejectMillis how long an ejected instance gets no requests before a trial
+     */
+    public Backend(String address, int failureThreshold, int ejectMillis) {
+        this.url = "http://" + address;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.ejectNanos = ejectMillis * 1_000_000L;
+    }
+
+    /**
+     * @return the base URL of the instance
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Adds a backup that can take over from this instance.
+     * @param address the backup in the form ip:port
+     */
+    public synchronized void addStandby(String address) {
+        standbys.add("http://" + address);
+    }
+
+    /**
+     * @return the base URL of the next backup to promote, or null if there is none
+     */
+    public synchronized String nextStandby() {
+        return standbys.isEmpty() ? null : standbys.get(0);
+    }
+
+    /**
+     * @return the base URLs of the backups not promoted yet, in the order they are tried
+     */
+    public synchronized List<String> getStandbys() {
+        return new ArrayList<>(standbys);
+    }
+
+    /**
+     * @param followers the followers that serve reads for this instance
+     */
+    public void setFollowers(Followers followers) {
+        this.followers = followers;
+    }
+
+    /**
+     * @return the followers that serve reads for this instance, or null if there are none
+     */
+    public Followers getFollowers() {
+        return followers;
+    }
+
+    /**
+     * @return the base URLs of the standbys and followers of this instance, e.g. to shut them down
+     */
+    public synchronized List<String> replicaUrls() {
+        List<String> urls = new ArrayList<>(standbys);
+        Followers current = followers;
+        if (current != null) {
+            for (Backend follower : current.getBackends()) {
+                urls.add(follower.getUrl());
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * @return whether the instance is ejected, and not on trial
+     */
+    public boolean isEjected() {
+        return state.get() == OPEN;
+    }
+
+    /**
+     * Sends requests to a promoted backup from now on, with a closed circuit.
+     * @param standby the URL returned by nextStandby
+     */
+    public synchronized void promoted(String standby) {
+        if (!standbys.remove(standby)) {
+            return;
+        }
+        url = standby;
+        consecutiveFailures.set(0);
+        state.set(CLOSED);
+        promotions.incrementAndGet();
+    }
+
+    /**
+     * @return the number of requests currently in flight to this instance
+     */
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * @return whether the instance takes requests, or would take a trial request, right now
+     */
+    public boolean isAvailable() {
+        int current = state.get();
+        return current == CLOSED || (current == OPEN && System.nanoTime() - retryAt >= 0);
+    }
+
+    /**
+     * Asks to send a request. An ejected instance whose time is up lets exactly one caller through
+     * as its trial.
+     * @return whether the request may be sent
+     */
+    public boolean acquire() {
+        int current = state.get();
+        if (current == CLOSED) {
+            return true;
+        }
+        return current == OPEN && System.nanoTime() - retryAt >= 0 && state.compareAndSet(OPEN, HALF_OPEN);
+    }
+
+    /**
+     * Records an answer from the instance, which re-admits it if it was on trial.
+     */
+    public void success() {
+        consecutiveFailures.set(0);
+        if (state.get() != CLOSED && state.getAndSet(CLOSED) != CLOSED) {
+            readmissions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records a request or probe that got no usable answer. A failed trial, or the last of
+     * failureThreshold failures in a row, ejects the instance.
+     */
+    public void failure() {
+        failures.incrementAndGet();
+        if (state.get() == HALF_OPEN) {
+            retryAt = System.nanoTime() + ejectNanos;
+            state.set(OPEN);
+            return;
+        }
+        if (consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            retryAt = System.nanoTime() + ejectNanos;
+            if (state.compareAndSet(CLOSED, OPEN)) {
+                ejections.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Marks the start of a request to this instance.
+     */
+    public void begin() {
+        outstanding.incrementAndGet();
+        requests.incrementAndGet();
+    }
+
+    /**
+     * Marks the end of a request to this instance, successful or not.
+     */
+    public void end() {
+        outstanding.decrementAndGet();
+    }
+
+    /**
+     * Records how long a request to this instance took, as the iscs_upstream_requests metric.
+     * @param method the request method
+     * @param code the status code, or -1 if there was no answer
+     * @param start System.nanoTime when the request was sent
+     */
+    public void record(String method, int code, long start) {
+        Metrics.shared().timer("iscs_upstream_requests", "Requests ISCS sent to the instances",
+            "backend=\"" + url + "\",method=\"" + method + "\"").record(code, System.nanoTime() - start);
+    }
+
+    /**
+     * @return the instance as a JSON object for the stats endpoint
+     */
+    public String stats() {
+        return "{\"url\": \"" + url + "\", \"state\": \"" + STATE_NAMES[state.get()] + "\", \"outstanding\": " + outstanding.get()
+            + ", \"requests\": " + requests.get() + ", \"failures\": " + failures.get()
+            + ", \"ejections\": " + ejections.get() + ", \"readmissions\": " + readmissions.get()
+            + ", \"promotions\": " + promotions.get() + (followers == null ? "" : ", \"followers\": " + followers.stats()) + "}";
+    }
+}
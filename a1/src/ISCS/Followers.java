@@ -0,0 +1,95 @@
+package ISCS;
+
+import Helpers.Helpers;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The read-only followers of one instance, which ISCS sends the GETs for the instance's ids to
+ * so that read capacity grows with the number of followers. Reads go round the followers that
+ * are not ejected. A follower answers 503 when it is further behind the leader than the
+ * staleness bound; that, a follower that cannot be reached, and a 404 (the record may just not
+ * have arrived yet) all send the read on to the next follower and finally to the leader.
+ * @author Agnibha Misra
+ */
+public class Followers {
+    private final Backend[] followers;
+    // appended to every read, empty when reads may be any amount behind
+    private final String staleness;
+    private final AtomicInteger next = new AtomicInteger();
+
+    // statistics
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong staleReads = new AtomicLong();
+    private final AtomicLong leaderReads = new AtomicLong();
+
+    /**
+     * @param followers the followers
+     * @param maxStalenessMillis how far behind the leader a follower may answer from, -1 for no bound
+     */
+    public Followers(List<Backend> followers, int maxStalenessMillis) {
+        this.followers = followers.toArray(new Backend[0]);
+        this.staleness = maxStalenessMillis < 0 ? "" : "?maxStalenessMillis=" + maxStalenessMillis;
+    }
+
+    /**
+     * @return the followers
+     */
+    public Backend[] getBackends() {
+        return followers;
+    }
+
+    /**
+     * Sends a GET to the followers in turn until one answers with the record.
+     * @param path the request path
+     * @return an Object array where [0] is the status code (int) and [1] is the response (String),
+     * or null if the read has to go to the leader
+     */
+    public Object[] read(String path) {
+        reads.incrementAndGet();
+        int first = next.getAndIncrement();
+        for (int i = 0; i < followers.length; i++) {
+            Backend follower = followers[Math.floorMod(first + i, followers.length)];
+            if (!follower.acquire()) {
+                continue;
+            }
+            follower.begin();
+            long start = System.nanoTime();
+            try {
+                Object[] response = Helpers.requestSend(follower.getUrl() + path + staleness, "GET", null);
+                follower.record("GET", (int) response[0], start);
+                follower.success();
+                int code = (int) response[0];
+                if (code == 503) {
+                    staleReads.incrementAndGet();
+                } else if (code != 404) {
+                    return response;
+                }
+            } catch (IOException e) {
+                follower.record("GET", -1, start);
+                follower.failure();
+            } finally {
+                follower.end();
+            }
+        }
+        leaderReads.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * @return the followers and read counters as a JSON object for the stats endpoint
+     */
+    public String stats() {
+        StringBuilder json = new StringBuilder("{\"reads\": ").append(reads.get()).append(", \"staleReads\": ")
+            .append(staleReads.get()).append(", \"leaderReads\": ").append(leaderReads.get()).append(", \"instances\": [");
+        for (int i = 0; i < followers.length; i++) {
+            if (i > 0) {
+                json.append(", ");
+            }
+            json.append(followers[i].stats());
+        }
+        return json.append("]}").toString();
+    }
+}
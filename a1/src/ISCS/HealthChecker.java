@@ -0,0 +1,108 @@
+package ISCS;
+
+import Helpers.Helpers;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Probes every instance of a service with GET {prefix}/health at a fixed interval and feeds
+ * the outcome to the instance's circuit breaker. A probe that is not answered with a status
+ * below 500 within the timeout counts as a failure, so an instance that is powered off is
+ * ejected without requests having to fail on it first. Ejected instances are only probed once
+ * their ejection time is up, the probe is then their trial.
+ * An ejected instance with a standby gets the standby promoted in its place, by POST
+ * {prefix}/promote; a standby still resyncing refuses and the next one is asked. The instance
+ * only comes back as a backup, restarted by hand.
+ * The followers of an instance are probed like the instances themselves.
+ * @author Agnibha Misra
+ */
+public class HealthChecker {
+    private final LoadBalancer balancer;
+    private final String healthPath;
+    private final int timeoutMillis;
+    private final String promotePath;
+
+    /**
+     * @param balancer the instances of the service
+     * @param prefix the path of the service, e.g. "/user"
+     * @param timeoutMillis milliseconds a probe may take
+     */
+    public HealthChecker(LoadBalancer balancer, String prefix, int timeoutMillis) {
+        this.balancer = balancer;
+        this.healthPath = prefix + "/health";
+        this.promotePath = prefix + "/promote";
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Starts probing on a daemon thread.
+     * @param intervalMillis milliseconds between rounds of probes
+     */
+    public void start(int intervalMillis) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "health-" + healthPath);
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::probeAll, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends a probe to every instance that is taking requests or due for a trial.
+     */
+    private void probeAll() {
+        for (Backend backend : balancer.getBackends()) {
+            if (backend.isEjected() && backend.nextStandby() != null) {
+                // a standby that is still resyncing refuses, the next one is tried
+                for (String standby : backend.getStandbys()) {
+                    if (promote(backend, standby)) {
+                        break;
+                    }
+                }
+                continue;
+            }
+            probe(backend);
+            Followers followers = backend.getFollowers();
+            if (followers != null) {
+                for (Backend follower : followers.getBackends()) {
+                    probe(follower);
+                }
+            }
+        }
+    }
+
+    private void probe(Backend backend) {
+        if (!backend.acquire()) {
+            // still ejected, or a trial is already under way
+            return;
+        }
+        Helpers.requestSendAsync(backend.getUrl() + healthPath, "GET", null, timeoutMillis)
+            .whenComplete((response, error) -> {
+                if (error == null && (int) response[0] < 500) {
+                    backend.success();
+                } else {
+                    backend.failure();
+                }
+            });
+    }
+
+    /**
+     * Promotes a standby of an ejected instance. The probe thread waits for the answer so that
+     * the next round does not promote it twice.
+     * @return whether the standby was promoted
+     */
+    private boolean promote(Backend backend, String standby) {
+        try {
+            Object[] response = Helpers.requestSendAsync(standby + promotePath, "POST", "{}", timeoutMillis * 4).join();
+            if ((int) response[0] == 200) {
+                System.out.println("Promoted " + standby + " in place of " + backend.getUrl());
+                backend.promoted(standby);
+                return true;
+            }
+        } catch (RuntimeException e) {
+            // the standby is down too, it is tried again next round
+        }
+        return false;
+    }
+}
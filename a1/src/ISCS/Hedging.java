@@ -0,0 +1,110 @@
+package ISCS;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides when ISCS sends a second copy of a GET to another instance of a service.
+ * The delay is a percentile of the recent GET latencies of the service, recomputed from a ring
+ * of samples every RECOMPUTE requests. A budget keeps hedges at most budgetPercent of the GETs,
+ * so a service that is slow everywhere does not get its load multiplied.
+ * @author Agnibha Misra
+ */
+public class Hedging {
+    private static final int SAMPLES = 1024;
+    private static final int RECOMPUTE = 128;
+    // no hedging until the percentile is based on this many samples
+    private static final int MIN_SAMPLES = 100;
+
+    private final int percentile;
+    private final int budgetPercent;
+    private final long minDelayNanos;
+
+    // recent latencies in nanoseconds, written round the ring
+    private final AtomicLongArray samples = new AtomicLongArray(SAMPLES);
+    private final AtomicLong recorded = new AtomicLong();
+    // -1 until there are enough samples
+    private volatile long delayNanos = -1;
+
+    // statistics, requests and hedges also make up the budget
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+
+    /**
+     * @param percentile the latency percentile after which a GET is hedged, e.g. 95
+     * @param budgetPercent hedges allowed per 100 GETs
+     * @param minDelayMillis the delay never drops below this
+     */
+    public Hedging(int percentile, int budgetPercent, int minDelayMillis) {
+        this.percentile = Math.min(99, Math.max(1, percentile));
+        this.budgetPercent = budgetPercent;
+        this.minDelayNanos = minDelayMillis * 1_000_000L;
+    }
+
+    /**
+     * Counts a GET and returns how long to wait for it before hedging.
+     * @return the delay in nanoseconds, or -1 if there are not enough samples yet
+     */
+    public long begin() {
+        requests.incrementAndGet();
+        return delayNanos;
+    }
+
+    /**
+     * Takes a hedge from the budget.
+     * @return whether the budget allows another hedge
+     */
+    public boolean tryHedge() {
+        long taken = hedges.incrementAndGet();
+        if (taken * 100 > requests.get() * budgetPercent) {
+            hedges.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gives back a hedge taken with tryHedge that was not sent.
+     */
+    public void returnHedge() {
+        hedges.decrementAndGet();
+    }
+
+    /**
+     * Counts a hedged GET that was answered by the hedge rather than the first request.
+     */
+    public void hedgeWon() {
+        hedgeWins.incrementAndGet();
+    }
+
+    /**
+     * Records how long a GET took.
+     * @param nanos the latency
+     */
+    public void record(long nanos) {
+        long index = recorded.getAndIncrement();
+        samples.set((int) (index & (SAMPLES - 1)), nanos);
+        if ((index + 1) % RECOMPUTE == 0 && index + 1 >= MIN_SAMPLES) {
+            recompute(Math.min(index + 1, SAMPLES));
+        }
+    }
+
+    private void recompute(long count) {
+        long[] sorted = new long[(int) count];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = samples.get(i);
+        }
+        Arrays.sort(sorted);
+        delayNanos = Math.max(minDelayNanos, sorted[sorted.length * percentile / 100]);
+    }
+
+    /**
+     * @return the hedging counters as a JSON object
+     */
+    public String stats() {
+        return "{\"delayMicros\": " + (delayNanos < 0 ? -1 : delayNanos / 1000) + ", \"requests\": " + requests.get()
+            + ", \"hedges\": " + hedges.get() + ", \"hedgeWins\": " + hedgeWins.get() + "}";
+    }
+}
@@ -1,24 +1,62 @@
 package ISCS;
 
 import Helpers.Helpers;
+import Helpers.HttpClientPool;
+import Helpers.JsonFields;
+import Helpers.Metrics;
+import Helpers.OrderedExecutor;
+import Helpers.Tracer;
+import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 import java.io.*;
+import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 /**
  * The Inter-service Communication Service class. Acts as a central router 
  * and load balancer between the Order Service and the User/Product services.
  * @author Agnibha Misra
  */
 public class ISCS {
-    // URL of the userService
-    private static String userURL;
-    // URL of the productService
-    private static String productURL;
+    // instances of the userService
+    private static LoadBalancer userBalancer;
+    // instances of the productService
+    private static LoadBalancer productBalancer;
+    // when to hedge GETs to each service, null when hedging is turned off
+    private static Hedging userHedging;
+    private static Hedging productHedging;
+    // cached GET responses, null when caching is turned off
+    private static ResponseCache cache;
+    // paths of a single user or product, e.g. /user/23823
+    private static final Pattern RECORD_PATH = Pattern.compile("/(user|product)/-?\\d+");
+    // commands every instance of a service has to receive, e.g. /user/wipe
+    private static final Pattern CONTROL_PATH = Pattern.compile("/(user|product)/(wipe|shutdown)");
+    // milliseconds an instance gets to finish its requests and flush its data on shutdown
+    private static final int CONTROL_TIMEOUT = 30000;
+    // the answer when every instance of a service is ejected
+    private static final String UNAVAILABLE = "{\"status\": \"Service Unavailable\"}";
+    // milliseconds a hedged GET waits for its answer, the default read timeout of the pool
+    private static final int GET_TIMEOUT = 30000;
+    // sends the parts of a sharded batch, apart from the request threads that wait for them
+    private static final Executor batchParts = OrderedExecutor.createExecutor("virtual", 64);
+    // stopped by a POST to /shutdown
+    private static HttpServer server;
 
     
     /**
@@ -42,27 +80,600 @@ public class ISCS {
 
 
 
-        // get the IP and  port of product and user
-        int portProduct = Helpers.getPort(config, "ProductService");
-        String IpProduct = Helpers.getIP(config, "ProductService");
+        // get the list of instances of product and user, and how to spread requests across them
+        String strategy = Helpers.getConfigValue(config, "InterServiceCommunication", "strategy");
+        // under consistent-hash every id lives on one instance, picked from a ring with "virtualNodes" points per instance
+        int virtualNodes = Helpers.getConfigInt(config, "InterServiceCommunication", "virtualNodes", 160);
+        List<Backend> products = createBackends(config, Helpers.getInstances(config, "ProductService"));
+        addStandbys(config, "ProductService", products);
+        productBalancer = LoadBalancer.create(strategy, products, virtualNodes);
+        List<Backend> users = createBackends(config, Helpers.getInstances(config, "UserService"));
+        // GETs for users go to the followers of the instance, at most "readStalenessMillis" behind it (-1 for no bound)
+        int readStaleness = Helpers.getConfigInt(config, "InterServiceCommunication", "readStalenessMillis", 100);
+        addFollowers(config, "UserService", users, readStaleness);
+        userBalancer = LoadBalancer.create(strategy, users, virtualNodes);
 
-        int portUser = Helpers.getPort(config, "UserService");
-        String IpUser = Helpers.getIP(config, "UserService");
+        // probe the instances so ones that went down are ejected before requests fail on them, 0 turns probes off
+        int healthInterval = Helpers.getConfigInt(config, "InterServiceCommunication", "healthIntervalMillis", 1000);
+        int healthTimeout = Helpers.getConfigInt(config, "InterServiceCommunication", "healthTimeoutMillis", 500);
+        if (healthInterval > 0) {
+            new HealthChecker(userBalancer, "/user", healthTimeout).start(healthInterval);
+            new HealthChecker(productBalancer, "/product", healthTimeout).start(healthInterval);
+        }
+
+        // GETs still unanswered at the hedgePercentile latency get a second copy, a percentile of 0 turns hedging off;
+        // under consistent-hash a GET about an id has no other instance to go to and is not hedged
+        int hedgePercentile = Helpers.getConfigInt(config, "InterServiceCommunication", "hedgePercentile", 95);
+        int hedgeBudget = Helpers.getConfigInt(config, "InterServiceCommunication", "hedgeBudgetPercent", 5);
+        int hedgeMinDelay = Helpers.getConfigInt(config, "InterServiceCommunication", "hedgeMinDelayMillis", 1);
+        if (hedgePercentile > 0) {
+            userHedging = new Hedging(hedgePercentile, hedgeBudget, hedgeMinDelay);
+            productHedging = new Hedging(hedgePercentile, hedgeBudget, hedgeMinDelay);
+        }
 
-        // use the IP and the port to create the URLS
-        productURL = "http://" + IpProduct + ":" + portProduct;
-        userURL = "http://" + IpUser + ":" + portUser;
+        // a cacheSize of 0 turns the read-through cache off
+        int cacheSize = Helpers.getConfigInt(config, "InterServiceCommunication", "cacheSize", 10000);
+        int cacheTtl = Helpers.getConfigInt(config, "InterServiceCommunication", "cacheTtlMillis", 5000);
+        if (cacheSize > 0) {
+            cache = new ResponseCache(cacheSize, cacheTtl);
+        }
 
-        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
-        server.createContext("/", new ISCSHandler());
+        // write responses right away, otherwise the body waits for the ACK of the headers (Nagle)
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        HttpContext routes = server.createContext("/", new ISCSHandler());
+        server.createContext("/stats", new StatsHandler());
+        server.createContext("/wipe", new ControlHandler());
+        server.createContext("/shutdown", new ControlHandler());
+        // GET /metrics reports the latency of the forwarded requests, and of each instance they went to
+        Metrics.shared().serve(server, routes);
+        // requests that come with an X-Trace-Id from OrderService are traced, and carry it on to the instances
+        Tracer.shared().open(config, "InterServiceCommunication", port);
+        Tracer.shared().instrument(routes, false);
 
-        // no concurrency needed for A1 as seen on piazza (CHANGE IN A2)
-        server.setExecutor(null);
+        // forward requests concurrently so the load balancer sees real outstanding counts
+        String mode = Helpers.getConfigValue(config, "InterServiceCommunication", "executor");
+        int threads = Helpers.getConfigInt(config, "InterServiceCommunication", "threads", Runtime.getRuntime().availableProcessors() * 4);
+        server.setExecutor(Tracer.timeQueue(OrderedExecutor.createExecutor(mode == null ? "virtual" : mode, threads)));
         
         server.start();
         System.out.println("ISCS server started on: " + port);
-        System.out.println("User route: " + userURL);
-        System.out.println("Product route: " + productURL);
+        System.out.println("Load balancing strategy: " + (strategy == null ? "round-robin" : strategy));
+        for (Backend backend : userBalancer.getBackends()) {
+            System.out.println("User route: " + backend.getUrl());
+            if (backend.getFollowers() != null) {
+                for (Backend follower : backend.getFollowers().getBackends()) {
+                    System.out.println("  follower: " + follower.getUrl());
+                }
+            }
+        }
+        for (Backend backend : productBalancer.getBackends()) {
+            System.out.println("Product route: " + backend.getUrl());
+            if (backend.nextStandby() != null) {
+                System.out.println("  standby: " + backend.nextStandby());
+            }
+        }
+    }
+
+    /**
+     * Creates a backend for every configured instance of a service, with the circuit breaker
+     * settings "ejectAfterFailures" and "ejectMillis" of InterServiceCommunication.
+     * @param config the config file json data
+     * @param instances the instances as ip:port strings
+     * @return the backends
+     */
+    private static List<Backend> createBackends(String config, List<String> instances) {
+        int failureThreshold = Helpers.getConfigInt(config, "InterServiceCommunication", "ejectAfterFailures", 3);
+        int ejectMillis = Helpers.getConfigInt(config, "InterServiceCommunication", "ejectMillis", 5000);
+        List<Backend> backends = new ArrayList<>();
+        for (String instance : instances) {
+            backends.add(new Backend(instance, failureThreshold, ejectMillis));
+        }
+        return backends;
+    }
+
+    /**
+     * Gives every instance of a service the entries of the service's "backups" list whose
+     * "primary" is its instance number, to be promoted when it is ejected.
+     * @param config the config file json data
+     * @param service the service name
+     * @param backends the instances, in config order
+     */
+    private static void addStandbys(String config, String service, List<Backend> backends) {
+        List<String> entries = Helpers.getConfigList(config, service, "backups");
+        if (entries == null) {
+            return;
+        }
+        for (String entry : entries) {
+            Integer primary = Helpers.parseInteger(entry, "primary");
+            int index = primary == null ? 0 : primary;
+            String address = Helpers.getAddress(entry);
+            if (address != null && index >= 0 && index < backends.size()) {
+                backends.get(index).addStandby(address);
+            }
+        }
+    }
+
+    /**
+     * Gives every instance of a service the entries of the service's "followers" list whose
+     * "leader" is its instance number, to serve the reads of its ids.
+     * @param config the config file json data
+     * @param service the service name
+     * @param backends the instances, in config order
+     * @param maxStalenessMillis how far behind its leader a follower may answer from
+     */
+    private static void addFollowers(String config, String service, List<Backend> backends, int maxStalenessMillis) {
+        List<String> entries = Helpers.getConfigList(config, service, "followers");
+        if (entries == null) {
+            return;
+        }
+        for (int index = 0; index < backends.size(); index++) {
+            List<String> followers = new ArrayList<>();
+            for (String entry : entries) {
+                Integer leader = Helpers.parseInteger(entry, "leader");
+                String address = Helpers.getAddress(entry);
+                if (address != null && (leader == null ? 0 : leader) == index) {
+                    followers.add(address);
+                }
+            }
+            if (!followers.isEmpty()) {
+                backends.get(index).setFollowers(new Followers(createBackends(config, followers), maxStalenessMillis));
+            }
+        }
+    }
+
+    /**
+     * Sends a GET for a record to a follower of the instance owning the record, if it has any.
+     * @param balancer the load balancer of the target service
+     * @param key the id of the request, or LoadBalancer.NO_KEY
+     * @param path the request path
+     * @return an Object array where [0] is the status code (int) and [1] is the response (String),
+     * or null if the read has to go to the instance itself
+     */
+    private static Object[] readFollower(LoadBalancer balancer, long key, String path) {
+        if (key == LoadBalancer.NO_KEY || !RECORD_PATH.matcher(path).matches()) {
+            return null;
+        }
+        Backend[] backends = balancer.getBackends();
+        Backend leader = balancer.isSharded() ? balancer.owner((int) key) : backends.length == 1 ? backends[0] : null;
+        Followers followers = leader == null ? null : leader.getFollowers();
+        return followers == null ? null : followers.read(path);
+    }
+
+    /**
+     * Picks an instance that has not been tried yet and lets the request through its circuit breaker.
+     * @param balancer the load balancer of the target service
+     * @param key the id of the request, or LoadBalancer.NO_KEY
+     * @param tried the instances tried so far, the one returned is added
+     * @return the instance, or null if none is left
+     */
+    private static Backend acquire(LoadBalancer balancer, long key, List<Backend> tried) {
+        while (true) {
+            Backend backend = balancer.choose(key, tried);
+            if (backend == null) {
+                return null;
+            }
+            tried.add(backend);
+            if (backend.acquire()) {
+                return backend;
+            }
+            // another request took the trial of this instance
+        }
+    }
+
+    /**
+     * Forwards a request to the instance picked by the load balancer, see the overload below.
+     * @param balancer the load balancer of the target service
+     * @param key the id of the request, or LoadBalancer.NO_KEY
+     * @param path the request path
+     * @param method the request method
+     * @param body the request body
+     * @return an Object array where [0] is the status code (int) and [1] is the response (String),
+     * 503 if every instance is ejected
+     * @throws IOException if no instance could be reached
+     */
+    private static Object[] forward(LoadBalancer balancer, long key, String path, String method, String body) throws IOException {
+        return forward(balancer, key, path, method, body, new ArrayList<>(2), null);
+    }
+
+    /**
+     * Forwards a request to the instance picked by the load balancer. If the instance cannot be
+     * reached the request fails over to another one straight away: a GET on any failure, a POST
+     * only when the connection was never made (or the instance is shutting down), since it may
+     * otherwise have been applied already.
+     * @param balancer the load balancer of the target service
+     * @param key the id of the request, or LoadBalancer.NO_KEY
+     * @param path the request path
+     * @param method the request method
+     * @param body the request body
+     * @param tried the instances that already failed the request, they are left out
+     * @param failure why the last of them failed, or null
+     * @return an Object array where [0] is the status code (int) and [1] is the response (String),
+     * 503 if every instance is ejected
+     * @throws IOException if no instance could be reached
+     */
+    private static Object[] forward(LoadBalancer balancer, long key, String path, String method, String body,
+                                    List<Backend> tried, IOException failure) throws IOException {
+        while (true) {
+            Backend backend = acquire(balancer, key, tried);
+            if (backend == null) {
+                if (failure != null) {
+                    throw failure;
+                }
+                return new Object[] {503, UNAVAILABLE};
+            }
+            if (failure != null) {
+                balancer.failover();
+            }
+
+            backend.begin();
+            long start = System.nanoTime();
+            try {
+                Object[] response = Helpers.requestSend(backend.getUrl() + path, method, body);
+                backend.record(method, (int) response[0], start);
+                if ((int) response[0] != 503) {
+                    backend.success();
+                    return response;
+                }
+                // the instance is shutting down and did not run the request
+                backend.failure();
+                failure = new ConnectException(backend.getUrl() + " is shutting down");
+            } catch (IOException e) {
+                backend.record(method, -1, start);
+                backend.failure();
+                if (!(e instanceof ConnectException) && !method.equalsIgnoreCase("get")) {
+                    throw e;
+                }
+                failure = e;
+            } finally {
+                backend.end();
+            }
+        }
+    }
+
+    /**
+     * Forwards a GET, and if it has not been answered within the hedging delay sends a copy to
+     * another instance. The first answer is used and the other request is cancelled. A GET that
+     * fails on every instance it was sent to fails over like in forward.
+     * @param balancer the load balancer of the target service
+     * @param hedging the hedging settings of the service
+     * @param key the id of the request, or LoadBalancer.NO_KEY
+     * @param path the request path
+     * @return an Object array where [0] is the status code (int) and [1] is the response (String)
+     * @throws IOException if no instance could be reached
+     */
+    private static Object[] forwardHedged(LoadBalancer balancer, Hedging hedging, long key, String path) throws IOException {
+        long delay = hedging.begin();
+        List<Backend> tried = new ArrayList<>(2);
+        Backend first = acquire(balancer, key, tried);
+        if (first == null) {
+            return new Object[] {503, UNAVAILABLE};
+        }
+        CompletableFuture<Object[]> primary = attempt(first, hedging, path);
+        CompletableFuture<Object[]> hedge = null;
+
+        if (delay >= 0) {
+            try {
+                primary.get(delay, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                // the budget is taken before an instance, an instance on trial must not be left unused
+                if (hedging.tryHedge()) {
+                    Backend second = acquire(balancer, key, tried);
+                    if (second != null) {
+                        hedge = attempt(second, hedging, path);
+                    } else {
+                        hedging.returnHedge();
+                    }
+                }
+            } catch (ExecutionException e) {
+                // failed, handled below
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        Object[] response = firstAnswer(primary, hedge);
+        if (hedge != null) {
+            primary.cancel(true);
+            hedge.cancel(true);
+            if (response != null && response == hedge.getNow(null)) {
+                hedging.hedgeWon();
+            }
+        }
+        if (response != null) {
+            return response;
+        }
+        return forward(balancer, key, path, "GET", null, tried, new ConnectException("No answer to GET " + path));
+    }
+
+    /**
+     * Sends a GET for forwardHedged and keeps the instance's counters and circuit breaker up to date.
+     * A request cancelled because the other copy answered first does not count against the instance.
+     * @param backend the instance
+     * @param hedging records the latency of answered requests
+     * @param path the request path
+     * @return the request
+     */
+    private static CompletableFuture<Object[]> attempt(Backend backend, Hedging hedging, String path) {
+        long start = System.nanoTime();
+        backend.begin();
+        CompletableFuture<Object[]> call = Helpers.requestSendAsync(backend.getUrl() + path, "GET", null, GET_TIMEOUT);
+        call.whenComplete((response, error) -> {
+            backend.end();
+            if (call.isCancelled()) {
+                return;
+            }
+            backend.record("GET", error == null ? (int) response[0] : -1, start);
+            if (error == null && (int) response[0] != 503) {
+                backend.success();
+                hedging.record(System.nanoTime() - start);
+            } else {
+                backend.failure();
+            }
+        });
+        return call;
+    }
+
+    /**
+     * Waits for the first usable answer of one or two copies of a request.
+     * @param primary the request
+     * @param hedge its copy, or null
+     * @return the answer, or null if every copy failed
+     */
+    private static Object[] firstAnswer(CompletableFuture<Object[]> primary, CompletableFuture<Object[]> hedge) {
+        if (hedge == null) {
+            primary.exceptionally(error -> null).join();
+            return usable(primary);
+        }
+        CompletableFuture<Object[]> answer = new CompletableFuture<>();
+        primary.thenAccept(response -> {
+            if ((int) response[0] != 503) {
+                answer.complete(response);
+            }
+        });
+        hedge.thenAccept(response -> {
+            if ((int) response[0] != 503) {
+                answer.complete(response);
+            }
+        });
+        // dependents may run in any order, so once both are done the answer is looked up again
+        CompletableFuture.allOf(primary, hedge).whenComplete((done, error) -> {
+            Object[] response = usable(primary);
+            answer.complete(response != null ? response : usable(hedge));
+        });
+        return answer.join();
+    }
+
+    /**
+     * @param call a finished request
+     * @return its [status code, response], or null if it failed or the instance was shutting down
+     */
+    private static Object[] usable(CompletableFuture<Object[]> call) {
+        if (call.isCompletedExceptionally()) {
+            return null;
+        }
+        Object[] response = call.join();
+        return (int) response[0] == 503 ? null : response;
+    }
+
+    /**
+     * Finds the id a request is about: the id in the path of a GET, or the "id" of a POST body.
+     * @param path the request path
+     * @param method the request method
+     * @param body the request body
+     * @return the id, or LoadBalancer.NO_KEY if there is none
+     */
+    private static long requestKey(String path, String method, String body) {
+        if (method.equalsIgnoreCase("get")) {
+            if (!RECORD_PATH.matcher(path).matches()) {
+                return LoadBalancer.NO_KEY;
+            }
+            try {
+                return Integer.parseInt(path.substring(path.lastIndexOf('/') + 1));
+            } catch (NumberFormatException e) {
+                return LoadBalancer.NO_KEY;
+            }
+        }
+        Integer id = Helpers.parseInteger(body, "id");
+        return id == null ? LoadBalancer.NO_KEY : id;
+    }
+
+    /**
+     * Splits a batch by the instance owning each command's id, sends the parts at once and puts
+     * their results back together in the order of the commands. Commands without an id go with
+     * the first part. A part that fails answers 500 for each of its commands.
+     * @param balancer the load balancer of the target service, which shards the ids
+     * @param path the request path, e.g. /user/batch
+     * @param body the batch, {"commands": [...]}
+     * @return an Object array where [0] is the status code (int) and [1] is the response (String)
+     */
+    private static Object[] forwardBatch(LoadBalancer balancer, String path, String body) {
+        String raw = JsonFields.parse(body).getRaw("commands");
+        if (raw == null) {
+            return new Object[] {400, "{}"};
+        }
+        List<String> commands = JsonFields.elements(raw);
+
+        // the commands of every owner, by their position in the batch
+        Map<Backend, List<Integer>> parts = new LinkedHashMap<>();
+        int[] keys = new int[commands.size()];
+        for (int i = 0; i < commands.size(); i++) {
+            Integer id = Helpers.parseInteger(commands.get(i), "id");
+            keys[i] = id == null ? 0 : id;
+            parts.computeIfAbsent(balancer.owner(keys[i]), owner -> new ArrayList<>()).add(i);
+        }
+
+        Map<List<Integer>, CompletableFuture<Object[]>> sent = new LinkedHashMap<>();
+        for (List<Integer> part : parts.values()) {
+            StringBuilder partBody = new StringBuilder("{\"commands\": [");
+            for (int i = 0; i < part.size(); i++) {
+                partBody.append(i == 0 ? "" : ", ").append(commands.get(part.get(i)));
+            }
+            String request = partBody.append("]}").toString();
+            int partKey = keys[part.get(0)];
+            // the parts are sent for the request this thread is handling, so they belong to its trace
+            Tracer.Span span = Tracer.current();
+            sent.put(part, CompletableFuture.supplyAsync(() -> {
+                Tracer.Span previous = Tracer.resume(span);
+                try {
+                    return forward(balancer, partKey, path, "POST", request);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                } finally {
+                    Tracer.resume(previous);
+                }
+            }, batchParts));
+        }
+
+        String[] results = new String[commands.size()];
+        for (Map.Entry<List<Integer>, CompletableFuture<Object[]>> entry : sent.entrySet()) {
+            List<String> partResults = null;
+            try {
+                Object[] response = entry.getValue().join();
+                if ((int) response[0] == 200) {
+                    partResults = JsonFields.elements(JsonFields.parse((String) response[1]).getRaw("results"));
+                }
+            } catch (CompletionException e) {
+                e.printStackTrace();
+            }
+            List<Integer> part = entry.getKey();
+            for (int i = 0; i < part.size(); i++) {
+                results[part.get(i)] = partResults != null && i < partResults.size() ? partResults.get(i)
+                    : "{\"code\": 500, \"body\": {\"status\": \"Internal Error\"}}";
+            }
+        }
+        return new Object[] {200, "{\"results\": [" + String.join(", ", results) + "]}"};
+    }
+
+    /**
+     * Sends a wipe or shutdown to every instance of the given services at once.
+     * @param balancers the services
+     * @param command "wipe" or "shutdown"
+     * @return 200 if every instance succeeded, otherwise the first other status code, or 500 if one could not be reached
+     */
+    private static int broadcast(List<LoadBalancer> balancers, String command) {
+        List<CompletableFuture<Object[]>> replies = new ArrayList<>();
+        for (LoadBalancer balancer : balancers) {
+            String path = (balancer == userBalancer ? "/user/" : "/product/") + command;
+            for (Backend backend : balancer.getBackends()) {
+                replies.add(Helpers.requestSendAsync(backend.getUrl() + path, "POST", "{}", CONTROL_TIMEOUT));
+                // standbys and followers get their changes from the instance, wiping it wipes them too
+                if (command.equals("shutdown")) {
+                    for (String replica : backend.replicaUrls()) {
+                        replies.add(Helpers.requestSendAsync(replica + path, "POST", "{}", CONTROL_TIMEOUT));
+                    }
+                }
+            }
+        }
+        int code = 200;
+        for (CompletableFuture<Object[]> reply : replies) {
+            try {
+                int replyCode = (int) reply.join()[0];
+                if (code == 200) {
+                    code = replyCode;
+                }
+            } catch (CompletionException e) {
+                e.printStackTrace();
+                code = 500;
+            }
+        }
+        // the cache could still hold responses from before the wipe
+        if (command.equals("wipe") && cache != null) {
+            cache.invalidateAll();
+        }
+        return code;
+    }
+
+    /**
+     * Finds the cache keys of the records a POST may change: the id of a single command,
+     * or the id of every command in a batch.
+     * @param prefix "/user/" or "/product/"
+     * @param path the request path
+     * @param body the request body
+     * @return the keys, empty if the body has no ids
+     */
+    private static List<String> writtenKeys(String prefix, String path, String body) {
+        List<String> keys = new ArrayList<>();
+        if (path.endsWith("/batch")) {
+            for (String command : JsonFields.elements(JsonFields.parse(body).getRaw("commands"))) {
+                Integer id = Helpers.parseInteger(command, "id");
+                if (id != null) {
+                    keys.add(prefix + id);
+                }
+            }
+        }
+        else {
+            Integer id = Helpers.parseInteger(body, "id");
+            if (id != null) {
+                keys.add(prefix + id);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Drops the cached responses of records that are being written.
+     * @param keys the keys from writtenKeys, or null when nothing is cached
+     */
+    private static void invalidate(List<String> keys) {
+        if (keys == null) {
+            return;
+        }
+        for (String key : keys) {
+            cache.invalidate(key);
+        }
+    }
+
+    /**
+     * Wipes the data of every user and product instance on POST /wipe. POST /shutdown stops
+     * every instance once it has finished its requests and flushed its data, then ISCS itself.
+     */
+    public static class ControlHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String path = exchange.getRequestURI().getPath();
+            exchange.getRequestBody().readAllBytes();
+            if (!exchange.getRequestMethod().equalsIgnoreCase("post") || !(path.equals("/wipe") || path.equals("/shutdown"))) {
+                exchange.sendResponseHeaders(405, 0);
+                exchange.getResponseBody().close();
+                return;
+            }
+
+            String command = path.substring(1);
+            int code = broadcast(List.of(userBalancer, productBalancer), command);
+            byte[] responseBytes = "{}".getBytes();
+            exchange.sendResponseHeaders(code, responseBytes.length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(responseBytes);
+            os.close();
+
+            if (command.equals("shutdown")) {
+                // stop waits for the request threads, so it runs on a thread of its own
+                new Thread(() -> {
+                    server.stop(1);
+                    System.exit(0);
+                }, "shutdown").start();
+            }
+        }
+    }
+
+    /**
+     * Reports the instances, cache and connection pool statistics of ISCS as JSON on GET /stats.
+     */
+    public static class StatsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String stats = "{\"user\": " + userBalancer.stats() + ", \"product\": " + productBalancer.stats()
+                + ", \"failovers\": {\"user\": " + userBalancer.getFailovers() + ", \"product\": " + productBalancer.getFailovers() + "}"
+                + ", \"hedging\": " + (userHedging == null ? "null" : "{\"user\": " + userHedging.stats() + ", \"product\": " + productHedging.stats() + "}")
+                + ", \"cache\": " + (cache == null ? "null" : cache.stats())
+                + ", \"pool\": " + HttpClientPool.shared().stats() + "}";
+            byte[] responseBytes = stats.getBytes();
+            exchange.sendResponseHeaders(200, responseBytes.length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(responseBytes);
+            os.close();
+        }
     }
 
     /**
@@ -75,14 +686,14 @@ public class ISCS {
             try {
                 // get the path in the form of /user... or /product...
                 String path = exchange.getRequestURI().getPath();
-                String url = "";
 
-                // check whether the path starts with product or user and modify the URL appropriately
+                // check whether the path starts with product or user and pick an instance of that service
+                LoadBalancer balancer;
                 if (path.startsWith("/product")) {
-                    url = productURL + path;
+                    balancer = productBalancer;
                 }
                 else if (path.startsWith("/user")) {
-                    url = userURL + path;
+                    balancer = userBalancer;
                 }
 
                 else {
@@ -96,6 +707,7 @@ public class ISCS {
                 }
 
                 // read the request
+                long parsing = System.nanoTime();
                 String method = exchange.getRequestMethod();
                 Scanner scanner = new Scanner(exchange.getRequestBody()).useDelimiter("\\A");
                 String body;
@@ -106,8 +718,80 @@ public class ISCS {
                     body = "";
                 }
 
-                // forward the request to product or user and get the status code and response
-                Object[] response = Helpers.requestSend(url, method, body);
+                // a wipe or shutdown of one service goes to all of its instances
+                Matcher control = CONTROL_PATH.matcher(path);
+                if (method.equalsIgnoreCase("post") && control.matches()) {
+                    int code = broadcast(List.of(balancer), control.group(2));
+                    byte[] responseBytes = "{}".getBytes();
+                    exchange.sendResponseHeaders(code, responseBytes.length);
+                    OutputStream os = exchange.getResponseBody();
+                    os.write(responseBytes);
+                    os.close();
+                    return;
+                }
+
+                // with sharding, a batch is split up by the instances owning its ids
+                if (method.equalsIgnoreCase("post") && path.endsWith("/batch") && balancer.isSharded()) {
+                    List<String> batchKeys = cache == null ? null : writtenKeys(balancer == userBalancer ? "/user/" : "/product/", path, body);
+                    invalidate(batchKeys);
+                    Object[] response = forwardBatch(balancer, path, body);
+                    invalidate(batchKeys);
+                    byte[] responseBytes = ((String) response[1]).getBytes();
+                    exchange.sendResponseHeaders((int) response[0], responseBytes.length);
+                    OutputStream os = exchange.getResponseBody();
+                    os.write(responseBytes);
+                    os.close();
+                    return;
+                }
+
+                // the id the request is about decides the instance when ids are sharded
+                long key = requestKey(path, method, body);
+                Tracer.stage(exchange, "parse", parsing);
+
+                // the cache is keyed by the GET path of a record, a POST for an id uses the same key
+                String cacheKey = null;
+                List<String> writtenKeys = null;
+                if (cache != null && method.equalsIgnoreCase("get") && RECORD_PATH.matcher(path).matches()) {
+                    cacheKey = path;
+                }
+                else if (cache != null && method.equalsIgnoreCase("post")) {
+                    writtenKeys = writtenKeys(balancer == userBalancer ? "/user/" : "/product/", path, body);
+                }
+
+                // GETs do not change anything, so a slow one may be sent to a second instance
+                Hedging hedging = balancer == userBalancer ? userHedging : productHedging;
+
+                Object[] response;
+                if (cacheKey != null) {
+                    // read-through: only ask the backend on a miss
+                    response = cache.get(cacheKey);
+                    if (response == null) {
+                        long version = cache.version(cacheKey);
+                        // a follower may be behind, only the instance's own answers are cached
+                        response = readFollower(balancer, key, path);
+                        if (response == null) {
+                            response = hedging != null ? forwardHedged(balancer, hedging, key, path) : forward(balancer, key, path, method, body);
+                            int code = (int)response[0];
+                            if (code == 200 || code == 404) {
+                                cache.put(cacheKey, version, response);
+                            }
+                        }
+                    }
+                }
+                else {
+                    // invalidate before and after, so a read that overlapped the write cannot be cached
+                    invalidate(writtenKeys);
+                    Object[] followed = method.equalsIgnoreCase("get") ? readFollower(balancer, key, path) : null;
+                    if (followed != null) {
+                        response = followed;
+                    } else if (hedging != null && method.equalsIgnoreCase("get")) {
+                        response = forwardHedged(balancer, hedging, key, path);
+                    } else {
+                        response = forward(balancer, key, path, method, body);
+                    }
+                    invalidate(writtenKeys);
+                }
+                long serializing = System.nanoTime();
                 int responseCode = (int)response[0];
                 String responseString = (String)response[1];
 
@@ -117,7 +801,15 @@ public class ISCS {
                 OutputStream os = exchange.getResponseBody();
                 os.write(responseBytes);
                 os.close();
+                Tracer.stage(exchange, "serialize", serializing);
 
+            } catch (ConnectException e) {
+                // no instance got the request, the caller may safely send it again
+                byte[] responseBytes = UNAVAILABLE.getBytes();
+                exchange.sendResponseHeaders(503, responseBytes.length);
+                OutputStream os = exchange.getResponseBody();
+                os.write(responseBytes);
+                os.close();
             } catch (Exception e) {
                 e.printStackTrace();
                 exchange.sendResponseHeaders(500, 0);
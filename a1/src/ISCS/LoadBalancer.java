@@ -0,0 +1,269 @@
+package ISCS;
+
+import Helpers.HashRing;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Picks which instance of a service receives the next request, among the instances that are
+ * not ejected by their circuit breaker.
+ * The strategy is chosen with the "strategy" setting of InterServiceCommunication in config.json.
+ * @author Agnibha Misra
+ */
+public abstract class LoadBalancer {
+    /**
+     * The key of a request that is not about a single id.
+     */
+    public static final long NO_KEY = Long.MIN_VALUE;
+
+    // the instances to choose from
+    protected final Backend[] backends;
+    // requests moved on to another instance after the one picked first failed
+    private final AtomicLong failovers = new AtomicLong();
+
+    /**
+     * @param backends the instances of the service
+     */
+    protected LoadBalancer(List<Backend> backends) {
+        this.backends = backends.toArray(new Backend[0]);
+    }
+
+    /**
+     * Creates the load balancer for a strategy name.
+     * @param strategy round-robin, least-outstanding, power-of-two or consistent-hash (defaults to round-robin)
+     * @param backends the instances of the service
+     * @param virtualNodes points per instance on the consistent-hash ring
+     * @return the load balancer
+     */
+    public static LoadBalancer create(String strategy, List<Backend> backends, int virtualNodes) {
+        if (backends.isEmpty()) {
+            throw new IllegalArgumentException("A service needs at least one instance");
+        }
+        if ("consistent-hash".equalsIgnoreCase(strategy)) {
+            return new ConsistentHash(backends, virtualNodes);
+        }
+        if ("least-outstanding".equalsIgnoreCase(strategy)) {
+            return new LeastOutstanding(backends);
+        }
+        if ("power-of-two".equalsIgnoreCase(strategy)) {
+            return new PowerOfTwo(backends);
+        }
+        return new RoundRobin(backends);
+    }
+
+    /**
+     * @return the instance that should receive the next request, or null if every instance is ejected
+     */
+    public Backend choose() {
+        return choose(null);
+    }
+
+    /**
+     * Picks an instance for a request, leaving out the ones already tried for it.
+     * @param tried the instances that failed this request, or null
+     * @return the instance that should receive the request, or null if none is left
+     */
+    public abstract Backend choose(List<Backend> tried);
+
+    /**
+     * Picks an instance for a request about one id. Only a sharding strategy looks at the key.
+     * @param key the id of the request, or NO_KEY
+     * @param tried the instances that failed this request, or null
+     * @return the instance that should receive the request, or null if none is left
+     */
+    public Backend choose(long key, List<Backend> tried) {
+        return choose(tried);
+    }
+
+    /**
+     * @return whether every id belongs to particular instances
+     */
+    public boolean isSharded() {
+        return false;
+    }
+
+    /**
+     * @param key an id
+     * @return the instance that owns the id, or null if ids are not sharded
+     */
+    public Backend owner(int key) {
+        return null;
+    }
+
+    /**
+     * @param backend an instance
+     * @param tried the instances that failed the request, or null
+     * @return whether the instance may receive the request
+     */
+    protected static boolean eligible(Backend backend, List<Backend> tried) {
+        return backend.isAvailable() && (tried == null || !tried.contains(backend));
+    }
+
+    /**
+     * Counts a request that moved on to another instance.
+     */
+    public void failover() {
+        failovers.incrementAndGet();
+    }
+
+    /**
+     * @return the number of requests that moved on to another instance
+     */
+    public long getFailovers() {
+        return failovers.get();
+    }
+
+    /**
+     * @return the instances this load balancer chooses from
+     */
+    public Backend[] getBackends() {
+        return backends;
+    }
+
+    /**
+     * @return the instances as a JSON list for the stats endpoint
+     */
+    public String stats() {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < backends.length; i++) {
+            if (i > 0) {
+                json.append(", ");
+            }
+            json.append(backends[i].stats());
+        }
+        return json.append("]").toString();
+    }
+
+    /**
+     * Scans every instance from a starting index for the one with the fewest requests in flight.
+     * @param start the index to start at, ties go to the first one seen
+     * @param tried the instances that failed the request, or null
+     * @return the instance, or null if none is eligible
+     */
+    protected Backend leastOutstanding(int start, List<Backend> tried) {
+        Backend best = null;
+        for (int i = 0; i < backends.length; i++) {
+            Backend candidate = backends[(start + i) % backends.length];
+            if (eligible(candidate, tried) && (best == null || candidate.getOutstanding() < best.getOutstanding())) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Cycles through the instances in order.
+     */
+    public static class RoundRobin extends LoadBalancer {
+        private final AtomicInteger next = new AtomicInteger();
+
+        public RoundRobin(List<Backend> backends) {
+            super(backends);
+        }
+
+        @Override
+        public Backend choose(List<Backend> tried) {
+            int start = Math.floorMod(next.getAndIncrement(), backends.length);
+            for (int i = 0; i < backends.length; i++) {
+                Backend candidate = backends[(start + i) % backends.length];
+                if (eligible(candidate, tried)) {
+                    return candidate;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Sends to the instance with the fewest requests in flight.
+     * Ties are broken by starting the scan at a rotating offset.
+     */
+    public static class LeastOutstanding extends LoadBalancer {
+        private final AtomicInteger offset = new AtomicInteger();
+
+        public LeastOutstanding(List<Backend> backends) {
+            super(backends);
+        }
+
+        @Override
+        public Backend choose(List<Backend> tried) {
+            return leastOutstanding(Math.floorMod(offset.getAndIncrement(), backends.length), tried);
+        }
+    }
+
+    /**
+     * Samples two different instances at random and sends to the less loaded one.
+     * Close to least-outstanding in balance without scanning every instance.
+     */
+    public static class PowerOfTwo extends LoadBalancer {
+        public PowerOfTwo(List<Backend> backends) {
+            super(backends);
+        }
+
+        @Override
+        public Backend choose(List<Backend> tried) {
+            if (backends.length == 1) {
+                return eligible(backends[0], tried) ? backends[0] : null;
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(backends.length);
+            int second = random.nextInt(backends.length - 1);
+            if (second >= first) {
+                second++;
+            }
+            Backend a = backends[first];
+            Backend b = backends[second];
+            if (!eligible(a, tried) || !eligible(b, tried)) {
+                // an instance is out, pick among the rest the slow way
+                return leastOutstanding(first, tried);
+            }
+            return a.getOutstanding() <= b.getOutstanding() ? a : b;
+        }
+    }
+
+    /**
+     * Shards the ids over the instances with a consistent-hash ring. A request about an id goes to
+     * the instance that owns it, the only one holding the id, so it is neither failed over nor
+     * hedged to another instance; a standby takes over an owner that is down. Requests without an
+     * id go to the instance with the fewest in flight.
+     */
+    public static class ConsistentHash extends LoadBalancer {
+        private final HashRing ring;
+
+        public ConsistentHash(List<Backend> backends, int virtualNodes) {
+            super(backends);
+            List<String> names = new ArrayList<>();
+            for (Backend backend : backends) {
+                names.add(backend.getUrl());
+            }
+            this.ring = new HashRing(names, virtualNodes);
+        }
+
+        @Override
+        public Backend choose(List<Backend> tried) {
+            return leastOutstanding(0, tried);
+        }
+
+        @Override
+        public Backend choose(long key, List<Backend> tried) {
+            if (key == NO_KEY) {
+                return choose(tried);
+            }
+            Backend owner = owner((int) key);
+            return eligible(owner, tried) ? owner : null;
+        }
+
+        @Override
+        public boolean isSharded() {
+            return true;
+        }
+
+        @Override
+        public Backend owner(int key) {
+            return backends[ring.owner(key)];
+        }
+    }
+}
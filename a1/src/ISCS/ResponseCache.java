@@ -0,0 +1,197 @@
+package ISCS;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded LRU cache of GET /user/{id} and GET /product/{id} responses kept by ISCS.
+ * Every entry expires after a fixed time to live, and a POST for an id invalidates it.
+ * Wiping the services invalidates everything at once by moving to a new epoch, entries of an
+ * older epoch are treated as missing and dropped when they are next looked up.
+ * The cache is split into segments, each an access ordered LinkedHashMap behind its own lock.
+ * @author Agnibha Misra
+ */
+public class ResponseCache {
+    private static final int SEGMENTS = 16;
+    private static final int VERSION_STRIPES = 1024;
+    // entries checked for expiry before evicting a live one
+    private static final int EXPIRY_SCAN = 8;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final long ttlNanos;
+
+    // bumped whenever a key is invalidated, a response read before the bump is not stored
+    private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+    // bumped by invalidateAll, only entries stored in the current epoch are served
+    private final AtomicLong epoch = new AtomicLong();
+
+    // cache statistics
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * Creates a cache.
+     * @param capacity max number of responses held
+     * @param ttlMillis how long a response may be served from the cache
+     */
+    public ResponseCache(int capacity, long ttlMillis) {
+        int perSegment = Math.max(1, capacity / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+        this.ttlNanos = ttlMillis * 1_000_000L;
+    }
+
+    /**
+     * Looks up a cached response.
+     * @param key the request path
+     * @return an Object array where [0] is the status code (int) and [1] is the response (String), or null on a miss
+     */
+    public Object[] get(String key) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            Entry entry = segment.get(key);
+            if (entry != null) {
+                if (entry.epoch == epoch.get() && System.nanoTime() - entry.expiresAt < 0) {
+                    hits.incrementAndGet();
+                    return entry.response;
+                }
+                segment.remove(key);
+                expirations.incrementAndGet();
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Returns the version of a key, taken before the backend is asked so that
+     * a response that raced with an invalidation is not stored.
+     * @param key the request path
+     * @return the current version of the key
+     */
+    public long version(String key) {
+        return versions.get(stripeFor(key));
+    }
+
+    /**
+     * Stores a response unless the key was invalidated since the version was taken.
+     * @param key the request path
+     * @param version the version returned by version(key) before the request was sent
+     * @param response the status code and body
+     */
+    public void put(String key, long version, Object[] response) {
+        // read before the version, invalidateAll bumps the versions before the epoch
+        long current = epoch.get();
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            if (versions.get(stripeFor(key)) != version) {
+                return;
+            }
+            segment.put(key, new Entry(response, System.nanoTime() + ttlNanos, current));
+        }
+    }
+
+    /**
+     * Drops a cached response, called when a POST for its id passes through.
+     * @param key the request path
+     */
+    public void invalidate(String key) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            versions.incrementAndGet(stripeFor(key));
+            if (segment.remove(key) != null) {
+                invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Drops every cached response, called when the services are wiped. Takes the same time
+     * however many responses are cached.
+     */
+    public void invalidateAll() {
+        // responses being fetched must not be stored either
+        for (int i = 0; i < VERSION_STRIPES; i++) {
+            versions.incrementAndGet(i);
+        }
+        epoch.incrementAndGet();
+        invalidations.incrementAndGet();
+    }
+
+    /**
+     * @return the cache counters as a JSON object
+     */
+    public String stats() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return "{\"size\": " + size + ", \"hits\": " + hits.get() + ", \"misses\": " + misses.get()
+            + ", \"evictions\": " + evictions.get() + ", \"expirations\": " + expirations.get()
+            + ", \"invalidations\": " + invalidations.get() + "}";
+    }
+
+    private Segment segmentFor(String key) {
+        return segments[Math.floorMod(key.hashCode() * 0x9E3779B9, SEGMENTS)];
+    }
+
+    private int stripeFor(String key) {
+        return Math.floorMod(key.hashCode(), VERSION_STRIPES);
+    }
+
+    /**
+     * A cached response, the time it expires (System.nanoTime) and the epoch it was stored in.
+     */
+    private static class Entry {
+        final Object[] response;
+        final long expiresAt;
+        final long epoch;
+
+        Entry(Object[] response, long expiresAt, long epoch) {
+            this.response = response;
+            this.expiresAt = expiresAt;
+            this.epoch = epoch;
+        }
+    }
+
+    /**
+     * One LRU segment. Inserting past capacity evicts the least recently used entry.
+     */
+    private class Segment extends LinkedHashMap<String, Entry> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() <= capacity) {
+                return false;
+            }
+            // look at the least recently used few first, an expired one is dropped instead of a live one
+            long now = System.nanoTime();
+            Iterator<Entry> it = values().iterator();
+            for (int i = 0; i < EXPIRY_SCAN && it.hasNext(); i++) {
+                if (now - it.next().expiresAt >= 0) {
+                    it.remove();
+                    expirations.incrementAndGet();
+                    return false;
+                }
+            }
+            evictions.incrementAndGet();
+            return true;
+        }
+    }
+}
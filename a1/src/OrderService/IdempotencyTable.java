@@ -0,0 +1,138 @@
+package OrderService;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Bounded table of the responses to /order POSTs that carried an Idempotency-Key header.
+ * The first request with a key claims it and runs; a retry with the same key gets the stored
+ * response, or waits for it if the first request is still running, without calling ISCS again.
+ * Entries expire after a fixed time to live. Failed requests (5xx) are not kept, since they
+ * released whatever they reserved, so a retry runs the order again. The exception are failures
+ * that leave it unknown whether the order took effect upstream, such as a timeout: running
+ * those again could take the stock twice, so a retry gets the failure instead.
+ * The table is split into segments, each an insertion ordered LinkedHashMap behind its own
+ * lock; the oldest entries are the first to expire, so expired ones are dropped from the front.
+ * @author Agnibha Misra
+ */
+final class IdempotencyTable {
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final long ttlNanos;
+
+    /**
+     * The request made with a key and, once it is answered, its [status code, response].
+     */
+    static final class Entry {
+        final String request;
+        final CompletableFuture<Object[]> response = new CompletableFuture<>();
+        final long expiresAt;
+        // whether the request may have taken effect upstream although it failed
+        volatile boolean inDoubt;
+
+        private Entry(String request, long expiresAt) {
+            this.request = request;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Creates a table.
+     * @param capacity max number of keys held
+     * @param ttlMillis how long a key is remembered
+     */
+    IdempotencyTable(int capacity, long ttlMillis) {
+        int perSegment = Math.max(1, capacity / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+        this.ttlNanos = ttlMillis * 1_000_000L;
+    }
+
+    /**
+     * Claims a key for a request, unless a live entry already holds it.
+     * @param key the Idempotency-Key of the request
+     * @param request the request body
+     * @param claimed receives the new entry at [0] when the key is claimed
+     * @return the entry already holding the key, or null if the caller claimed it
+     */
+    Entry claim(String key, String request, Entry[] claimed) {
+        Segment segment = segmentFor(key);
+        long now = System.nanoTime();
+        synchronized (segment) {
+            segment.dropExpired(now);
+            Entry existing = segment.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            Entry entry = new Entry(request, now + ttlNanos);
+            segment.put(key, entry);
+            claimed[0] = entry;
+            return null;
+        }
+    }
+
+    /**
+     * Stores the response of a claimed request and hands it to the retries waiting for it.
+     * A failure frees the key for a retry unless the entry is in doubt.
+     * @param key the Idempotency-Key of the request
+     * @param entry the entry from claim
+     * @param code the status code
+     * @param body the response body
+     */
+    void complete(String key, Entry entry, int code, String body) {
+        if (code >= 500 && !entry.inDoubt) {
+            Segment segment = segmentFor(key);
+            synchronized (segment) {
+                segment.remove(key, entry);
+            }
+        }
+        entry.response.complete(new Object[] {code, body});
+    }
+
+    /**
+     * Forgets every key, called when the orders are wiped.
+     */
+    void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    private Segment segmentFor(String key) {
+        return segments[Math.floorMod(key.hashCode() * 0x9E3779B9, SEGMENTS)];
+    }
+
+    /**
+     * One segment in insertion order. Inserting past capacity drops the oldest key.
+     */
+    private static class Segment extends LinkedHashMap<String, Entry> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, false);
+            this.capacity = capacity;
+        }
+
+        /**
+         * Removes the expired keys, which are all at the front.
+         */
+        void dropExpired(long now) {
+            Iterator<Entry> it = values().iterator();
+            while (it.hasNext() && now - it.next().expiresAt >= 0) {
+                it.remove();
+            }
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > capacity;
+        }
+    }
+}
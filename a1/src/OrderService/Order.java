@@ -0,0 +1,93 @@
+package OrderService;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An order as it is kept in the OrderService ledger.
+ * Records are immutable. Unlike users and products the JSON is built when an order is read,
+ * since there can be millions of orders and few of them are ever read back.
+ * @author Agnibha Misra
+ */
+final class Order {
+    /**
+     * The status of an order that was placed.
+     */
+    static final String PLACED = "Success";
+
+    /**
+     * The status of an order whose stock is being put back.
+     */
+    static final String CANCELLING = "Cancelling";
+
+    /**
+     * The status of an order that was cancelled, its stock has been put back unless the release
+     * failed in a way that left it unknown whether it ran.
+     */
+    static final String CANCELLED = "Cancelled";
+
+    final int id;
+    final int productId;
+    final int userId;
+    final int quantity;
+    final String status;
+
+    /**
+     * Creates an order record.
+     * @param id the order id
+     * @param productId the product ordered
+     * @param userId the user who placed the order
+     * @param quantity how many were ordered
+     * @param status the status, e.g. PLACED
+     */
+    Order(int id, int productId, int userId, int quantity, String status) {
+        this.id = id;
+        this.productId = productId;
+        this.userId = userId;
+        this.quantity = quantity;
+        this.status = status;
+    }
+
+    /**
+     * @param status the new status
+     * @return a copy of the record with the status changed
+     */
+    Order withStatus(String status) {
+        return new Order(id, productId, userId, quantity, status);
+    }
+
+    /**
+     * @return the record as the JSON response body
+     */
+    String toJson() {
+        return String.format("{\"id\": %d, \"product_id\": %d, \"user_id\": %d, \"quantity\": %d, \"status\": \"%s\"}",
+            id, productId, userId, quantity, status);
+    }
+
+    /**
+     * @return the record as stored in the write-ahead log, the id is kept by the log entry
+     */
+    byte[] toBytes() {
+        byte[] state = status.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(16 + state.length);
+        buffer.putInt(productId).putInt(userId).putInt(quantity).putInt(state.length).put(state);
+        return buffer.array();
+    }
+
+    /**
+     * Reads a record written by toBytes.
+     * @param id the order id
+     * @param data the stored record
+     * @return the order
+     */
+    static Order fromBytes(int id, byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        int productId = buffer.getInt();
+        int userId = buffer.getInt();
+        int quantity = buffer.getInt();
+        byte[] state = new byte[buffer.getInt()];
+        buffer.get(state);
+        // share one String per status between the records
+        return new Order(id, productId, userId, quantity, new String(state, StandardCharsets.UTF_8).intern());
+    }
+}
@@ -0,0 +1,42 @@
+package OrderService;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hands out unique order ids without the request threads contending on one counter.
+ * Ids are split into stripes by their remainder modulo the number of stripes, and every
+ * stripe has its own sequence: stripe s gives out s, s + STRIPES, s + 2 * STRIPES, ...
+ * A thread always uses the same stripe, picked from its id. The counters are spaced a cache
+ * line apart, so threads on different stripes do not share a line either.
+ * @author Agnibha Misra
+ */
+class OrderIds {
+    private static final int STRIPES = 64;
+    // longs per cache line (and then some), the counter of stripe s is at s * SPACING
+    private static final int SPACING = 16;
+
+    private final AtomicLongArray next = new AtomicLongArray(STRIPES * SPACING);
+
+    /**
+     * @param after ids up to this one are taken, e.g. the highest id of the recovered orders, -1 for none
+     */
+    OrderIds(int after) {
+        long sequence = after < 0 ? 0 : after / STRIPES + 1;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            next.set(stripe * SPACING, sequence);
+        }
+    }
+
+    /**
+     * @return an id that has not been given out before
+     * @throws IllegalStateException if the ids have run out
+     */
+    int next() {
+        int stripe = (int) (Thread.currentThread().getId() & (STRIPES - 1));
+        long id = next.getAndIncrement(stripe * SPACING) * STRIPES + stripe;
+        if (id > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Out of order ids");
+        }
+        return (int) id;
+    }
+}
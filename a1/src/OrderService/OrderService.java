@@ -1,16 +1,32 @@
 package OrderService;
 
 import Helpers.Helpers;
+import Helpers.HttpClientPool;
+import Helpers.JsonFields;
+import Helpers.Metrics;
+import Helpers.OrderedExecutor;
+import Helpers.RecordStore;
+import Helpers.Tracer;
 import OrderService.OrderService.ForwardHandler;
+import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 import java.io.*;
+import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.Random;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * The API gateway for the system.
@@ -25,6 +41,38 @@ public class OrderService {
      */
     private static String InterServiceCommunicationURL;
 
+    /**
+     * Milliseconds an order may spend waiting on ISCS before it fails.
+     */
+    private static int orderTimeout;
+
+    /**
+     * Milliseconds a reservation may take to answer, as long as ISCS waits for the product
+     * service. It outlives the order's deadline, so a reserve applied after the order gave up
+     * still answers and has its stock released.
+     */
+    private static final int RESERVE_TIMEOUT = 30000;
+
+    /**
+     * The ledger of placed orders, indexed by order id and kept in a write-ahead log.
+     */
+    private static RecordStore<Order> orders;
+
+    /**
+     * Gives out the ids of new orders.
+     */
+    private static OrderIds orderIds;
+
+    /**
+     * The responses of /order POSTs by Idempotency-Key, null when keys are turned off.
+     */
+    private static IdempotencyTable idempotency;
+
+    /**
+     * The server, stopped by a POST to /shutdown.
+     */
+    private static HttpServer httpServer;
+
     /**
      * Main function for OrderService
      * @param args command line arguements
@@ -51,25 +99,127 @@ public class OrderService {
             System.exit(1);
         }
 
+        orderTimeout = Helpers.getConfigInt(config, "OrderService", "orderTimeoutMillis", 5000);
+
         // create the URL for ISCS
         InterServiceCommunicationURL = "http://" + InterServiceCommunicationIP + ":" + InterServiceCommunicationPort; 
 
+        // load the orders placed before, new ids continue after the highest one
+        orders = RecordStore.open(config, "OrderService", OrderServiceport, Order::toBytes, Order::fromBytes);
+        int[] highest = {-1};
+        List<Order> interrupted = new ArrayList<>();
+        orders.forEach((id, order) -> {
+            highest[0] = Math.max(highest[0], id);
+            if (order.status.equals(Order.CANCELLING)) {
+                interrupted.add(order);
+            }
+        });
+        orderIds = new OrderIds(highest[0]);
+        // a cancellation cut short by a restart may have released its stock, it is not retried
+        for (Order order : interrupted) {
+            orders.replace(order.id, order, order.withStatus(Order.CANCELLED)).join();
+        }
+
+        // an idempotencyKeys of 0 turns idempotency keys off
+        int keys = Helpers.getConfigInt(config, "OrderService", "idempotencyKeys", 100000);
+        int keyTtl = Helpers.getConfigInt(config, "OrderService", "idempotencyTtlMillis", 600000);
+        if (keys > 0) {
+            idempotency = new IdempotencyTable(keys, keyTtl);
+        }
+
         // create the http server with the OrderService port
-        HttpServer httpServer = HttpServer.create(new InetSocketAddress(OrderServiceport), 0);
+        // write responses right away, otherwise the body waits for the ACK of the headers (Nagle)
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        httpServer = HttpServer.create(new InetSocketAddress(OrderServiceport), 0);
 
         // set the forward handlers to the appropriate unique ones
-        httpServer.createContext("/order", new OrderHandler());
-        httpServer.createContext("/user", new ForwardHandler()); 
-        httpServer.createContext("/product", new ForwardHandler());
-
-        // no concurrency needed for A1 as seen on piazza (CHANGE IN A2)
-        httpServer.setExecutor(null);
+        HttpContext orders = httpServer.createContext("/order", new OrderHandler());
+        HttpContext users = httpServer.createContext("/user", new ForwardHandler());
+        HttpContext products = httpServer.createContext("/product", new ForwardHandler());
+        httpServer.createContext("/stats", new StatsHandler());
+        httpServer.createContext("/wipe", new ControlHandler());
+        httpServer.createContext("/shutdown", new ControlHandler());
+        // GET /metrics reports the latency and status codes of every route
+        Metrics.shared().serve(httpServer, orders, users, products);
+        // traces start here, for "traceSamplePercent" of the requests and every request with an X-Trace-Id
+        Tracer.shared().open(config, "OrderService", OrderServiceport);
+        Tracer.shared().instrument(orders, true);
+        Tracer.shared().instrument(users, true);
+        Tracer.shared().instrument(products, true);
+
+        // handle requests concurrently, a concurrent workload replay keeps each id's commands in order itself
+        String mode = Helpers.getConfigValue(config, "OrderService", "executor");
+        int threads = Helpers.getConfigInt(config, "OrderService", "threads", Runtime.getRuntime().availableProcessors() * 4);
+        httpServer.setExecutor(Tracer.timeQueue(OrderedExecutor.createExecutor(mode == null ? "virtual" : mode, threads)));
 
         httpServer.start();
         System.out.println("OrderService server running: " + OrderServiceport);
         System.err.println("Forwarding to InterServiceCommunication: " + InterServiceCommunicationURL);
     }
 
+    /**
+     * Reports the connection pool statistics of OrderService as JSON on GET /stats.
+     */
+    public static class StatsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            byte[] responseBytes = HttpClientPool.shared().stats().getBytes();
+            exchange.sendResponseHeaders(200, responseBytes.length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(responseBytes);
+            os.close();
+        }
+    }
+
+    /**
+     * Forwards POST /wipe and POST /shutdown to ISCS, which passes them on to every instance.
+     * A wipe also empties the order ledger, a shutdown flushes it and stops OrderService as well.
+     */
+    public static class ControlHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String path = exchange.getRequestURI().getPath();
+            exchange.getRequestBody().readAllBytes();
+            if (!exchange.getRequestMethod().equalsIgnoreCase("post") || !(path.equals("/wipe") || path.equals("/shutdown"))) {
+                exchange.sendResponseHeaders(405, 0);
+                exchange.getResponseBody().close();
+                return;
+            }
+
+            try {
+                Object[] response = Helpers.requestSend(InterServiceCommunicationURL + path, "POST", "{}");
+                if ((int) response[0] == 200) {
+                    // the users and products are gone or stopped, so are the orders
+                    if (path.equals("/wipe")) {
+                        orders.wipe().join();
+                        if (idempotency != null) {
+                            idempotency.clear();
+                        }
+                    } else {
+                        orders.close().join();
+                    }
+                }
+                byte[] responseBytes = ((String) response[1]).getBytes();
+                exchange.sendResponseHeaders((int) response[0], responseBytes.length);
+                OutputStream os = exchange.getResponseBody();
+                os.write(responseBytes);
+                os.close();
+            } catch (IOException | CompletionException e) {
+                e.printStackTrace();
+                exchange.sendResponseHeaders(500, 0);
+                exchange.getResponseBody().close();
+            }
+
+            if (path.equals("/shutdown")) {
+                // stop waits for the request threads, so it runs on a thread of its own
+                new Thread(() -> {
+                    httpServer.stop(1);
+                    System.exit(0);
+                }, "shutdown").start();
+            }
+        }
+    }
+
     /**
      * Handler that forwards requests to ISCS
      */
@@ -85,6 +235,7 @@ public class OrderService {
         public void handle(HttpExchange exchange) throws IOException {
             try {
                 // exchange object contains both path and method of the request
+                long parsing = System.nanoTime();
                 String method = exchange.getRequestMethod();
                 String path = exchange.getRequestURI().getPath();
 
@@ -97,16 +248,19 @@ public class OrderService {
                 else {
                     body = "";
                 }
+                Tracer.stage(exchange, "parse", parsing);
 
                 // response is a object array as follows: [code, body]
                 Object[] response = Helpers.requestSend(InterServiceCommunicationURL + path, method, body);
 
                 // use index 1 for the body of the response
+                long serializing = System.nanoTime();
                 byte[] responseBytes = ((String) response[1]).getBytes();
                 exchange.sendResponseHeaders((int)response[0], responseBytes.length);
                 OutputStream os = exchange.getResponseBody();
                 os.write(responseBytes);
                 os.close();
+                Tracer.stage(exchange, "serialize", serializing);
             } catch (Exception e) {
                 e.printStackTrace();
                 exchange.sendResponseHeaders(500, 0);
@@ -115,15 +269,25 @@ public class OrderService {
         }
     }
     /**
-     * Processes the order placement via requests through multiple service calls
+     * Processes the order placement via requests through multiple service calls.
+     * A POST with an Idempotency-Key header runs once per key, retries get the first response.
      * @author Agnibha Misra
      */
     public static class OrderHandler implements HttpHandler {
-        
+        // the entries of the requests running now that claimed an idempotency key; exchange
+        // attributes cannot hold them, on Java 17 those are shared by every request of the context
+        private static final Map<HttpExchange, IdempotencyTable.Entry> claims = new ConcurrentHashMap<>();
+
         @Override
         public void handle(HttpExchange exchange) throws IOException {
 
-            // do not accept non post requests
+            // GET /order/{id} reads an order back from the ledger
+            if (exchange.getRequestMethod().equalsIgnoreCase("get")) {
+                getOrder(exchange, exchange.getRequestURI().getPath());
+                return;
+            }
+
+            // do not accept other non post requests
             if (!exchange.getRequestMethod().equalsIgnoreCase("post")) {
                 exchange.sendResponseHeaders(405, 0);
                 exchange.getResponseBody().close();
@@ -132,6 +296,7 @@ public class OrderService {
 
             try {
                 // read the request body
+                long parsing = System.nanoTime();
                 Scanner scanner = new Scanner(exchange.getRequestBody()).useDelimiter("\\A");
                 String body;
                 if (scanner.hasNext()) {
@@ -140,68 +305,50 @@ public class OrderService {
                     body = "";
                 }
                 scanner.close();
+
+                // a retry is answered with the response of the request that first used its key
+                String key = exchange.getRequestHeaders().getFirst("Idempotency-Key");
+                if (key != null && idempotency != null) {
+                    IdempotencyTable.Entry[] claimed = new IdempotencyTable.Entry[1];
+                    IdempotencyTable.Entry existing = idempotency.claim(key, body, claimed);
+                    if (existing != null) {
+                        replay(exchange, existing, body);
+                        return;
+                    }
+                    claims.put(exchange, claimed[0]);
+                }
                 
+                // read the fields of the request once
+                JsonFields fields = JsonFields.parse(body);
+                Tracer.stage(exchange, "parse", parsing);
+
                 // get the command from the body of the request
-                String command = Helpers.parseString(body, "command");
+                String command = fields.getString("command");
 
                 // make sure the command is place order
                 if ("place order".equalsIgnoreCase(command)) {
 
                     // use the helpers to get the metadata needed
-                    Integer productID = Helpers.parseInteger(body, "product_id");
-                    Integer userID = Helpers.parseInteger(body, "user_id");
-                    Integer quantity = Helpers.parseInteger(body, "quantity"); 
+                    Integer productID = fields.getInteger("product_id");
+                    Integer userID = fields.getInteger("user_id");
+                    Integer quantity = fields.getInteger("quantity");
 
                     if (productID == null || userID == null || quantity == null || quantity <= 0) {
                         JsonSender(exchange, 400, "{\"status\": \"Invalid Request\"}");
                         return;
                     }
 
-                    // use an empty request to /user to check if the user exists
-                    Object[] response = Helpers.requestSend(InterServiceCommunicationURL + "/user/" + userID, "GET", null);
-                    if ((int)response[0] == 404) {
-                        // the user does not exist
-                        JsonSender(exchange, 400, "{\"status\": \"Invalid Request\"}");
-                        return;
-                    }
+                    placeOrder(exchange, productID, userID, quantity);
 
-                    // use an empty request to /product to check if product exists and get some metadata for further tests
-                    Object[] response2 = Helpers.requestSend(InterServiceCommunicationURL + "/product/" + productID, "GET", null);
-                    if ((int)response2[0] == 404) {
-                        // the product does not exist
+                }
+                else if ("cancel order".equalsIgnoreCase(command)) {
+                    Integer orderID = fields.getInteger("order_id");
+                    if (orderID == null) {
                         JsonSender(exchange, 400, "{\"status\": \"Invalid Request\"}");
                         return;
                     }
 
-                    // check if there is enough of this product remaining
-                    Integer remainingAmount = Helpers.parseInteger((String)response2[1], "quantity");
-                    if (remainingAmount == null || remainingAmount < quantity) {
-                        // not enough
-                        JsonSender(exchange, 400, "{\"status\": \"Exceeded quantity limit\"}");
-                        return;
-                    }
-
-                    // calculate the new remaining amount using a update request
-                    remainingAmount -= quantity; 
-                    
-                    // the update request
-                    String updateRequest = String.format("{\"command\": \"update\", \"id\": %d, \"quantity\": %d}", productID, (int)remainingAmount);
-                    Object[] updateResponse = Helpers.requestSend(InterServiceCommunicationURL + "/product", "POST", updateRequest);
-
-                    if ((int) updateResponse[0] == 200) {
-                        // create a ID for the order
-                        Random random = new Random();
-                        int orderID = random.nextInt(100000);
-
-                        String jsonResponse = String.format("{\"id\": %d, \"product_id\": %d, \"user_id\": %d, \"quantity\": %d, \"status\": \"Success\"}", orderID, productID, userID, quantity);
-                        
-                        JsonSender(exchange, 200, jsonResponse);
-                    
-                    }
-                    else {
-                        JsonSender(exchange, 500, "{\"status\": \"Internal Error\"}");
-                    }
-
+                    cancelOrder(exchange, orderID);
                 }
                 else {
                     JsonSender(exchange, 400, "{\"status\": \"Invalid Request\"}");
@@ -211,6 +358,311 @@ public class OrderService {
             } catch (Exception e) {
                 e.printStackTrace();
                 JsonSender(exchange, 500, "{\"status\": \"Internal Server Error\"}");
+            } finally {
+                // a request that ended without sending a response, on an Error or a failed send,
+                // still completes its entry so the retries waiting for it are not left in progress
+                IdempotencyTable.Entry entry = claims.remove(exchange);
+                if (entry != null) {
+                    idempotency.complete(exchange.getRequestHeaders().getFirst("Idempotency-Key"), entry,
+                        500, "{\"status\": \"Internal Server Error\"}");
+                }
+            }
+        }
+
+        /**
+         * Places an order. The user check and the stock reservation do not depend on each other,
+         * so both are sent at once and the order waits at most orderTimeoutMillis for them.
+         * A missing user or product fails the order as soon as its answer arrives. The reservation
+         * cannot be taken back once sent, so if the order fails after stock was reserved, the
+         * stock is released again when the reservation's answer comes in, even after the deadline.
+         * Reserving before the user is known to exist means an order for a missing user holds the
+         * stock until its release, and a concurrent order for the last units may be refused.
+         * @param exchange HttpExchange object for requests and responses
+         * @param productID the product ordered
+         * @param userID the user placing the order
+         * @param quantity how many are ordered
+         * @throws IOException in the case there's an error in writing
+         */
+        private void placeOrder(HttpExchange exchange, int productID, int userID, int quantity) throws IOException {
+            long deadline = System.nanoTime() + orderTimeout * 1_000_000L;
+
+            // use an empty request to /user to check if the user exists, and take the stock in
+            // one atomic step on the product service at the same time
+            String reserveRequest = String.format("{\"command\": \"reserve\", \"id\": %d, \"quantity\": %d}", productID, quantity);
+            CompletableFuture<Object[]> userCheck = Helpers.requestSendAsync(InterServiceCommunicationURL + "/user/" + userID, "GET", null, orderTimeout);
+            CompletableFuture<Object[]> reservation = Helpers.requestSendAsync(InterServiceCommunicationURL + "/product", "POST", reserveRequest,
+                Math.max(orderTimeout, RESERVE_TIMEOUT));
+
+            // completes as soon as either answer alone decides that the order is invalid
+            CompletableFuture<Void> invalid = new CompletableFuture<>();
+            userCheck.thenAccept(response -> {
+                if ((int)response[0] == 404) {
+                    invalid.complete(null);
+                }
+            });
+            reservation.thenAccept(response -> {
+                if ((int)response[0] == 404) {
+                    invalid.complete(null);
+                }
+            });
+
+            try {
+                CompletableFuture.anyOf(invalid, CompletableFuture.allOf(userCheck, reservation))
+                    .get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                userCheck.cancel(true);
+                releaseIfReserved(reservation, productID, quantity);
+                inDoubt(exchange);
+                JsonSender(exchange, 504, "{\"status\": \"Timeout\"}");
+                return;
+            } catch (ExecutionException e) {
+                // one of the calls failed outright, handled below like a missing answer
+            } catch (InterruptedException e) {
+                // the calls not answered yet are handled below like a missing answer
+                Thread.currentThread().interrupt();
+            }
+
+            Object[] user = resultOf(userCheck);
+            Object[] reserved = resultOf(reservation);
+
+            if ((user != null && (int)user[0] == 404) || (reserved != null && (int)reserved[0] == 404)) {
+                // the user or the product does not exist, the other call is no longer needed
+                userCheck.cancel(true);
+                releaseIfReserved(reservation, productID, quantity);
+                JsonSender(exchange, 400, "{\"status\": \"Invalid Request\"}");
+                return;
+            }
+            if (user == null || reserved == null) {
+                // a call failed without an answer
+                releaseIfReserved(reservation, productID, quantity);
+                if (reserved == null) {
+                    inDoubt(exchange);
+                }
+                JsonSender(exchange, 500, "{\"status\": \"Internal Error\"}");
+                return;
+            }
+            if ((int)reserved[0] == 400) {
+                // not enough
+                JsonSender(exchange, 400, "{\"status\": \"Exceeded quantity limit\"}");
+                return;
+            }
+
+            if ((int)reserved[0] == 200) {
+                // record the order under a new id, it is only confirmed once the ledger entry is durable
+                Order order = new Order(orderIds.next(), productID, userID, quantity, Order.PLACED);
+                long logging = System.nanoTime();
+                try {
+                    orders.put(order.id, order).join();
+                    Tracer.stage(exchange, "ledger", logging);
+                } catch (CompletionException e) {
+                    e.printStackTrace();
+                    releaseIfReserved(reservation, productID, quantity);
+                    JsonSender(exchange, 500, "{\"status\": \"Internal Error\"}");
+                    return;
+                }
+
+                JsonSender(exchange, 200, order.toJson());
+            }
+            else {
+                JsonSender(exchange, 500, "{\"status\": \"Internal Error\"}");
+            }
+        }
+
+        /**
+         * Cancels an order and puts its quantity back on the product with a release, which the
+         * product service applies as one increment in the product's lane. Only the request that
+         * moves the order from placed to cancelling releases the stock; cancelling an order that is
+         * already cancelled answers from the ledger without calling ISCS, and one that is being
+         * cancelled answers 409.
+         * The order goes back to placed only if the release surely did not run. A release that may
+         * have run leaves the order cancelled, so a retry cannot restock twice; the failure is then
+         * kept under the request's idempotency key.
+         * @param exchange HttpExchange object for requests and responses
+         * @param orderID the order to cancel
+         * @throws IOException in the case there's an error in writing
+         */
+        private void cancelOrder(HttpExchange exchange, int orderID) throws IOException {
+            Order order = orders.get(orderID);
+            if (order == null) {
+                JsonSender(exchange, 404, "{\"status\": \"Invalid Request\"}");
+                return;
+            }
+            if (order.status.equals(Order.CANCELLED)) {
+                JsonSender(exchange, 200, order.toJson());
+                return;
+            }
+            if (order.status.equals(Order.CANCELLING)) {
+                JsonSender(exchange, 409, "{\"status\": \"Cancellation in progress\"}");
+                return;
+            }
+
+            // the cancellation is durable before the stock goes back, so a crash in between
+            // can lose the restock but never repeat it
+            Order cancelling = order.withStatus(Order.CANCELLING);
+            CompletableFuture<Void> logged = orders.replace(orderID, order, cancelling);
+            if (logged == null) {
+                // another request changed the order first, answer with what it left
+                cancelOrder(exchange, orderID);
+                return;
+            }
+            long logging = System.nanoTime();
+            try {
+                logged.join();
+                Tracer.stage(exchange, "ledger", logging);
+            } catch (CompletionException e) {
+                e.printStackTrace();
+                settle(orderID, cancelling, order);
+                JsonSender(exchange, 500, "{\"status\": \"Internal Error\"}");
+                return;
+            }
+
+            String releaseRequest = String.format("{\"command\": \"release\", \"id\": %d, \"quantity\": %d}", order.productId, order.quantity);
+            int code;
+            try {
+                code = (int) Helpers.requestSend(InterServiceCommunicationURL + "/product", "POST", releaseRequest)[0];
+            } catch (ConnectException e) {
+                // ISCS was not reached, nothing was sent
+                code = 503;
+            } catch (IOException e) {
+                e.printStackTrace();
+                code = 500;
+            }
+            // a product deleted since the order has no stock to restore
+            if (code == 200 || code == 404) {
+                Order cancelled = order.withStatus(Order.CANCELLED);
+                settle(orderID, cancelling, cancelled);
+                JsonSender(exchange, 200, cancelled.toJson());
+                return;
+            }
+            // a 503 was not run by any instance and a 4xx was refused, a retry may release the stock
+            if (code == 503 || code < 500) {
+                settle(orderID, cancelling, order);
+                JsonSender(exchange, 500, "{\"status\": \"Internal Error\"}");
+                return;
+            }
+            // the release may have been applied, the restock is lost rather than risked twice
+            System.err.println("Release for cancelled order " + orderID + " failed with " + code + ", its stock may not be back");
+            settle(orderID, cancelling, order.withStatus(Order.CANCELLED));
+            inDoubt(exchange);
+            JsonSender(exchange, 500, "{\"status\": \"Internal Error\"}");
+        }
+
+        /**
+         * Moves an order out of cancelling. The change is logged in the background, the response
+         * does not wait for it.
+         * @param orderID the order
+         * @param cancelling the record this request put in the ledger
+         * @param settled the record to replace it with
+         */
+        private void settle(int orderID, Order cancelling, Order settled) {
+            CompletableFuture<Void> logged = orders.replace(orderID, cancelling, settled);
+            if (logged != null) {
+                logged.exceptionally(error -> {
+                    error.printStackTrace();
+                    return null;
+                });
+            }
+        }
+
+        /**
+         * Answers a request whose idempotency key was used before with the stored response,
+         * waiting for it if the first request is still running.
+         * @param exchange HttpExchange object for requests and responses
+         * @param entry the entry holding the key
+         * @param body the body of this request
+         * @throws IOException in the case there's an error in writing
+         */
+        private void replay(HttpExchange exchange, IdempotencyTable.Entry entry, String body) throws IOException {
+            if (!entry.request.equals(body)) {
+                JsonSender(exchange, 422, "{\"status\": \"Idempotency key reused with a different request\"}");
+                return;
+            }
+            Object[] response;
+            try {
+                // the first request gives up after orderTimeoutMillis, this leaves it time to answer
+                response = entry.response.get(orderTimeout * 2L, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException | ExecutionException | InterruptedException e) {
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+                JsonSender(exchange, 409, "{\"status\": \"Request in progress\"}");
+                return;
+            }
+            JsonSender(exchange, (int) response[0], (String) response[1]);
+        }
+
+        /**
+         * Answers GET /order/{id} from the ledger.
+         * @param exchange HttpExchange object for requests and responses
+         * @param path the request path
+         * @throws IOException in the case there's an error in writing
+         */
+        private void getOrder(HttpExchange exchange, String path) throws IOException {
+            String[] tokens = path.split("/");
+            if (tokens.length != 3) {
+                JsonSender(exchange, 400, "{}");
+                return;
+            }
+            Order order;
+            try {
+                order = orders.get(Integer.parseInt(tokens[2]));
+            } catch (NumberFormatException e) {
+                JsonSender(exchange, 400, "{}");
+                return;
+            }
+            if (order == null) {
+                JsonSender(exchange, 404, "{}");
+                return;
+            }
+            JsonSender(exchange, 200, order.toJson());
+        }
+
+        /**
+         * @param call a request sent with Helpers.requestSendAsync
+         * @return its [status code, response], or null if it has not answered or failed
+         */
+        private Object[] resultOf(CompletableFuture<Object[]> call) {
+            if (!call.isDone() || call.isCompletedExceptionally()) {
+                return null;
+            }
+            return call.join();
+        }
+
+        /**
+         * Gives back the stock of a failed order once its reservation has answered, if it succeeded.
+         * @param reservation the reserve request of the order
+         * @param productID the product ordered
+         * @param quantity how many were reserved
+         */
+        private void releaseIfReserved(CompletableFuture<Object[]> reservation, int productID, int quantity) {
+            reservation.whenComplete((response, error) -> {
+                if (error != null) {
+                    // no answer even after RESERVE_TIMEOUT, whether the stock was taken is unknown
+                    System.err.println("Reservation of " + quantity + " of product " + productID + " got no answer: " + error);
+                    return;
+                }
+                if ((int)response[0] != 200) {
+                    return;
+                }
+                String releaseRequest = String.format("{\"command\": \"release\", \"id\": %d, \"quantity\": %d}", productID, quantity);
+                try {
+                    Helpers.requestSend(InterServiceCommunicationURL + "/product", "POST", releaseRequest);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+
+        /**
+         * Keeps the failure about to be sent under the request's idempotency key, for an order
+         * whose reservation may have been applied without an answer; a retry running it again
+         * could take the stock twice.
+         * @param exchange HttpExchange object for requests and responses
+         */
+        private void inDoubt(HttpExchange exchange) {
+            IdempotencyTable.Entry entry = claims.get(exchange);
+            if (entry != null) {
+                entry.inDoubt = true;
             }
         }
 
@@ -223,6 +675,13 @@ public class OrderService {
          * @throws IOException in the case there's an error in writing
          */
         public void JsonSender(HttpExchange exchange, int code, String json) throws IOException {
+            long serializing = System.nanoTime();
+            // keep the response for retries with the same idempotency key
+            IdempotencyTable.Entry entry = claims.remove(exchange);
+            if (entry != null) {
+                idempotency.complete(exchange.getRequestHeaders().getFirst("Idempotency-Key"), entry, code, json);
+            }
+
             byte[] bytes = json.getBytes();
 
             exchange.sendResponseHeaders(code, bytes.length);
@@ -230,6 +689,7 @@ public class OrderService {
             OutputStream os = exchange.getResponseBody();
             os.write(bytes);
             os.close();
+            Tracer.stage(exchange, "serialize", serializing);
         }
 
     }
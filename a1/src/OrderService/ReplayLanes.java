@@ -0,0 +1,120 @@
+package OrderService;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs workload commands concurrently while keeping the commands of each id in file order.
+ * Every user or product id hashes to a lane, and a command starts only once the command before
+ * it in each of its lanes has finished. An order is in the lane of its user and of its product,
+ * so it waits for both and both wait for it. Ids that share a lane are run one after another,
+ * which is never wrong, only slower.
+ * A command whose ids are not known until it runs, like cancelling an order, is submitted after
+ * every earlier command, and as a barrier if the later commands have to wait for it as well.
+ * @author Agnibha Misra
+ */
+class ReplayLanes {
+    // the last command submitted to each lane
+    private final CompletableFuture<?>[] tails;
+    private final Executor workers;
+    // bounds the commands read ahead of the ones finished
+    private final Semaphore window;
+
+    /**
+     * @param laneCount number of lanes the ids are spread over
+     * @param workers the threads that run the commands
+     * @param maxInFlight commands that may be submitted but not finished before submit blocks
+     */
+    ReplayLanes(int laneCount, Executor workers, int maxInFlight) {
+        this.tails = new CompletableFuture<?>[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            tails[i] = CompletableFuture.completedFuture(null);
+        }
+        this.workers = workers;
+        this.window = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Submits a command. Must only be called by the thread reading the workload, in file order.
+     * @param command the command, runs after the previous commands of all its keys
+     * @param keys the ids the command touches, e.g. the user and the product of an order
+     */
+    void submit(Runnable command, String... keys) {
+        window.acquireUninterruptibly();
+
+        // the distinct lanes of the keys, a batch can have many ids in the same lane
+        int[] lanes = new int[keys.length];
+        int count = 0;
+        for (String key : keys) {
+            int lane = laneOf(key);
+            boolean seen = false;
+            for (int i = 0; i < count && !seen; i++) {
+                seen = lanes[i] == lane;
+            }
+            if (!seen) {
+                lanes[count++] = lane;
+            }
+        }
+
+        CompletableFuture<?> previous = tails[lanes[0]];
+        if (count > 1) {
+            CompletableFuture<?>[] waits = new CompletableFuture<?>[count];
+            for (int i = 0; i < count; i++) {
+                waits[i] = tails[lanes[i]];
+            }
+            previous = CompletableFuture.allOf(waits);
+        }
+
+        CompletableFuture<Void> done = runAfter(previous, command);
+        for (int i = 0; i < count; i++) {
+            tails[lanes[i]] = done;
+        }
+    }
+
+    /**
+     * Submits a command that runs once every command submitted before it has finished. Must only
+     * be called by the thread reading the workload, in file order.
+     * @param command the command
+     * @param barrier whether every later command waits for it, otherwise only those of its key
+     * @param key the id the command touches
+     */
+    void submitAfterAll(Runnable command, boolean barrier, String key) {
+        window.acquireUninterruptibly();
+        CompletableFuture<Void> done = runAfter(CompletableFuture.allOf(tails.clone()), command);
+        if (barrier) {
+            Arrays.fill(tails, done);
+        } else {
+            tails[laneOf(key)] = done;
+        }
+    }
+
+    /**
+     * Waits until every submitted command has finished.
+     */
+    void await() {
+        CompletableFuture.allOf(tails).join();
+    }
+
+    /**
+     * Runs a command on the workers once the commands it waits for have finished.
+     */
+    private CompletableFuture<Void> runAfter(CompletableFuture<?> previous, Runnable command) {
+        // a failed command must not stop its lanes, so the next one runs either way
+        return previous.handleAsync((result, error) -> {
+            try {
+                command.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                window.release();
+            }
+            return null;
+        }, workers);
+    }
+
+    private int laneOf(String key) {
+        return Math.floorMod(key.hashCode() * 0x9E3779B9, tails.length);
+    }
+}
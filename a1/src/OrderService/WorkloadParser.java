@@ -1,26 +1,42 @@
 package OrderService;
 
+import Helpers.Helpers;
+import Helpers.JsonFields;
+import Helpers.OrderedExecutor;
 import java.io.BufferedReader;
 import java.io.FileReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URI;
-import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * Utility to parse workload files containing scripted commands for the microservices 
  * and execute them by making HTTP requests to the OrderService.
+ * A workload starts from empty data unless its first command is "restart", which keeps the data
+ * of the last run. A "shutdown" command waits for the commands before it and stops the services.
  */
 public class WorkloadParser {
     private static String orderServiceHttpUrl;
+    // runs the commands concurrently, null to send them one at a time
+    private static ReplayLanes lanes;
+    // commands per batch request, 1 sends every command on its own
+    private static int batchSize = 1;
+    // the writes waiting to be sent as one batch, all to batchEndpoint
+    private static final List<String> batch = new ArrayList<>();
+    private static final List<String> batchKeys = new ArrayList<>();
+    private static String batchEndpoint;
+    // HTTP requests sent for the workload
+    private static int requests;
 
     /**
      * Entry point for the Workload Parser. Configures the target OrderService URL.
-     * @param args expects the workload file path as the first argument.
+     * @param args expects the workload file path as the first argument, optionally the number
+     * of workers to replay it with concurrently (default 1, one command at a time), and optionally
+     * how many consecutive user or product writes to send per batch request (default 1, no batching).
      */
     public static void main(String[] args) {
 
@@ -33,6 +49,16 @@ public class WorkloadParser {
         // arguement index 0 contains the workload file
         String Workload = args[0];
 
+        // arguement index 1 is the number of workers, commands of the same id still run in order
+        int workers = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        if (workers > 1) {
+            lanes = new ReplayLanes(4096, OrderedExecutor.createExecutor("pool", workers), workers * 4);
+        }
+        // arguement index 2 is the batch size
+        if (args.length > 2) {
+            batchSize = Integer.parseInt(args[2]);
+        }
+
         try {
             // the config file    
             String ConfigJson = new String(Files.readAllBytes(Paths.get("config.json"))); 
@@ -50,7 +76,11 @@ public class WorkloadParser {
             orderServiceHttpUrl = "http://" + ip + ":" + port;
             System.out.println("Targeting OrderService at: " + orderServiceHttpUrl);
 
-            workloadAction(Workload);
+            long start = System.nanoTime();
+            int commands = workloadAction(Workload);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("Replayed %d commands as %d requests in %.1f s (%.0f commands/s) with %d worker(s)%n", commands, requests, seconds, commands / seconds, workers);
+            System.exit(0);
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -59,12 +89,17 @@ public class WorkloadParser {
 
     /**
      * Reads the workload file line by line and dispatches HTTP requests.
+     * With several workers each command is handed to the lanes of the ids it touches,
+     * and this returns once all of them have finished.
      * @param file Path to the workload file.
+     * @return the number of commands sent
      */
-    private static void workloadAction(String file) {
+    private static int workloadAction(String file) {
+        int commands = 0;
         try (BufferedReader br = new BufferedReader(new FileReader(file))) {
             // current line being iterated
             String currentLine;
+            boolean first = true;
             
             while ((currentLine = br.readLine()) != null) {
                 currentLine = currentLine.trim();
@@ -75,10 +110,38 @@ public class WorkloadParser {
                 // tokenize the input based on spaces
                 String[] tokens = currentLine.split("\\s+");
                 String service = tokens[0].toUpperCase();
+
+                // a run starts from empty data unless it is a restart
+                if (first) {
+                    first = false;
+                    if (service.equals("RESTART")) {
+                        continue;
+                    }
+                    placeRequest("POST", orderServiceHttpUrl + "/wipe", "{}");
+                }
+
+                // shutdown waits for every command before it, the services flush their data and stop
+                if (service.equals("SHUTDOWN")) {
+                    flushBatch();
+                    if (lanes != null) {
+                        lanes.await();
+                    }
+                    placeRequest("POST", orderServiceHttpUrl + "/shutdown", "{}");
+                    break;
+                }
+                if (tokens.length < 2) {
+                    continue;
+                }
                 String command = tokens[1].toLowerCase();
 
                 // HTTP variables
                 String endpoint = "";
+                // the ids the command touches, its position in the file only matters among these
+                String[] keys = {"user " + (tokens.length > 2 ? tokens[2] : "")};
+                // an order is only known by its id once it has been placed, a command about one
+                // waits for every command before it, and a cancel is waited for by every later one
+                boolean afterAll = false;
+                boolean barrier = false;
                 String jsonData = ""; 
                 String method = ""; 
 
@@ -116,6 +179,7 @@ public class WorkloadParser {
                 // Product commands
                 else if (service.equals("PRODUCT")) {
                     endpoint = "/product";
+                    keys[0] = "product " + (tokens.length > 2 ? tokens[2] : "");
 
                      // create
                     if (command.equals("create")) {
@@ -150,19 +214,67 @@ public class WorkloadParser {
                     
                     // place
                     if (command.equals("place")) {
+                        keys = new String[] {"product " + tokens[2], "user " + tokens[3]};
                         jsonData = String.format("{\"command\":\"place order\", \"product_id\":%s, \"user_id\":%s, \"quantity\":%s}", tokens[2], tokens[3], tokens[4]);
                     }
+
+                    // get
+                    else if (command.equals("get")) {
+                        method = "GET";
+                        endpoint = "/order/" + tokens[2];
+                        keys[0] = "order " + tokens[2];
+                        afterAll = true;
+                    }
+
+                    // cancel, which restocks a product that is only known once it runs
+                    else if (command.equals("cancel")) {
+                        keys[0] = "order " + tokens[2];
+                        afterAll = true;
+                        barrier = true;
+                        jsonData = String.format("{\"command\":\"cancel order\", \"order_id\":%s}", tokens[2]);
+                    }
                 }
 
                 // place the request only if a valid endpoint is present
                 if (!endpoint.isEmpty()) {
-                    placeRequest(method, orderServiceHttpUrl + endpoint, jsonData); 
+                    commands++;
+                    // writes to /user or /product are collected into a batch for that endpoint,
+                    // anything else sends the open batch first so the file order is kept
+                    if (batchSize > 1 && method.equals("POST") && !endpoint.equals("/order")) {
+                        if (!endpoint.equals(batchEndpoint)) {
+                            flushBatch();
+                        }
+                        batchEndpoint = endpoint;
+                        batch.add(jsonData);
+                        Collections.addAll(batchKeys, keys);
+                        if (batch.size() == batchSize) {
+                            flushBatch();
+                        }
+                    }
+                    else {
+                        flushBatch();
+                        String requestMethod = method;
+                        String url = orderServiceHttpUrl + endpoint;
+                        String requestJson = jsonData;
+                        Runnable request = () -> placeRequest(requestMethod, url, requestJson);
+                        if (afterAll) {
+                            dispatchAfterAll(request, barrier, keys[0]);
+                        }
+                        else {
+                            dispatch(request, keys);
+                        }
+                    }
                 }
             }
+            flushBatch();
 
         } catch (Exception e) {
             e.printStackTrace();
         }
+        if (lanes != null) {
+            lanes.await();
+        }
+        return commands;
     }
 
     /**
@@ -183,35 +295,79 @@ public class WorkloadParser {
         return null;
     }
 
-    private static void placeRequest(String method, String url, String jsonData) {
-        try {
-            // URL object and opening connection
-            URI uri = new URI(url);
-            URL Url = uri.toURL();
-            HttpURLConnection connection = (HttpURLConnection) Url.openConnection();
-
-            // set the HTTP method to either get or post
-            connection.setRequestMethod(method);
-
-            // set content type to JSON for all requests
-            connection.setRequestProperty("Content-Type", "application/json");
-
-            // if the method is post
-            if (method.equals("POST")) {
-                if (!jsonData.isEmpty()) {
-                    connection.setDoOutput(true);
+    /**
+     * Sends a request now, or hands it to the lanes of its ids when replaying concurrently.
+     * @param request sends the request and prints the outcome
+     * @param keys the ids the request touches
+     */
+    private static void dispatch(Runnable request, String... keys) {
+        requests++;
+        if (lanes == null) {
+            request.run();
+        }
+        else {
+            lanes.submit(request, keys);
+        }
+    }
 
-                    try (OutputStream os = connection.getOutputStream()){
-                        byte[] inputBytesList = jsonData.getBytes("utf-8");
-                        os.write(inputBytesList, 0, inputBytesList.length); 
+    /**
+     * Sends a request now, or hands it to the lanes to run after every command read before it.
+     * @param request sends the request and prints the outcome
+     * @param barrier whether every later command waits for it, otherwise only those of its key
+     * @param key the id the request touches
+     */
+    private static void dispatchAfterAll(Runnable request, boolean barrier, String key) {
+        requests++;
+        if (lanes == null) {
+            request.run();
+        }
+        else {
+            lanes.submitAfterAll(request, barrier, key);
+        }
+    }
 
-                    }
+    /**
+     * Sends the collected writes as one batch request, if there are any.
+     */
+    private static void flushBatch() {
+        if (batch.isEmpty()) {
+            return;
+        }
+        String url = orderServiceHttpUrl + batchEndpoint;
+        String body = "{\"commands\": [" + String.join(", ", batch) + "]}";
+        String[] keys = batchKeys.toArray(new String[0]);
+        batch.clear();
+        batchKeys.clear();
+        dispatch(() -> placeBatch(url, body), keys);
+    }
 
-                }
+    /**
+     * Sends a batch and prints the outcome of each of its commands like placeRequest would.
+     * @param url the endpoint the commands are for, e.g. http://ip:port/user
+     * @param body the batch body
+     */
+    private static void placeBatch(String url, String body) {
+        try {
+            Object[] response = Helpers.requestSend(url + "/batch", "POST", body);
+            int code = (int) response[0];
+            if (code != 200) {
+                System.out.println("POST " + url + "/batch [" + code + "]");
+                return;
+            }
+            for (String result : JsonFields.elements(JsonFields.parse((String) response[1]).getRaw("results"))) {
+                System.out.println("POST " + url + " [" + Helpers.parseInteger(result, "code") + "]");
             }
 
-            // get the HTTP status code
-            int code = connection.getResponseCode();
+        } catch (Exception e) {
+            System.out.println("Failed connection");
+        }
+    }
+
+    private static void placeRequest(String method, String url, String jsonData) {
+        try {
+            // send over the shared keep-alive pool instead of opening a connection per line
+            Object[] response = Helpers.requestSend(url, method, jsonData);
+            int code = (int) response[0];
 
             // print the correct output to the system
             System.out.println(method + " " + url + " [" + code + "]");
@@ -0,0 +1,105 @@
+package ProductService;
+
+import Helpers.JsonFields;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A product as it is kept in the ProductService database.
+ * Records are immutable: an update stores a new Product, so the JSON sent back for a
+ * record is built once when it changes and reused by every GET after that.
+ * @author Agnibha Misra
+ */
+public final class Product {
+    final int id;
+    final String name;
+    final String description;
+    // price is kept in cents so it is exact and formats without String.format
+    final long priceCents;
+    final int quantity;
+    // the record as the JSON response body
+    private final byte[] json;
+
+    /**
+     * Creates a product record.
+     * @param id the product id
+     * @param name the product name
+     * @param description the product description
+     * @param priceCents the price in cents
+     * @param quantity the quantity in stock
+     */
+    Product(int id, String name, String description, long priceCents, int quantity) {
+        this.id = id;
+        this.name = name;
+        this.description = description;
+        this.priceCents = priceCents;
+        this.quantity = quantity;
+        this.json = serialize();
+    }
+
+    /**
+     * Converts a price as sent by a client to cents, rounding half up like "%.2f" does.
+     * @param price the price
+     * @return the price in cents
+     */
+    static long toCents(float price) {
+        return Math.round((double) price * 100);
+    }
+
+    /**
+     * @param newQuantity the new quantity in stock
+     * @return a copy of this product with another quantity
+     */
+    Product withQuantity(int newQuantity) {
+        return new Product(id, name, description, priceCents, newQuantity);
+    }
+
+    /**
+     * @return the record as the JSON response body, shared between callers so it must not be modified
+     */
+    byte[] toJson() {
+        return json;
+    }
+
+    /**
+     * @return the record as stored in the write-ahead log, the id is kept by the log entry
+     */
+    byte[] toBytes() {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] descriptionBytes = description.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(20 + nameBytes.length + descriptionBytes.length);
+        buffer.putInt(nameBytes.length).put(nameBytes).putInt(descriptionBytes.length).put(descriptionBytes)
+            .putLong(priceCents).putInt(quantity);
+        return buffer.array();
+    }
+
+    /**
+     * Reads a record written by toBytes.
+     * @param id the product id
+     * @param data the stored record
+     * @return the product
+     */
+    static Product fromBytes(int id, byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        String name = readString(buffer);
+        String description = readString(buffer);
+        return new Product(id, name, description, buffer.getLong(), buffer.getInt());
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private byte[] serialize() {
+        long cents = priceCents % 100;
+        StringBuilder builder = new StringBuilder(64 + name.length() + description.length());
+        builder.append("{\"id\": ").append(id).append(", \"name\": ");
+        JsonFields.appendString(builder, name).append(", \"description\": ");
+        JsonFields.appendString(builder, description).append(", \"price\": ")
+            .append(priceCents / 100).append('.').append(cents < 10 ? "0" : "").append(cents)
+            .append(", \"quantity\": ").append(quantity).append('}');
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -1,6 +1,16 @@
 package ProductService;
 
+import Helpers.BatchRunner;
 import Helpers.Helpers;
+import Helpers.JsonFields;
+import Helpers.Metrics;
+import Helpers.LogReceiver;
+import Helpers.LogShipper;
+import Helpers.OrderedExecutor;
+import Helpers.RecordStore;
+import Helpers.ServiceControl;
+import Helpers.Tracer;
+import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
@@ -10,22 +20,45 @@ import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Service responsible for managing product inventory, including creation, 
- * retrieval (info), updating, and deletion of products.
+ * retrieval (info), updating, and deletion of products, and reserving and releasing stock for orders.
+ * An instance can instead run as a backup of a primary instance: it applies the changes the
+ * primary ships to it, turns writes away, and takes over once POST /product/promote is sent,
+ * unless it is still resyncing or may have been dropped by the primary. A promoted backup
+ * ships its changes to the other backups of the same primary.
  * @author Agnibha Misra
  */
 public class ProductService {
-    // memory database to store products
-    private static final Map<Integer, String> productDataBase = new HashMap<>();
+    // memory database to store products, every change is logged before it is acknowledged and replayed on start up
+    // handlers run concurrently, requests for the same id are kept in order by the executor
+    private static RecordStore<Product> productDataBase;
+    // body of the responses that carry no data
+    private static final byte[] EMPTY = "{}".getBytes(StandardCharsets.UTF_8);
+    // body of a reserve that asks for more than is in stock
+    private static final byte[] EXCEEDED = "{\"status\": \"Exceeded quantity limit\"}".getBytes(StandardCharsets.UTF_8);
+    // runs the requests off the server's dispatcher thread
+    private static OrderedExecutor executor;
+    // answers the wipe and shutdown commands
+    private static ServiceControl control;
+    // applies the primary's changes while this instance is a backup, null on a primary
+    private static LogReceiver<Product> receiver;
+    // body of a write sent to a backup that has not been promoted
+    private static final byte[] BACKUP = "{\"status\": \"Backup\"}".getBytes(StandardCharsets.UTF_8);
+    // starts shipping to the other backups of the same primary, run once this backup is promoted
+    private static Runnable shipOnPromotion;
+    // body of a promotion refused because the backup has not finished a resync
+    private static final byte[] NOT_SYNCED = "{\"status\": \"Not in sync\"}".getBytes(StandardCharsets.UTF_8);
     
     /**
      * Entry point for the Product Service. Initializes the server based on config.json.
-     * @param args Command line arguments, expected to contain the path to config.json.
+     * @param args Command line arguments, expected to contain the path to config.json and optionally
+     * the instance number to run, or "backup" and the number of an entry of the "backups" list.
      * @throws IOException If the configuration file cannot be read or the server fails to start.
      */
     public static void main(String[] args) throws IOException {
@@ -41,354 +74,546 @@ public class ProductService {
         String ip = Helpers.getIP(config, "ProductService");
         int port = Helpers.getPort(config, "ProductService");
 
+        // "backup n" runs this process as entry n of the "backups" list
+        String backup = null;
+        if (args.length > 2 && args[1].equals("backup")) {
+            List<String> backups = Helpers.getConfigList(config, "ProductService", "backups");
+            int index = Integer.parseInt(args[2]);
+            if (backups == null || index < 0 || index >= backups.size()) {
+                System.err.println("No backup " + index + " in the config file");
+                System.exit(1);
+            }
+            backup = backups.get(index);
+            String[] address = Helpers.getAddress(backup).split(":");
+            ip = address[0];
+            port = Integer.parseInt(address[1]);
+        }
+
+        // an optional instance number runs this process as one entry of the "instances" list
+        int instance = 0;
+        if (backup == null && args.length > 1) {
+            List<String> instances = Helpers.getInstances(config, "ProductService");
+            int index = Integer.parseInt(args[1]);
+            if (index < 0 || index >= instances.size()) {
+                System.err.println("No instance " + index + " in the config file");
+                System.exit(1);
+            }
+            String[] address = instances.get(index).split(":");
+            ip = address[0];
+            port = Integer.parseInt(address[1]);
+            instance = index;
+        }
+
         // check the validity of the results
         if (port == -1 || ip == null) {
             System.err.println("Could not parse the config file");
             System.exit(1);
         }
 
+        // rebuild the database from the snapshot and log of this instance
+        productDataBase = RecordStore.open(config, "ProductService", port, Product::toBytes, Product::fromBytes);
+
+        // a backup takes the primary's changes on its replication port, a primary ships its
+        // changes to every backup whose "primary" is its instance number
+        if (backup != null) {
+            JsonFields fields = JsonFields.parse(backup);
+            int replicationPort = fields.getInteger("replicationPort");
+            Integer primary = fields.getInteger("primary");
+            int heartbeat = Helpers.getConfigInt(config, "ProductService", "heartbeatMillis", 100);
+            int window = Helpers.getConfigInt(config, "ProductService", "promotionWindowMillis", 6000);
+            receiver = new LogReceiver<>(productDataBase, Product::fromBytes, ip, replicationPort, heartbeat, window);
+            // once promoted this instance is the primary of the other backups, they resync from it
+            List<String> others = backupsOf(config, primary == null ? 0 : primary, ip + ":" + replicationPort);
+            shipOnPromotion = () -> startShipping(config, others);
+            System.out.println("Backup of instance " + primary + ", replicating on port " + replicationPort);
+        } else {
+            startShipping(config, backupsOf(config, instance, null));
+        }
+
         // create and start the http server
+        // write responses right away, otherwise the body waits for the ACK of the headers (Nagle)
+        System.setProperty("sun.net.httpserver.nodelay", "true");
         HttpServer server = HttpServer.create(new InetSocketAddress(ip, port), 0);
-        server.createContext("/product", new ProductHandler());
-
-        // no concurrency needed for A1 as seen on piazza (CHANGE IN A2)
+        HttpContext context = server.createContext("/product", new ProductHandler());
+        // GET /metrics reports the latency and status codes of every route
+        Metrics.shared().serve(server, context);
+        // requests that come with an X-Trace-Id are traced
+        Tracer.shared().open(config, "ProductService", port);
+        Tracer.shared().instrument(context, false);
+
+        // the dispatcher thread only reads the request, the work is handed to the ordered executor
+        executor = OrderedExecutor.fromConfig(config, "ProductService");
+        control = new ServiceControl(server, executor, productDataBase, "/product");
         server.setExecutor(null);
         server.start();
         System.out.println("ProductService started: " + ip + ":" + port);
     }
 
+    /**
+     * Finds the backups of an instance in the "backups" list.
+     * @param config the config file json data
+     * @param instance the number of the instance in the "instances" list
+     * @param except the replication address of a backup to leave out, or null
+     * @return the replication addresses of the backups whose "primary" is the instance, as ip:port
+     */
+    private static List<String> backupsOf(String config, int instance, String except) {
+        List<String> backups = new ArrayList<>();
+        List<String> entries = Helpers.getConfigList(config, "ProductService", "backups");
+        if (entries != null) {
+            for (String entry : entries) {
+                JsonFields fields = JsonFields.parse(entry);
+                Integer primary = fields.getInteger("primary");
+                String address = Helpers.getAddress(entry).split(":")[0] + ":" + fields.getInteger("replicationPort");
+                if ((primary == null ? 0 : primary) == instance && !address.equals(except)) {
+                    backups.add(address);
+                }
+            }
+        }
+        return backups;
+    }
+
+    /**
+     * Ships the changes of this instance to its backups, if it has any. With "replication" set to
+     * "sync" a change is acknowledged once the backups have logged it too, with "async" once it is
+     * logged here. An in-sync backup that takes longer than "replicationTimeoutMillis" to
+     * acknowledge is dropped and resynced. A heartbeat every "heartbeatMillis" lets the backups
+     * tell a primary that lost power from one that has nothing to send. A backup can be promoted
+     * for "promotionWindowMillis" after its last heartbeat, so the window must cover the time ISCS
+     * takes to eject a dead primary; in sync mode writes are held that long once a backup is lost.
+     * @param config the config file json data
+     * @param backups the replication addresses of the backups, as ip:port
+     */
+    private static void startShipping(String config, List<String> backups) {
+        if (backups.isEmpty()) {
+            return;
+        }
+        String mode = Helpers.getConfigValue(config, "ProductService", "replication");
+        boolean sync = mode == null || mode.equalsIgnoreCase("sync");
+        int timeout = Helpers.getConfigInt(config, "ProductService", "replicationTimeoutMillis", 1000);
+        int heartbeat = Helpers.getConfigInt(config, "ProductService", "heartbeatMillis", 100);
+        int window = Helpers.getConfigInt(config, "ProductService", "promotionWindowMillis", 6000);
+        new LogShipper(productDataBase, backups, sync, timeout, heartbeat, window);
+        System.out.println("Shipping changes to " + backups + (sync ? " synchronously" : " asynchronously"));
+    }
+
+    /**
+     * Makes a promoted backup the primary of the other backups, the first time it is promoted.
+     */
+    private static synchronized void takeOver() {
+        if (shipOnPromotion != null) {
+            shipOnPromotion.run();
+            shipOnPromotion = null;
+        }
+    }
+
     /**
      * HTTP Handler for processing all requests directed to the /product endpoint.
      */
     public static class ProductHandler implements HttpHandler {
         /**
-         * Dispatches the HTTP exchange to specific handlers based on the request method.
+         * Reads the request and queues it on the executor behind earlier requests for the same id.
+         * A POST to /product/batch carries several commands, see BatchRunner.
          * @param exchange The HTTP exchange containing the request and response.
          * @throws IOException If an I/O error occurs.
          */
         @Override
         public void handle(HttpExchange exchange) throws IOException {
+            long parsing = System.nanoTime();
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath();
+
+            // read the body here so the id is known before the request is queued
+            String body = "";
+            if (method.equalsIgnoreCase("post")) {
+                Scanner scanner = new Scanner(exchange.getRequestBody()).useDelimiter("\\A");
+                if (scanner.hasNext()) {body = scanner.next();}
+            }
+            // promotion and the replication state are answered by any instance
+            if (path.equals("/product/promote") && method.equalsIgnoreCase("post")) {
+                // a backup in the middle of a resync would serve a partial store
+                boolean promoted = receiver == null || receiver.promote();
+                if (promoted) {
+                    takeOver();
+                }
+                send(exchange, promoted ? response(200, EMPTY) : response(503, NOT_SYNCED));
+                return;
+            }
+            if (path.equals("/product/replication") && method.equalsIgnoreCase("get")) {
+                String stats = receiver != null ? receiver.stats() : productDataBase.replicationStats();
+                String role = receiver == null ? "primary" : receiver.isPromoted() ? "promoted" : "backup";
+                send(exchange, response(200, ("{\"role\": \"" + role + "\", \"replication\": " + stats + "}").getBytes(StandardCharsets.UTF_8)));
+                return;
+            }
+            // a backup only changes through the primary until it is promoted, wipes included
+            if (receiver != null && !receiver.isPromoted() && method.equalsIgnoreCase("post")
+                    && !path.equals("/product/shutdown")) {
+                send(exchange, response(503, BACKUP));
+                return;
+            }
+            // wipe and shutdown wait for every request queued before them
+            if (control.handle(exchange, method, path)) {
+                return;
+            }
+            // a batch is split up here, each of its commands is queued like a request of its own
+            if (method.equalsIgnoreCase("post") && path.equals("/product/batch")) {
+                BatchRunner.run(exchange, body, executor, this::post);
+                return;
+            }
+
+            // the body is read once here, every field the handler needs comes from this view
+            JsonFields fields = JsonFields.parse(body);
+            Tracer.stage(exchange, "parse", parsing);
+
+            // requests for the same id share a lane, so they are applied in the order they arrived
+            long queued = System.nanoTime();
+            executor.execute(requestKey(method, path, fields), () -> {
+                Tracer.stage(exchange, "queue", queued);
+                try {
+                    process(exchange, method, path, fields);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    exchange.close();
+                }
+            });
+        }
+
+        /**
+         * Finds the id a request operates on, used to keep requests for the same id in order.
+         * @param method the request method
+         * @param path the request path
+         * @param fields the fields of the request body
+         * @return the id from the path (GET) or body (POST), or 0 when there is none
+         */
+        private int requestKey(String method, String path, JsonFields fields) {
+            if (method.equalsIgnoreCase("post")) {
+                Integer id = fields.getInteger("id");
+                return id == null ? 0 : id;
+            }
             try {
-                String method = exchange.getRequestMethod();
-                String path = exchange.getRequestURI().getPath();
+                return Integer.parseInt(path.substring(path.lastIndexOf('/') + 1));
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
 
+        /**
+         * Dispatches the HTTP exchange to specific handlers based on the request method.
+         * @param exchange The HTTP exchange containing the request and response.
+         * @param method the request method
+         * @param path the request path
+         * @param fields the fields of the request body, empty for GET requests
+         * @throws IOException If an I/O error occurs.
+         */
+        private void process(HttpExchange exchange, String method, String path, JsonFields fields) throws IOException {
+            long processing = System.nanoTime();
+            Object[] result;
+            try {
                 // GET method
                 if (method.equalsIgnoreCase("get")) {
-                    get(exchange, path);
+                    result = get(path);
                 }
 
                 // POST method
                 else if (method.equalsIgnoreCase("post")) {
-                    post(exchange, path);
+                    result = post(fields);
                 }
 
                 // Invalid method
                 else {
                     // send a response back, invalid method as it is not get or post
-                    byte[] bytes = "Invalid method".getBytes(StandardCharsets.UTF_8);
-                    exchange.sendResponseHeaders(405, bytes.length);
-                    OutputStream os = exchange.getResponseBody();
-                    os.write(bytes);
-                    os.close();
+                    result = response(405, "Invalid method".getBytes(StandardCharsets.UTF_8));
                 }
             } catch (Exception e) {
                 e.printStackTrace();
                 // semd a response back, error happened
-                byte[] bytes = "{\"status\": \"Internal Error\"}".getBytes(StandardCharsets.UTF_8);
-                exchange.sendResponseHeaders(500, bytes.length);
-                OutputStream os = exchange.getResponseBody();
-                os.write(bytes);
-                os.close();
+                result = response(500, "{\"status\": \"Internal Error\"}".getBytes(StandardCharsets.UTF_8));
+            }
+
+            Tracer.stage(exchange, "process", processing);
+
+            if (result.length > 2) {
+                // a change is only acknowledged once its log entry is durable
+                Object[] logged = result;
+                long logging = System.nanoTime();
+                ((CompletableFuture<?>) result[2]).whenComplete((done, error) -> {
+                    Tracer.stage(exchange, "durable", logging);
+                    try {
+                        send(exchange, error == null ? logged : response(500, "{\"status\": \"Internal Error\"}".getBytes(StandardCharsets.UTF_8)));
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        exchange.close();
+                    }
+                });
+                return;
             }
+            send(exchange, result);
+        }
+
+        /**
+         * Writes a result as the response.
+         * @param exchange The HTTP exchange containing the request and response.
+         * @param result an Object array where [0] is the status code (int) and [1] is the response (byte[])
+         * @throws IOException If an I/O error occurs.
+         */
+        private void send(HttpExchange exchange, Object[] result) throws IOException {
+            long serializing = System.nanoTime();
+            byte[] bytes = (byte[]) result[1];
+            exchange.sendResponseHeaders((int) result[0], bytes.length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(bytes);
+            os.close();
+            Tracer.stage(exchange, "serialize", serializing);
         }
 
         /**
          * The GET method handler for the ProductServices class
-         * @param exchange the Exchange object for the request and the response
          * @param path the path for the request
-         * @throws IOException if error on writing or reading
+         * @return an Object array where [0] is the status code (int) and [1] is the response (byte[])
          */
-        private void get (HttpExchange exchange, String path) throws IOException{
+        private Object[] get(String path) {
 
             // tokenize the path
             String[] tokens = path.split("/");
             if (tokens.length != 3) {
                 // send a message back, empty case
-                byte[] bytes = "{}".getBytes(StandardCharsets.UTF_8);
-                exchange.sendResponseHeaders(400, bytes.length);
-                OutputStream os = exchange.getResponseBody();
-                os.write(bytes);
-                os.close();
-                return;
-            } 
+                return response(400, EMPTY);
+            }
 
             try {
                 int id = Integer.parseInt(tokens[2]);
-                if (productDataBase.containsKey(id)) {
+                Product product = productDataBase.get(id);
+                if (product != null) {
                     // send a message back, the products's information
-                    byte[] bytes = productDataBase.get(id).getBytes(StandardCharsets.UTF_8);
-                    exchange.sendResponseHeaders(200, bytes.length);
-                    OutputStream os = exchange.getResponseBody();
-                    os.write(bytes);
-                    os.close();
-                }
-                else {
-                    // send a message back, the product does not exists
-                    byte[] bytes = "{}".getBytes(StandardCharsets.UTF_8);
-                    exchange.sendResponseHeaders(404, bytes.length);
-                    OutputStream os = exchange.getResponseBody();
-                    os.write(bytes);
-                    os.close();
+                    return response(200, product.toJson());
                 }
+                // send a message back, the product does not exists
+                return response(404, EMPTY);
             } catch (NumberFormatException e) {
                 // send a message back, empty case (number parsing error)
-                byte[] bytes = "{}".getBytes(StandardCharsets.UTF_8);
-                exchange.sendResponseHeaders(400, bytes.length);
-                OutputStream os = exchange.getResponseBody();
-                os.write(bytes);
-                os.close();
+                return response(400, EMPTY);
             }
         }
 
         /**
          * The POST method handler for the productServices class
-         * @param exchange the Exchange object for the request and the response
-         * @param path the path for the request
-         * @throws IOException if error on writing or reading
+         * @param fields the fields of the request body
+         * @return an Object array where [0] is the status code (int) and [1] is the response (byte[]),
+         * for a change [2] is the CompletableFuture of its log entry
          */
-        private void post(HttpExchange exchange, String path) throws IOException {
-            // read the request body
-            Scanner scanner = new Scanner(exchange.getRequestBody()).useDelimiter("\\A");
-            String body;
-            if (scanner.hasNext()) {body = scanner.next();}
-            else {body = "";}
-
+        private Object[] post(JsonFields fields) {
             // parse the request body
-            String command = Helpers.parseString(body, "command");
-            Integer id = Helpers.parseInteger(body, "id");
+            String command = fields.getString("command");
+            Integer id = fields.getInteger("id");
 
             // check for valid outputs
             if (command == null || command.isEmpty() || id == null || id < 0) {
                 // send a message back, empty case
-                byte[] bytes = "{}".getBytes(StandardCharsets.UTF_8);
-                exchange.sendResponseHeaders(400, bytes.length);
-                OutputStream os = exchange.getResponseBody();
-                os.write(bytes);
-                os.close();
-                return;
+                return response(400, EMPTY);
             }
 
             // Delete case:
             if (command.equalsIgnoreCase("delete")) {
                 // check if product is in the data base
-                if (!productDataBase.containsKey(id)) {
+                Product product = productDataBase.get(id);
+                if (product == null) {
                     // send a message back, the target product to delete doesn't exist it the database
-                    byte[] bytes = "{}".getBytes(StandardCharsets.UTF_8);
-                    exchange.sendResponseHeaders(404, bytes.length);
-                    OutputStream os = exchange.getResponseBody();
-                    os.write(bytes);
-                    os.close();
-                    return;
+                    return response(404, EMPTY);
                 }
 
-                // get the product data from the database
-                String productObject = productDataBase.get(id);
-                String DBName = Helpers.parseString(productObject, "name");
-                Float DBPrice = Helpers.parseFloat(productObject, "price");
-                Integer DBQuantity = Helpers.parseInteger(productObject, "quantity");
-
                 // get the product data from the request
-                String requestName = Helpers.parseString(body, "name");
-                Float requestPrice = Helpers.parseFloat(body, "price");
-                Integer requestQuantity = Helpers.parseInteger(body, "quantity");
+                String requestName = fields.getString("name");
+                Float requestPrice = fields.getFloat("price");
+                Integer requestQuantity = fields.getInteger("quantity");
 
                 // check if there was any error parsing the values
-                if ((DBName == null || requestName == null) || (DBPrice == null || requestPrice == null) || (DBQuantity == null || requestQuantity == null)) {
-                    byte[] bytes = "{}".getBytes(StandardCharsets.UTF_8);
-                    exchange.sendResponseHeaders(400, bytes.length);
-                    OutputStream os = exchange.getResponseBody();
-                    os.write(bytes);
-                    os.close();
+                if (requestName == null || requestPrice == null || requestQuantity == null) {
+                    return response(400, EMPTY);
                 }
 
                 // check for any mismatch
-                if (!DBName.equals(requestName) || DBQuantity != requestQuantity || (Math.abs(requestPrice - DBPrice) >= 0.0001)) {
-                    byte[] bytes = "{}".getBytes(StandardCharsets.UTF_8);
-                    exchange.sendResponseHeaders(401, bytes.length);
-                    OutputStream os = exchange.getResponseBody();
-                    os.write(bytes);
-                    os.close();
-                }
-
-                // can delete safely
-                else {
-                    // send the success message
-                    productDataBase.remove(id);
-                    byte[] bytes = "{}".getBytes(StandardCharsets.UTF_8);
-                    exchange.sendResponseHeaders(200, bytes.length);
-                    OutputStream os = exchange.getResponseBody();
-                    os.write(bytes);
-                    os.close();
+                if (!product.name.equals(requestName) || product.quantity != requestQuantity
+                        || Math.abs(requestPrice - product.priceCents / 100.0) >= 0.0001) {
+                    return response(401, EMPTY);
                 }
 
+                // can delete safely, send the success message
+                return logged(200, EMPTY, delete(id));
             }
 
             // Create case:
             else if (command.equalsIgnoreCase("create")) {
                 // check whether the product already is in the database
                 if (productDataBase.containsKey(id)) {
-                    byte[] bytes = "{}".getBytes(StandardCharsets.UTF_8);
-                    exchange.sendResponseHeaders(409, bytes.length);
-                    OutputStream os = exchange.getResponseBody();
-                    os.write(bytes);
-                    os.close();
-                    return;
+                    return response(409, EMPTY);
                 }
 
                 // Parse the data
-                String name = Helpers.parseString(body, "name");
-                String description = Helpers.parseString(body, "description");
-                Integer quantity = Helpers.parseInteger(body, "quantity");
-                Float price = Helpers.parseFloat(body, "price");
+                String name = fields.getString("name");
+                String description = fields.getString("description");
+                Integer quantity = fields.getInteger("quantity");
+                Float price = fields.getFloat("price");
 
                 // check for bad inputs
                 if (name == null || name.isEmpty() || description == null || quantity == null || quantity < 0 || price == null || price < 0) {
                     // send message back, empty case (failed parsing or bad request input)
-                    byte[] bytes = "{}".getBytes(StandardCharsets.UTF_8);
-                    exchange.sendResponseHeaders(400, bytes.length);
-                    OutputStream os = exchange.getResponseBody();
-                    os.write(bytes);
-                    os.close();
-                    return;
+                    return response(400, EMPTY);
                 }
 
-                String productObject = String.format("{\"id\": %d, \"name\": \"%s\", \"description\": \"%s\", \"price\": %.2f, \"quantity\": %d}", id, name, description, price, quantity);
-                // put the product JSON obect into the data base and send a success message
-                productDataBase.put(id, productObject);
-                byte[] bytes = productObject.getBytes(StandardCharsets.UTF_8);
-                exchange.sendResponseHeaders(200, bytes.length);
-                OutputStream os = exchange.getResponseBody();
-                os.write(bytes);
-                os.close();
-                return;
-            
-            
+                // put the product into the data base and send a success message
+                Product product = new Product(id, name, description, Product.toCents(price), quantity);
+                return logged(200, product.toJson(), save(product));
+            }
+
+            // Reserve case: take stock for an order in one step
+            else if (command.equalsIgnoreCase("reserve")) {
+                Integer quantity = fields.getInteger("quantity");
+                if (quantity == null || quantity <= 0) {
+                    return response(400, EMPTY);
+                }
+
+                // make sure the product exists in the database
+                Product product = productDataBase.get(id);
+                if (product == null) {
+                    return response(404, EMPTY);
+                }
+
+                // every request for this id runs in the same lane, so nothing can change
+                // the quantity between this check and the put below
+                if (product.quantity < quantity) {
+                    return response(400, EXCEEDED);
+                }
+                Product updated = product.withQuantity(product.quantity - quantity);
+
+                // send back the product with its new quantity
+                return logged(200, updated.toJson(), save(updated));
+            }
+
+            // Release case: put reserved stock back, e.g. when an order could not be completed
+            else if (command.equalsIgnoreCase("release")) {
+                Integer quantity = fields.getInteger("quantity");
+                if (quantity == null || quantity <= 0) {
+                    return response(400, EMPTY);
+                }
+
+                // make sure the product exists in the database
+                Product product = productDataBase.get(id);
+                if (product == null) {
+                    return response(404, EMPTY);
+                }
+                if (product.quantity > Integer.MAX_VALUE - quantity) {
+                    return response(400, EMPTY);
+                }
+
+                // the increment is applied in this id's lane, so it cannot be lost to another update
+                Product updated = product.withQuantity(product.quantity + quantity);
+                return logged(200, updated.toJson(), save(updated));
             }
 
             // Update case: 
             else if (command.equalsIgnoreCase("update")) {
                 // make sure the product exists in the database
-                if (!productDataBase.containsKey(id)) {
+                Product product = productDataBase.get(id);
+                if (product == null) {
                     // product does not exist in the database
-                    byte[] bytes = "{}".getBytes(StandardCharsets.UTF_8);
-                    exchange.sendResponseHeaders(404, bytes.length);
-                    OutputStream os = exchange.getResponseBody();
-                    os.write(bytes);
-                    os.close();
-                    return;
+                    return response(404, EMPTY);
                 }
 
-                // pull the object from the databse
-                String productObject = productDataBase.get(id);
-
-                // get the non-updated metadata of the object
-                String name = Helpers.parseString(productObject, "name");
-                String description = Helpers.parseString(productObject, "description");
-                Float price = Helpers.parseFloat(productObject, "price");
-                Integer quantity = Helpers.parseInteger(productObject, "quantity");
+                // start from the non-updated metadata of the object
+                String name = product.name;
+                String description = product.description;
+                long priceCents = product.priceCents;
+                int quantity = product.quantity;
 
                 // get the updated metadata of the object
-                String updatedName = Helpers.parseString(body, "name");
-                String updatedDescription = Helpers.parseString(body, "description");
-                Float updatedPrice = Helpers.parseFloat(body, "price");
-                Integer updatedQuantity = Helpers.parseInteger(body, "quantity");
-
-                if (body.contains("\"price\"") && updatedPrice == null) {
-                    byte[] bytes = "{}".getBytes(StandardCharsets.UTF_8);
-                    exchange.sendResponseHeaders(400, bytes.length);
-                    OutputStream os = exchange.getResponseBody();
-                    os.write(bytes);
-                    os.close();
-                    return;
+                String updatedName = fields.getString("name");
+                String updatedDescription = fields.getString("description");
+                Float updatedPrice = fields.getFloat("price");
+                Integer updatedQuantity = fields.getInteger("quantity");
+
+                if (fields.has("price") && updatedPrice == null) {
+                    return response(400, EMPTY);
                 }
 
-                if (body.contains("\"quantity\"") && updatedQuantity == null) {
-                    byte[] bytes = "{}".getBytes(StandardCharsets.UTF_8);
-                    exchange.sendResponseHeaders(400, bytes.length);
-                    OutputStream os = exchange.getResponseBody();
-                    os.write(bytes);
-                    os.close();
-                    return;
+                if (fields.has("quantity") && updatedQuantity == null) {
+                    return response(400, EMPTY);
                 }
 
                 // check if the parameters need updating, if so then update
                 if (updatedName != null) {
                     if (updatedName.isEmpty()) {
-                        byte[] bytes = "{}".getBytes(StandardCharsets.UTF_8);
-                        exchange.sendResponseHeaders(400, bytes.length);
-                        OutputStream os = exchange.getResponseBody();
-                        os.write(bytes);
-                        os.close();
-                        return;
+                        return response(400, EMPTY);
                     }
                     name = updatedName;
                 }
                 if  (updatedDescription != null) {
                     if (updatedDescription.isEmpty()) {
-                        byte[] bytes = "{}".getBytes(StandardCharsets.UTF_8);
-                        exchange.sendResponseHeaders(400, bytes.length);
-                        OutputStream os = exchange.getResponseBody();
-                        os.write(bytes);
-                        os.close();
-                        return;
+                        return response(400, EMPTY);
                     }
                     description = updatedDescription;
                 }
                 if (updatedPrice != null) {
                     if (updatedPrice < 0) {
-                        byte[] bytes = "{}".getBytes(StandardCharsets.UTF_8);
-                        exchange.sendResponseHeaders(400, bytes.length);
-                        OutputStream os = exchange.getResponseBody();
-                        os.write(bytes);
-                        os.close();
-                        return;
+                        return response(400, EMPTY);
                     }
-                    price = updatedPrice;
+                    priceCents = Product.toCents(updatedPrice);
                 }
                 if (updatedQuantity != null) {
                     if (updatedQuantity < 0) {
-                        byte[] bytes = "{}".getBytes(StandardCharsets.UTF_8);
-                        exchange.sendResponseHeaders(400, bytes.length);
-                        OutputStream os = exchange.getResponseBody();
-                        os.write(bytes);
-                        os.close();
-                        return;
+                        return response(400, EMPTY);
                     }
                     quantity = updatedQuantity;
                 }
 
-                // create the new product JSON object and place it into the database
-                String updatedObject = String.format("{\"id\": %d, \"name\": \"%s\", \"description\": \"%s\", \"price\": %.2f, \"quantity\": %d}", id, name, description, price, quantity);
-                productDataBase.put(id, updatedObject);
-                
-                // send the success response back
-                byte[] bytes = updatedObject.getBytes(StandardCharsets.UTF_8);
-                exchange.sendResponseHeaders(200, bytes.length);
-                OutputStream os = exchange.getResponseBody();
-                os.write(bytes);
-                os.close();
-                return;
+                // create the new product record and place it into the database
+                Product updated = new Product(id, name, description, priceCents, quantity);
 
+                // send the success response back
+                return logged(200, updated.toJson(), save(updated));
             }
             // unknown command case
             else {
-                byte[] bytes = "{}".getBytes(StandardCharsets.UTF_8);
-                exchange.sendResponseHeaders(400, bytes.length);
-                OutputStream os = exchange.getResponseBody();
-                os.write(bytes);
-                os.close();
-                return;
+                return response(400, EMPTY);
             }
         }
+
+        /**
+         * Pairs a status code with a response body.
+         * @param code the status code
+         * @param bytes the response body
+         * @return an Object array where [0] is the status code (int) and [1] is the response (byte[])
+         */
+        private Object[] response(int code, byte[] bytes) {
+            return new Object[]{code, bytes};
+        }
+
+        /**
+         * Pairs a status code with a response body that may only be sent once a change is logged.
+         * @param code the status code
+         * @param bytes the response body
+         * @param durable completes when the log entry of the change is durable
+         * @return an Object array where [0] is the status code (int), [1] is the response (byte[])
+         * and [2] is the CompletableFuture to wait for
+         */
+        private Object[] logged(int code, byte[] bytes, CompletableFuture<Void> durable) {
+            return new Object[]{code, bytes, durable};
+        }
+
+        /**
+         * Stores a product and logs the change.
+         * @param product the new record
+         * @return completes when the log entry is durable
+         */
+        private CompletableFuture<Void> save(Product product) {
+            return productDataBase.put(product.id, product);
+        }
+
+        /**
+         * Removes a product and logs the change.
+         * @param id the product id
+         * @return completes when the log entry is durable
+         */
+        private CompletableFuture<Void> delete(int id) {
+            return productDataBase.remove(id);
+        }
     }
 }
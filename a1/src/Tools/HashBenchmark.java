@@ -0,0 +1,88 @@
+package Tools;
+
+import UserService.PasswordHasher;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Measures password hashes per second and bytes allocated per hash, with the hasher UserService
+ * used before (a new MessageDigest, Integer.toHexString per byte, toUpperCase) and with
+ * PasswordHasher, for several threads hashing at once.
+ * Usage: ./runme.sh -t HashBenchmark [hashes per thread]
+ * @author Agnibha Misra
+ */
+public class HashBenchmark {
+    private static final int[] THREADS = {1, 4, 16};
+
+    // keeps the JIT from removing the work
+    private static final AtomicLong sink = new AtomicLong();
+
+    /**
+     * Runs the benchmark.
+     * @param args optional number of hashes per thread
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int hashes = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+
+        // warm up both paths so the JIT has compiled them
+        for (int i = 0; i < 3; i++) {
+            measure("warmup", 1, hashes, HashBenchmark::before, false);
+            measure("warmup", 1, hashes, PasswordHasher::hash, false);
+        }
+        System.out.printf("%-16s %8s %14s %14s%n", "hasher", "threads", "hashes/s", "bytes/hash");
+        for (int threads : THREADS) {
+            measure("before", threads, hashes, HashBenchmark::before, true);
+            measure("PasswordHasher", threads, hashes, PasswordHasher::hash, true);
+        }
+        System.out.println("(sink " + sink.get() + ")");
+    }
+
+    private static void measure(String name, int threads, int hashes, Function<String, String> hasher, boolean print) throws InterruptedException {
+        com.sun.management.ThreadMXBean beans = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        AtomicLong allocated = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(threads);
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            Thread thread = new Thread(() -> {
+                long id = Thread.currentThread().getId();
+                long bytesBefore = beans.getThreadAllocatedBytes(id);
+                long length = 0;
+                for (int i = 0; i < hashes; i++) {
+                    length += hasher.apply("password" + (i & 1023)).length();
+                }
+                allocated.addAndGet(beans.getThreadAllocatedBytes(id) - bytesBefore);
+                sink.addAndGet(length);
+                done.countDown();
+            });
+            thread.start();
+        }
+        done.await();
+        long nanos = System.nanoTime() - start;
+        long total = (long) threads * hashes;
+        if (print) {
+            System.out.printf("%-16s %8d %14.0f %14.0f%n", name, threads, total * 1e9 / nanos, (double) allocated.get() / total);
+        }
+    }
+
+    // the hasher UserService used before
+    private static String before(String pw) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] encodedhash = digest.digest(pw.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hexString = new StringBuilder();
+            for (byte b : encodedhash) {
+                String hex = Integer.toHexString(0xff & b);
+                if (hex.length() == 1) hexString.append('0');
+                hexString.append(hex);
+            }
+            return hexString.toString().toUpperCase();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
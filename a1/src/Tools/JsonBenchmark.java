@@ -0,0 +1,107 @@
+package Tools;
+
+import Helpers.JsonFields;
+import java.lang.management.ManagementFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the bytes allocated and time taken to read the fields of a product update
+ * request with the old regex helpers and with JsonFields.
+ * Usage: ./runme.sh -t JsonBenchmark [iterations]
+ * @author Agnibha Misra
+ */
+public class JsonBenchmark {
+    private static final String BODY = "{\"command\": \"update\", \"id\": 23823, \"name\": \"productname-32843hnksjn4398\", "
+        + "\"description\": \"a \\\"quoted\\\" description\", \"price\": 3.99, \"quantity\": 9}";
+
+    // keeps the JIT from removing the work
+    private static long sink;
+
+    /**
+     * Runs the benchmark.
+     * @param args optional number of iterations per measurement
+     */
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+
+        // warm up both paths so the JIT has compiled them
+        for (int i = 0; i < 3; i++) {
+            measure("warmup", iterations, JsonBenchmark::regex, false);
+            measure("warmup", iterations, JsonBenchmark::fields, false);
+            measure("warmup", iterations, JsonBenchmark::reused, false);
+        }
+        measure("regex (before)", iterations, JsonBenchmark::regex, true);
+        measure("JsonFields.parse", iterations, JsonBenchmark::fields, true);
+        measure("JsonFields.reset", iterations, JsonBenchmark::reused, true);
+        System.out.println("(sink " + sink + ")");
+    }
+
+    private static void measure(String name, int iterations, Runnable request, boolean print) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long bytesBefore = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            request.run();
+        }
+        long nanos = System.nanoTime() - start;
+        long bytes = threads.getThreadAllocatedBytes(thread) - bytesBefore;
+        if (print) {
+            System.out.printf("%-18s %8.0f bytes/request %8.0f ns/request%n", name, (double) bytes / iterations, (double) nanos / iterations);
+        }
+    }
+
+    // the eight lookups the ProductService update path made before, one regex each
+    private static void regex() {
+        String command = regexString(BODY, "command");
+        Integer id = regexInteger(BODY, "id");
+        String name = regexString(BODY, "name");
+        String description = regexString(BODY, "description");
+        Float price = regexFloat(BODY, "price");
+        Integer quantity = regexInteger(BODY, "quantity");
+        boolean hasPrice = BODY.contains("\"price\"");
+        boolean hasQuantity = BODY.contains("\"quantity\"");
+        sink += command.length() + id + name.length() + description.length() + (long) (float) price + quantity + (hasPrice ? 1 : 0) + (hasQuantity ? 1 : 0);
+    }
+
+    private static void fields() {
+        read(JsonFields.parse(BODY));
+    }
+
+    private static final JsonFields view = new JsonFields();
+
+    private static void reused() {
+        read(view.reset(BODY));
+    }
+
+    private static void read(JsonFields fields) {
+        String command = fields.getString("command");
+        Integer id = fields.getInteger("id");
+        String name = fields.getString("name");
+        String description = fields.getString("description");
+        Float price = fields.getFloat("price");
+        Integer quantity = fields.getInteger("quantity");
+        boolean hasPrice = fields.has("price");
+        boolean hasQuantity = fields.has("quantity");
+        sink += command.length() + id + name.length() + description.length() + (long) (float) price + quantity + (hasPrice ? 1 : 0) + (hasQuantity ? 1 : 0);
+    }
+
+    private static String regexString(String json, String key) {
+        Matcher matcher = Pattern.compile("\"" + key + "\"\\s*:\\s*\"([^\"]*)\"").matcher(json);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    private static Integer regexInteger(String json, String key) {
+        Matcher matcher = Pattern.compile("\"" + key + "\"\\s*:\\s*([-0-9.]+)").matcher(json);
+        if (matcher.find() && !matcher.group(1).contains(".")) {
+            return Integer.parseInt(matcher.group(1));
+        }
+        return null;
+    }
+
+    private static Float regexFloat(String json, String key) {
+        Matcher matcher = Pattern.compile("\"" + key + "\"\\s*:\\s*(-?[0-9]+\\.[0-9]+|-?[0-9]+)").matcher(json);
+        return matcher.find() ? Float.parseFloat(matcher.group(1)) : null;
+    }
+}
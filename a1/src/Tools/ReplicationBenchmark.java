@@ -0,0 +1,120 @@
+package Tools;
+
+import Helpers.LogReceiver;
+import Helpers.LogShipper;
+import Helpers.RecordStore;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+
+/**
+ * Measures what replication costs a write: the latency of a put to a store without backups,
+ * with a backup replicated asynchronously and with one replicated synchronously. The backup
+ * runs in the same process and is reached over a local socket, so the difference is the
+ * round trip and the backup's own log write, not the network.
+ * Every client thread puts a product sized record and waits until it may be acknowledged
+ * before putting the next one, the way a request waits.
+ * Usage: ./runme.sh -t ReplicationBenchmark [puts per client] [syncPolicy] [directory]
+ * @author Agnibha Misra
+ */
+public class ReplicationBenchmark {
+    private static final int[] CLIENTS = {1, 16};
+    private static final String[] MODES = {"none", "async", "sync"};
+    private static final int FIRST_PORT = 15100;
+
+    /**
+     * Runs the benchmark.
+     * @param args optional number of puts per client, the sync policy of both logs and the
+     * directory for the log files
+     * @throws Exception if a store cannot be opened
+     */
+    public static void main(String[] args) throws Exception {
+        int puts = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        String policy = args.length > 1 ? args[1] : "batch";
+        Path dir = Path.of(args.length > 2 ? args[2] : "data").resolve("replication-benchmark");
+        delete(dir);
+        Files.createDirectories(dir);
+        String config = "{\"Benchmark\": {\"dataDir\": \"" + dir.toString().replace("\\", "/") + "\", \"syncPolicy\": \""
+            + policy + "\", \"syncIntervalMillis\": 2, \"snapshotIntervalMillis\": 3600000}}";
+
+        System.out.printf("sync policy %s, %d puts per client%n", policy, puts);
+        System.out.printf("%-7s %8s %12s %10s %10s %10s%n", "mode", "clients", "puts/s", "avg us", "p50 us", "p99 us");
+        // an unreported round first, so the JIT has compiled the write path before any mode is timed
+        run(config, "sync", CLIENTS[CLIENTS.length - 1], puts, FIRST_PORT, false);
+        int port = FIRST_PORT + 2;
+        for (String mode : MODES) {
+            for (int clients : CLIENTS) {
+                run(config, mode, clients, puts, port, true);
+                port += 2;
+            }
+        }
+        delete(dir);
+        System.exit(0);
+    }
+
+    private static void run(String config, String mode, int clients, int puts, int port, boolean report) throws IOException, InterruptedException {
+        RecordStore<byte[]> primary = RecordStore.open(config, "Benchmark", port, data -> data, (id, data) -> data);
+        LogReceiver<byte[]> receiver = null;
+        if (!mode.equals("none")) {
+            RecordStore<byte[]> backup = RecordStore.open(config, "Benchmark", port + 1, data -> data, (id, data) -> data);
+            receiver = new LogReceiver<>(backup, (id, data) -> data, "127.0.0.1", port + 1, 0, 0);
+            new LogShipper(primary, List.of("127.0.0.1:" + (port + 1)), mode.equals("sync"), 5000, 0, 0);
+            // measure the steady state, not the resync
+            while (!primary.replicationStats().contains("\"inSync\": true")) {
+                Thread.sleep(10);
+            }
+        }
+
+        byte[] record = new byte[64];
+        long[] latencies = new long[clients * puts];
+        CountDownLatch done = new CountDownLatch(clients);
+        long start = System.nanoTime();
+        for (int c = 0; c < clients; c++) {
+            int client = c;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < puts; i++) {
+                    long begin = System.nanoTime();
+                    primary.put(client * puts + i, record).join();
+                    latencies[client * puts + i] = System.nanoTime() - begin;
+                }
+                done.countDown();
+            });
+            thread.start();
+        }
+        done.await();
+        long nanos = System.nanoTime() - start;
+
+        Arrays.sort(latencies);
+        long total = 0;
+        for (long latency : latencies) {
+            total += latency;
+        }
+        if (report) {
+            System.out.printf("%-7s %8d %12.0f %10.0f %10.0f %10.0f%n", mode, clients, latencies.length * 1e9 / nanos,
+                total / 1e3 / latencies.length, latencies[latencies.length / 2] / 1e3, latencies[latencies.length * 99 / 100] / 1e3);
+        }
+        primary.close().join();
+        if (receiver != null) {
+            receiver.promote();
+        }
+    }
+
+    /**
+     * Deletes the directory and everything in it.
+     */
+    private static void delete(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package Tools;
+
+import Helpers.HashRing;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reports how evenly a consistent-hash ring spreads ids over its shards, and how many ids move
+ * when a shard joins or leaves. The ideal move is 1/(n+1) of the ids for a join and 1/n for a
+ * leave; anything more is churn the ring causes on its own.
+ * Usage: ./runme.sh -t ShardSpread [shards] [virtualNodes] [ids]
+ * @author Agnibha Misra
+ */
+public class ShardSpread {
+
+    /**
+     * Runs the report.
+     * @param args optional number of shards, points per shard and ids
+     */
+    public static void main(String[] args) {
+        int shards = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int virtualNodes = args.length > 1 ? Integer.parseInt(args[1]) : 160;
+        int ids = args.length > 2 ? Integer.parseInt(args[2]) : 1_000_000;
+
+        System.out.printf("%d shards, %d virtual nodes each, %d ids%n%n", shards, virtualNodes, ids);
+        System.out.printf("%-8s %12s %10s %10s %10s%n", "vnodes", "stddev %", "min %", "max %", "max/mean");
+        for (int v : new int[] {1, 10, 40, virtualNodes}) {
+            spread(new HashRing(names(shards), v), ids, v);
+        }
+
+        HashRing ring = new HashRing(names(shards), virtualNodes);
+        HashRing joined = new HashRing(names(shards + 1), virtualNodes);
+        System.out.printf("%nshard joins: %.2f%% of ids moved, ideal %.2f%%%n",
+            moved(ring, joined, ids) * 100.0 / ids, 100.0 / (shards + 1));
+        if (shards > 1) {
+            // the last shard leaves, so the names of the others stay the same
+            HashRing left = new HashRing(names(shards - 1), virtualNodes);
+            System.out.printf("shard leaves: %.2f%% of ids moved, ideal %.2f%%%n",
+                moved(ring, left, ids) * 100.0 / ids, 100.0 / shards);
+        }
+    }
+
+    /**
+     * @return the names of the shards, as ISCS names its instances
+     */
+    private static List<String> names(int shards) {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < shards; i++) {
+            names.add("http://127.0.0.1:" + (14100 + i));
+        }
+        return names;
+    }
+
+    /**
+     * Prints the share of the ids every shard gets, relative to an even split.
+     */
+    private static void spread(HashRing ring, int ids, int virtualNodes) {
+        long[] counts = new long[ring.size()];
+        for (int id = 0; id < ids; id++) {
+            counts[ring.owner(id)]++;
+        }
+        double mean = (double) ids / counts.length;
+        double variance = 0;
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for (long count : counts) {
+            variance += (count - mean) * (count - mean);
+            min = Math.min(min, count);
+            max = Math.max(max, count);
+        }
+        double stddev = Math.sqrt(variance / counts.length);
+        System.out.printf("%-8d %12.2f %10.2f %10.2f %10.3f%n", virtualNodes, stddev * 100 / mean,
+            min * 100.0 / ids, max * 100.0 / ids, max / mean);
+    }
+
+    /**
+     * @return how many ids have a different owner on the two rings
+     */
+    private static int moved(HashRing before, HashRing after, int ids) {
+        int moved = 0;
+        for (int id = 0; id < ids; id++) {
+            if (before.owner(id) != after.owner(id)) {
+                moved++;
+            }
+        }
+        return moved;
+    }
+}
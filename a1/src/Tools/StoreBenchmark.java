@@ -0,0 +1,128 @@
+package Tools;
+
+import Helpers.IntRecordMap;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Compares the heap taken by the map of a service's records, and the latency of looking a
+ * record up and replacing it, for HashMap, ConcurrentHashMap (what the services used) and
+ * IntRecordMap. The records themselves are shared by all three, so only the map is counted.
+ * Usage: ./runme.sh -t StoreBenchmark [records] [operations]
+ * @author Agnibha Misra
+ */
+public class StoreBenchmark {
+    // keeps the JIT from removing the work
+    private static long sink;
+
+    /**
+     * The operations measured, the same for every map.
+     */
+    private interface Store {
+        Object get(int id);
+
+        void put(int id, String record);
+    }
+
+    /**
+     * Runs the benchmark.
+     * @param args optional number of records, and number of timed operations of each kind
+     */
+    public static void main(String[] args) {
+        int records = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int operations = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+
+        String[] values = new String[records];
+        for (int i = 0; i < records; i++) {
+            values[i] = "record-" + i;
+        }
+
+        System.out.printf("%-18s %12s %14s %10s %10s %10s %10s%n", "map", "heap MB", "bytes/record", "get p50", "get p99", "put p50", "put p99");
+        for (int round = 0; round < 2; round++) {
+            // the first round warms up the JIT
+            boolean print = round == 1;
+            Map<Integer, String> hashMap = new HashMap<>();
+            run("HashMap", records, operations, values, print, () -> new Store() {
+                public Object get(int id) {
+                    return hashMap.get(id);
+                }
+
+                public void put(int id, String record) {
+                    hashMap.put(id, record);
+                }
+            });
+            Map<Integer, String> concurrent = new ConcurrentHashMap<>();
+            run("ConcurrentHashMap", records, operations, values, print, () -> new Store() {
+                public Object get(int id) {
+                    return concurrent.get(id);
+                }
+
+                public void put(int id, String record) {
+                    concurrent.put(id, record);
+                }
+            });
+            IntRecordMap<String> intMap = new IntRecordMap<>();
+            run("IntRecordMap", records, operations, values, print, () -> new Store() {
+                public Object get(int id) {
+                    return intMap.get(id);
+                }
+
+                public void put(int id, String record) {
+                    intMap.put(id, record);
+                }
+            });
+        }
+        System.out.println("(latencies in ns, including about 20 ns for reading the clock; sink " + sink + ")");
+    }
+
+    private static void run(String name, int records, int operations, String[] values, boolean print, Supplier<Store> create) {
+        long before = usedHeap();
+        Store store = create.get();
+        for (int i = 0; i < records; i++) {
+            store.put(i, values[i]);
+        }
+        long heap = usedHeap() - before;
+
+        SplittableRandom random = new SplittableRandom(42);
+        long[] gets = new long[operations];
+        for (int i = 0; i < operations; i++) {
+            int id = random.nextInt(records);
+            long start = System.nanoTime();
+            Object record = store.get(id);
+            gets[i] = System.nanoTime() - start;
+            sink += record == null ? 0 : 1;
+        }
+        long[] puts = new long[operations];
+        for (int i = 0; i < operations; i++) {
+            int id = random.nextInt(records);
+            long start = System.nanoTime();
+            store.put(id, values[id]);
+            puts[i] = System.nanoTime() - start;
+        }
+
+        if (print) {
+            Arrays.sort(gets);
+            Arrays.sort(puts);
+            System.out.printf("%-18s %12.1f %14.1f %10d %10d %10d %10d%n", name, heap / 1e6, (double) heap / records,
+                percentile(gets, 0.5), percentile(gets, 0.99), percentile(puts, 0.5), percentile(puts, 0.99));
+        }
+        // keep the store reachable until its heap has been measured
+        sink += store.get(0) == null ? 0 : 1;
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
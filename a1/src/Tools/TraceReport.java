@@ -0,0 +1,281 @@
+package Tools;
+
+import Helpers.Metrics;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Puts the trace files of the services back together into whole requests, and finds the
+ * critical path of each: the chain of stages that the request actually waited on, from the
+ * span that OrderService started to its answer. Calls that ran at the same time as a longer one,
+ * like the user check next to the stock reservation of an order, are not on it. The report adds
+ * up the time every stage spent on the critical path over all the traces, then lists the path of
+ * the slowest ones.
+ * Usage: ./runme.sh -t TraceReport [directory] [slowest traces] [trace id]
+ * @author Agnibha Misra
+ */
+public class TraceReport {
+
+    /**
+     * Runs the report.
+     * @param args optional directory of the trace files, number of slowest traces to list and
+     * id of the one trace to show
+     * @throws IOException if the trace files cannot be read
+     */
+    public static void main(String[] args) throws IOException {
+        Path dir = Path.of(args.length > 0 ? args[0] : "traces");
+        int slowest = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        String only = args.length > 2 ? args[2] : null;
+
+        // the spans of every trace, from the files of all the services
+        Map<String, List<Span>> spans = new HashMap<>();
+        int files = 0;
+        int lines = 0;
+        try (Stream<Path> list = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) list.filter(path -> path.toString().endsWith(".trace")).sorted()::iterator) {
+                files++;
+                for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                    Span span = Span.parse(line);
+                    if (span != null) {
+                        spans.computeIfAbsent(span.trace, trace -> new ArrayList<>()).add(span);
+                        lines++;
+                    }
+                }
+            }
+        }
+
+        List<Trace> traces = new ArrayList<>();
+        for (List<Span> trace : spans.values()) {
+            Trace built = Trace.build(trace);
+            if (built != null && (only == null || built.root.trace.equals(only))) {
+                traces.add(built);
+            }
+        }
+        System.out.printf("%d spans of %d traces in %d files in %s, %d traces complete%n", lines, spans.size(), files, dir, traces.size());
+        if (traces.isEmpty()) {
+            return;
+        }
+        traces.sort(Comparator.comparingLong((Trace trace) -> trace.root.duration).reversed());
+
+        if (only != null) {
+            print(traces.get(0));
+            return;
+        }
+
+        long[] durations = new long[traces.size()];
+        for (int i = 0; i < durations.length; i++) {
+            durations[i] = traces.get(i).root.duration;
+        }
+        Arrays.sort(durations);
+        System.out.printf("request time: p50 %.2f ms, p99 %.2f ms, max %.2f ms%n%n",
+            percentile(durations, 0.5) / 1000.0, percentile(durations, 0.99) / 1000.0, durations[durations.length - 1] / 1000.0);
+
+        // the time of each stage on the critical paths, over all the traces
+        Map<String, long[]> stages = new HashMap<>();
+        long total = 0;
+        for (Trace trace : traces) {
+            for (Segment segment : trace.path) {
+                stages.computeIfAbsent(segment.span.key(), key -> new long[1])[0] += segment.length();
+                total += segment.length();
+            }
+        }
+        List<Map.Entry<String, long[]>> sorted = new ArrayList<>(stages.entrySet());
+        sorted.sort(Comparator.comparingLong((Map.Entry<String, long[]> entry) -> entry.getValue()[0]).reversed());
+        System.out.println("Critical path by stage, all traces:");
+        System.out.printf("%10s %7s %12s  %s%n", "total ms", "share", "ms/request", "service, stage, detail");
+        for (Map.Entry<String, long[]> entry : sorted) {
+            long sum = entry.getValue()[0];
+            System.out.printf("%10.2f %6.1f%% %12.3f  %s%n", sum / 1000.0, total == 0 ? 0 : sum * 100.0 / total,
+                sum / 1000.0 / traces.size(), entry.getKey());
+        }
+
+        for (int i = 0; i < Math.min(slowest, traces.size()); i++) {
+            System.out.println();
+            print(traces.get(i));
+        }
+    }
+
+    /**
+     * Prints the critical path of a trace, one line for each stretch of time spent in one span.
+     */
+    private static void print(Trace trace) {
+        Span root = trace.root;
+        System.out.printf("trace %s: %.2f ms, %s %s %s%n", root.trace, root.duration / 1000.0, root.service, root.detail, root.outcome);
+        System.out.printf("%10s %9s  %s%n", "at ms", "ms", "service, stage, detail, outcome");
+        for (Segment segment : trace.path) {
+            System.out.printf("%10.3f %9.3f  %s %s%n", (segment.from - root.start) / 1000.0, segment.length() / 1000.0,
+                segment.span.key(), segment.span.outcome);
+        }
+    }
+
+    /**
+     * @return the value at a quantile of sorted values
+     */
+    private static long percentile(long[] sorted, double quantile) {
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(quantile * sorted.length) - 1)];
+    }
+
+    /**
+     * One line of a trace file.
+     */
+    private static class Span {
+        String trace;
+        String id;
+        String parent;
+        String service;
+        String stage;
+        String detail;
+        long start;
+        long duration;
+        String outcome;
+        final List<Span> children = new ArrayList<>();
+
+        /**
+         * @return the span, or null if the line is not a whole span, e.g. cut off by a crash
+         */
+        static Span parse(String line) {
+            String[] fields = line.split("\t", -1);
+            if (fields.length != 9) {
+                return null;
+            }
+            Span span = new Span();
+            span.trace = fields[0];
+            span.id = fields[1];
+            span.parent = fields[2];
+            span.service = fields[3];
+            span.stage = fields[4];
+            span.detail = fields[5];
+            try {
+                span.start = Long.parseLong(fields[6]);
+                span.duration = Long.parseLong(fields[7]);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            span.outcome = fields[8];
+            return span;
+        }
+
+        long end() {
+            return start + duration;
+        }
+
+        /**
+         * @return what the span is counted under: the service, the stage and what it was about,
+         * with the ids in URLs replaced, e.g. "InterServiceCommunication upstream GET 127.0.0.1:14005/user/{id}"
+         */
+        String key() {
+            String about = detail;
+            int scheme = about.indexOf("://");
+            if (scheme >= 0) {
+                int path = about.indexOf('/', scheme + 3);
+                int query = about.indexOf('?');
+                String route = path < 0 ? "/" : Metrics.route(about.substring(path, query < 0 ? about.length() : query));
+                about = about.substring(0, about.lastIndexOf(' ', scheme) + 1) + about.substring(scheme + 3, path < 0 ? about.length() : path) + route;
+            }
+            return service + " " + stage + (about.isEmpty() ? "" : " " + about);
+        }
+    }
+
+    /**
+     * A stretch of the critical path spent in one span and none of its children.
+     */
+    private static class Segment {
+        final Span span;
+        final long from;
+        final long to;
+
+        Segment(Span span, long from, long to) {
+            this.span = span;
+            this.from = from;
+            this.to = to;
+        }
+
+        long length() {
+            return to - from;
+        }
+    }
+
+    /**
+     * The spans of one request as a tree, and its critical path.
+     */
+    private static class Trace {
+        Span root;
+        List<Segment> path = new ArrayList<>();
+
+        /**
+         * @return the trace, or null if its root span is missing, e.g. the request was still running
+         */
+        static Trace build(List<Span> spans) {
+            Map<String, Span> byId = new HashMap<>();
+            for (Span span : spans) {
+                byId.put(span.id, span);
+            }
+            Trace trace = new Trace();
+            for (Span span : spans) {
+                Span parent = byId.get(span.parent);
+                if (parent != null && parent != span) {
+                    parent.children.add(span);
+                } else if (span.parent.equals("0")) {
+                    trace.root = span;
+                }
+            }
+            if (trace.root == null) {
+                return null;
+            }
+            critical(trace.root, trace.root.end(), trace.path);
+            Collections.reverse(trace.path);
+            return trace;
+        }
+
+        /**
+         * Walks back from the end of a span: the child that finished last before that point is
+         * what the span was waiting for, then the child that finished last before that one
+         * started, and so on. The time in between belongs to the span itself. The clocks of the
+         * services are only about the same, so children are cut to the part inside their parent.
+         * @param span the span
+         * @param end where the walk starts, the end of the span or of the part of it on the path
+         * @param path receives the segments, latest first
+         */
+        static void critical(Span span, long end, List<Segment> path) {
+            List<Span> children = new ArrayList<>(span.children);
+            children.sort(Comparator.comparingLong(Span::end).reversed());
+            long cursor = Math.min(end, span.end());
+            for (Span child : children) {
+                if (child.start >= cursor) {
+                    // ran alongside a later child that took longer
+                    continue;
+                }
+                long childEnd = Math.min(child.end(), cursor);
+                add(path, span, childEnd, cursor);
+                critical(child, childEnd, path);
+                cursor = Math.max(child.start, span.start);
+            }
+            add(path, span, span.start, cursor);
+        }
+
+        /**
+         * Adds a segment, joined to the one added before it if that is of the same span.
+         */
+        static void add(List<Segment> path, Span span, long from, long to) {
+            if (to <= from) {
+                return;
+            }
+            Segment last = path.isEmpty() ? null : path.get(path.size() - 1);
+            if (last != null && last.span == span && last.from == to) {
+                path.set(path.size() - 1, new Segment(span, from, last.to));
+                return;
+            }
+            path.add(new Segment(span, from, to));
+        }
+    }
+}
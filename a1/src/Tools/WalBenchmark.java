@@ -0,0 +1,86 @@
+package Tools;
+
+import Helpers.Helpers;
+import Helpers.WriteAheadLog;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures write-ahead log throughput for each sync policy. Every client thread appends a
+ * product sized record and waits until it is acknowledged before appending the next one,
+ * the way a request waits for its change to be logged.
+ * Usage: ./runme.sh -t WalBenchmark [appends per client] [directory]
+ * @author Agnibha Misra
+ */
+public class WalBenchmark {
+    private static final int[] CLIENTS = {1, 16, 64};
+
+    /**
+     * Runs the benchmark.
+     * @param args optional number of appends per client, and the directory for the log files
+     * @throws Exception if a log cannot be written
+     */
+    public static void main(String[] args) throws Exception {
+        int appends = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        Path dir = Path.of(args.length > 1 ? args[1] : "data");
+        Files.createDirectories(dir);
+        byte[] record = new byte[64];
+
+        System.out.printf("%-9s %8s %14s %14s %12s%n", "policy", "clients", "appends/s", "avg group", "avg ack us");
+        for (WriteAheadLog.SyncPolicy policy : WriteAheadLog.SyncPolicy.values()) {
+            for (int clients : CLIENTS) {
+                run(dir, policy, clients, appends, record);
+            }
+        }
+    }
+
+    private static void run(Path dir, WriteAheadLog.SyncPolicy policy, int clients, int appends, byte[] record) throws IOException, InterruptedException {
+        String name = "benchmark-" + policy.name().toLowerCase() + "-" + clients;
+        delete(dir, name);
+        WriteAheadLog log = new WriteAheadLog(dir, name, policy, 2);
+        log.recover((op, id, data) -> { });
+
+        CountDownLatch done = new CountDownLatch(clients);
+        long start = System.nanoTime();
+        for (int c = 0; c < clients; c++) {
+            int client = c;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < appends; i++) {
+                    log.append(WriteAheadLog.PUT, client * appends + i, record).join();
+                }
+                done.countDown();
+            });
+            thread.start();
+        }
+        done.await();
+        long nanos = System.nanoTime() - start;
+
+        long total = (long) clients * appends;
+        int groups = Helpers.parseInteger(log.stats(), "groups");
+        System.out.printf("%-9s %8d %14.0f %14.1f %12.0f%n", policy.name().toLowerCase(), clients,
+            total * 1e9 / nanos, (double) total / groups, nanos / 1e3 / appends);
+        log.close().join();
+        delete(dir, name);
+    }
+
+    /**
+     * Deletes the files and generation directories of a log.
+     */
+    private static void delete(Path dir, String name) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, name + ".*")) {
+            for (Path file : files) {
+                if (Files.isDirectory(file)) {
+                    try (DirectoryStream<Path> inner = Files.newDirectoryStream(file)) {
+                        for (Path segment : inner) {
+                            Files.delete(segment);
+                        }
+                    }
+                }
+                Files.delete(file);
+            }
+        }
+    }
+}
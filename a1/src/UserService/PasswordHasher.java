@@ -0,0 +1,71 @@
+package UserService;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * SHA-256 password hashes in the form users are stored with, 64 upper case hex digits.
+ * MessageDigest instances are expensive to look up and not thread safe, so they are pooled
+ * and reused rather than created per call. The pool is shared instead of one per thread
+ * because request threads may be virtual threads that each run a single request.
+ * @author Agnibha Misra
+ */
+public final class PasswordHasher {
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+    // idle digests, at most one per thread that is hashing at the same time
+    private static final ConcurrentLinkedQueue<MessageDigest> digests = new ConcurrentLinkedQueue<>();
+
+    private PasswordHasher() {
+    }
+
+    /**
+     * @param password the password as given
+     * @return the hash as stored in a user record, or null if SHA-256 is not available
+     */
+    public static String hash(String password) {
+        byte[] hex = hexHash(password);
+        return hex == null ? null : new String(hex, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Compares a password with a stored hash in time that does not depend on where they
+     * differ, so the response time gives nothing away about the stored hash.
+     * @param password the password as given
+     * @param stored the hash of the user record
+     * @return true if the password hashes to the stored hash
+     */
+    public static boolean matches(String password, String stored) {
+        byte[] hex = hexHash(password);
+        return hex != null && MessageDigest.isEqual(hex, stored.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * @return the hash as upper case hex digits in ASCII, or null if SHA-256 is not available
+     */
+    private static byte[] hexHash(String password) {
+        MessageDigest digest = digests.poll();
+        if (digest == null) {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                return null;
+            }
+        }
+        byte[] hash;
+        try {
+            hash = digest.digest(password.getBytes(StandardCharsets.UTF_8));
+        } finally {
+            // digest() resets it for the next caller
+            digests.offer(digest);
+        }
+
+        byte[] hex = new byte[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[2 * i] = HEX[(hash[i] >> 4) & 0xF];
+            hex[2 * i + 1] = HEX[hash[i] & 0xF];
+        }
+        return hex;
+    }
+}
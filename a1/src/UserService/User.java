@@ -0,0 +1,80 @@
+package UserService;
+
+import Helpers.JsonFields;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A user as it is kept in the UserService database.
+ * Records are immutable: an update stores a new User, so the JSON sent back for a
+ * record is built once when it changes and reused by every GET after that.
+ * @author Agnibha Misra
+ */
+public final class User {
+    final int id;
+    final String username;
+    final String email;
+    // SHA-256 of the password as upper case hex
+    final String password;
+    // the record as the JSON response body
+    private final byte[] json;
+
+    /**
+     * Creates a user record.
+     * @param id the user id
+     * @param username the username
+     * @param email the email address
+     * @param password the hashed password
+     */
+    User(int id, String username, String email, String password) {
+        this.id = id;
+        this.username = username;
+        this.email = email;
+        this.password = password;
+        this.json = serialize();
+    }
+
+    /**
+     * @return the record as the JSON response body, shared between callers so it must not be modified
+     */
+    byte[] toJson() {
+        return json;
+    }
+
+    /**
+     * @return the record as stored in the write-ahead log, the id is kept by the log entry
+     */
+    byte[] toBytes() {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        byte[] mail = email.getBytes(StandardCharsets.UTF_8);
+        byte[] hash = password.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(12 + name.length + mail.length + hash.length);
+        buffer.putInt(name.length).put(name).putInt(mail.length).put(mail).putInt(hash.length).put(hash);
+        return buffer.array();
+    }
+
+    /**
+     * Reads a record written by toBytes.
+     * @param id the user id
+     * @param data the stored record
+     * @return the user
+     */
+    static User fromBytes(int id, byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        return new User(id, readString(buffer), readString(buffer), readString(buffer));
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private byte[] serialize() {
+        StringBuilder builder = new StringBuilder(128 + username.length() + email.length());
+        builder.append("{\"id\": ").append(id).append(", \"username\": ");
+        JsonFields.appendString(builder, username).append(", \"email\": ");
+        JsonFields.appendString(builder, email).append(", \"password\": \"").append(password).append("\"}");
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -1,6 +1,16 @@
 package UserService;
 
+import Helpers.BatchRunner;
 import Helpers.Helpers;
+import Helpers.JsonFields;
+import Helpers.Metrics;
+import Helpers.LogReceiver;
+import Helpers.LogShipper;
+import Helpers.OrderedExecutor;
+import Helpers.RecordStore;
+import Helpers.ServiceControl;
+import Helpers.Tracer;
+import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
@@ -10,23 +20,41 @@ import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.security.MessageDigest;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Service responsible for managing user accounts, including creation, 
  * retrieval, updating, and deletion of user data.
+ * An instance can instead run as a read-only follower of a leader instance: it applies the
+ * changes the leader ships to it and answers GETs, which ISCS sends to followers to spread
+ * the reads, while writes go to the leader.
  * * @author Agnibha Misra
  */
 public class UserService {
-    // memory database to store users
-    private static final Map<Integer, String> userDataBase = new HashMap<>();
+    // memory database to store users, every change is logged before it is acknowledged and replayed on start up
+    // handlers run concurrently, requests for the same id are kept in order by the executor
+    private static RecordStore<User> userDataBase;
+    // body of the responses that carry no data
+    private static final byte[] EMPTY = "{}".getBytes(StandardCharsets.UTF_8);
+    // runs the requests off the server's dispatcher thread
+    private static OrderedExecutor executor;
+    // answers the wipe and shutdown commands
+    private static ServiceControl control;
+    // applies the leader's changes while this instance is a follower, null on a leader
+    private static LogReceiver<User> receiver;
+    // body of a write sent to a follower
+    private static final byte[] FOLLOWER = "{\"status\": \"Follower\"}".getBytes(StandardCharsets.UTF_8);
+    // body of a read a follower is too far behind for
+    private static final byte[] STALE = "{\"status\": \"Stale\"}".getBytes(StandardCharsets.UTF_8);
 
     /**
      * Starts the User Service.
-     * @param args command line arguments, index 0 should be the config file path
+     * @param args command line arguments, index 0 should be the config file path and the optional
+     * index 1 the instance number to run, or "follower" with the number of an entry of the
+     * "followers" list at index 2
      * @throws IOException if the config file cannot be read
      */
     public static void main(String[] args) throws IOException {
@@ -42,198 +70,356 @@ public class UserService {
         String ip = Helpers.getIP(config, "UserService");
         int port = Helpers.getPort(config, "UserService");
 
+        // "follower n" runs this process as entry n of the "followers" list
+        String follower = null;
+        if (args.length > 2 && args[1].equals("follower")) {
+            List<String> followers = Helpers.getConfigList(config, "UserService", "followers");
+            int index = Integer.parseInt(args[2]);
+            if (followers == null || index < 0 || index >= followers.size()) {
+                System.err.println("No follower " + index + " in the config file");
+                System.exit(1);
+            }
+            follower = followers.get(index);
+            String[] address = Helpers.getAddress(follower).split(":");
+            ip = address[0];
+            port = Integer.parseInt(address[1]);
+        }
+
+        // an optional instance number runs this process as one entry of the "instances" list
+        int instance = 0;
+        if (follower == null && args.length > 1) {
+            List<String> instances = Helpers.getInstances(config, "UserService");
+            int index = Integer.parseInt(args[1]);
+            if (index < 0 || index >= instances.size()) {
+                System.err.println("No instance " + index + " in the config file");
+                System.exit(1);
+            }
+            String[] address = instances.get(index).split(":");
+            ip = address[0];
+            port = Integer.parseInt(address[1]);
+            instance = index;
+        }
+
         // check the validity of the results
         if (port == -1 || ip == null) {
             System.err.println("Could not parse the config file");
             System.exit(1);
         }
 
+        // rebuild the database from the snapshot and log of this instance
+        userDataBase = RecordStore.open(config, "UserService", port, User::toBytes, User::fromBytes);
+
+        // a follower takes the leader's changes on its replication port, a leader ships its
+        // changes to every follower whose "leader" is its instance number
+        if (follower != null) {
+            int replicationPort = JsonFields.parse(follower).getInteger("replicationPort");
+            int heartbeat = Helpers.getConfigInt(config, "UserService", "heartbeatMillis", 10);
+            receiver = new LogReceiver<>(userDataBase, User::fromBytes, ip, replicationPort, heartbeat, 0);
+            System.out.println("Follower of instance " + JsonFields.parse(follower).getInteger("leader")
+                + ", replicating on port " + replicationPort);
+        } else {
+            startShipping(config, instance);
+        }
+
         // create and start the http server
+        // write responses right away, otherwise the body waits for the ACK of the headers (Nagle)
+        System.setProperty("sun.net.httpserver.nodelay", "true");
         HttpServer server = HttpServer.create(new InetSocketAddress(ip, port), 0);
-        server.createContext("/user", new UserHandler());
-
-        // no concurrency needed for A1 as seen on piazza (CHANGE IN A2)
+        HttpContext context = server.createContext("/user", new UserHandler());
+        // GET /metrics reports the latency and status codes of every route
+        Metrics.shared().serve(server, context);
+        // requests that come with an X-Trace-Id are traced
+        Tracer.shared().open(config, "UserService", port);
+        Tracer.shared().instrument(context, false);
+
+        // the dispatcher thread only reads the request, the work is handed to the ordered executor
+        executor = OrderedExecutor.fromConfig(config, "UserService");
+        control = new ServiceControl(server, executor, userDataBase, "/user");
         server.setExecutor(null);
         server.start();
         System.out.println("UserService started: " + ip + ":" + port);
     }
 
+    /**
+     * Ships the changes of this instance to its followers, if it has any. A change is
+     * acknowledged once it is logged here unless "replication" is "sync". A heartbeat every
+     * "heartbeatMillis" lets the followers tell how stale they are, so it should be well below
+     * the staleness ISCS allows.
+     * @param config the config file json data
+     * @param instance the number of this instance in the "instances" list
+     */
+    private static void startShipping(String config, int instance) {
+        List<String> followers = new ArrayList<>();
+        List<String> entries = Helpers.getConfigList(config, "UserService", "followers");
+        if (entries != null) {
+            for (String entry : entries) {
+                JsonFields fields = JsonFields.parse(entry);
+                Integer leader = fields.getInteger("leader");
+                if ((leader == null ? 0 : leader) == instance) {
+                    followers.add(Helpers.getAddress(entry).split(":")[0] + ":" + fields.getInteger("replicationPort"));
+                }
+            }
+        }
+        if (followers.isEmpty()) {
+            return;
+        }
+        boolean sync = "sync".equalsIgnoreCase(Helpers.getConfigValue(config, "UserService", "replication"));
+        int timeout = Helpers.getConfigInt(config, "UserService", "replicationTimeoutMillis", 1000);
+        int heartbeat = Helpers.getConfigInt(config, "UserService", "heartbeatMillis", 10);
+        new LogShipper(userDataBase, followers, sync, timeout, heartbeat, 0);
+        System.out.println("Shipping changes to followers " + followers + (sync ? " synchronously" : " asynchronously"));
+    }
+
+    /**
+     * @param exchange a GET request
+     * @return the "maxStalenessMillis" query parameter of the request, or -1 if there is none
+     */
+    private static long maxStaleness(HttpExchange exchange) {
+        String query = exchange.getRequestURI().getQuery();
+        if (query == null) {
+            return -1;
+        }
+        for (String parameter : query.split("&")) {
+            if (parameter.startsWith("maxStalenessMillis=")) {
+                try {
+                    return Long.parseLong(parameter.substring(parameter.indexOf('=') + 1));
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
     /**
      * HTTP Handler for processing all requests directed to the /user endpoint.
      */
     public static class UserHandler implements HttpHandler {
         /**
-         * Dispatches the HTTP exchange to specific handlers based on the request method.
+         * Reads the request and queues it on the executor behind earlier requests for the same id.
+         * A POST to /user/batch carries several commands, see BatchRunner.
          * * @param exchange The HTTP exchange containing the request and response.
          * @throws IOException If an I/O error occurs.
          */
         @Override
         public void handle(HttpExchange exchange) throws IOException {
+            long parsing = System.nanoTime();
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath();
+
+            // read the body here so the id is known before the request is queued
+            String body = "";
+            if (method.equalsIgnoreCase("post")) {
+                Scanner scanner = new Scanner(exchange.getRequestBody()).useDelimiter("\\A");
+                if (scanner.hasNext()) {body = scanner.next();}
+            }
+            if (path.equals("/user/replication") && method.equalsIgnoreCase("get")) {
+                String stats = receiver != null ? receiver.stats() : userDataBase.replicationStats();
+                String role = receiver == null ? "leader" : "follower";
+                send(exchange, response(200, ("{\"role\": \"" + role + "\", \"replication\": " + stats + "}").getBytes(StandardCharsets.UTF_8)));
+                return;
+            }
+            if (receiver != null) {
+                // a follower only changes through the leader, wipes included
+                if (method.equalsIgnoreCase("post") && !path.equals("/user/shutdown")) {
+                    send(exchange, response(503, FOLLOWER));
+                    return;
+                }
+                // a read may ask for records at most maxStalenessMillis behind the leader's
+                long bound = maxStaleness(exchange);
+                if (bound >= 0 && receiver.stalenessMillis() > bound) {
+                    send(exchange, response(503, STALE));
+                    return;
+                }
+            }
+            // wipe and shutdown wait for every request queued before them
+            if (control.handle(exchange, method, path)) {
+                return;
+            }
+            // a batch is split up here, each of its commands is queued like a request of its own
+            if (method.equalsIgnoreCase("post") && path.equals("/user/batch")) {
+                BatchRunner.run(exchange, body, executor, this::post);
+                return;
+            }
+
+            // the body is read once here, every field the handler needs comes from this view
+            JsonFields fields = JsonFields.parse(body);
+            Tracer.stage(exchange, "parse", parsing);
+
+            // requests for the same id share a lane, so they are applied in the order they arrived
+            long queued = System.nanoTime();
+            executor.execute(requestKey(method, path, fields), () -> {
+                Tracer.stage(exchange, "queue", queued);
+                try {
+                    process(exchange, method, path, fields);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    exchange.close();
+                }
+            });
+        }
+
+        /**
+         * Finds the id a request operates on, used to keep requests for the same id in order.
+         * @param method the request method
+         * @param path the request path
+         * @param fields the fields of the request body
+         * @return the id from the path (GET) or body (POST), or 0 when there is none
+         */
+        private int requestKey(String method, String path, JsonFields fields) {
+            if (method.equalsIgnoreCase("post")) {
+                Integer id = fields.getInteger("id");
+                return id == null ? 0 : id;
+            }
             try {
-                String method = exchange.getRequestMethod();
-                String path = exchange.getRequestURI().getPath();
+                return Integer.parseInt(path.substring(path.lastIndexOf('/') + 1));
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
 
+        /**
+         * Dispatches the HTTP exchange to specific handlers based on the request method.
+         * @param exchange The HTTP exchange containing the request and response.
+         * @param method the request method
+         * @param path the request path
+         * @param fields the fields of the request body, empty for GET requests
+         * @throws IOException If an I/O error occurs.
+         */
+        private void process(HttpExchange exchange, String method, String path, JsonFields fields) throws IOException {
+            long processing = System.nanoTime();
+            Object[] result;
+            try {
                 // GET method
                 if (method.equalsIgnoreCase("get")) {
-                    get(exchange, path);
+                    result = get(path);
                 }
 
                 // POST method
                 else if (method.equalsIgnoreCase("post")) {
-                    post(exchange, path);
+                    result = post(fields);
                 }
 
                 // Invalid method
                 else {
                     // send a response back, invalid method as it is not get or post
-                    byte[] bytes = "Invalid method".getBytes(StandardCharsets.UTF_8);
-                    exchange.sendResponseHeaders(405, bytes.length);
-                    OutputStream os = exchange.getResponseBody();
-                    os.write(bytes);
-                    os.close();
+                    result = response(405, "Invalid method".getBytes(StandardCharsets.UTF_8));
                 }
             } catch (Exception e) {
                 e.printStackTrace();
                 // semd a response back, error happened
-                byte[] bytes = "{\"status\": \"Internal Error\"}".getBytes(StandardCharsets.UTF_8);
-                exchange.sendResponseHeaders(500, bytes.length);
-                OutputStream os = exchange.getResponseBody();
-                os.write(bytes);
-                os.close();
+                result = response(500, "{\"status\": \"Internal Error\"}".getBytes(StandardCharsets.UTF_8));
             }
+
+            Tracer.stage(exchange, "process", processing);
+
+            if (result.length > 2) {
+                // a change is only acknowledged once its log entry is durable
+                Object[] logged = result;
+                long logging = System.nanoTime();
+                ((CompletableFuture<?>) result[2]).whenComplete((done, error) -> {
+                    Tracer.stage(exchange, "durable", logging);
+                    try {
+                        send(exchange, error == null ? logged : response(500, "{\"status\": \"Internal Error\"}".getBytes(StandardCharsets.UTF_8)));
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        exchange.close();
+                    }
+                });
+                return;
+            }
+            send(exchange, result);
+        }
+
+        /**
+         * Writes a result as the response.
+         * @param exchange The HTTP exchange containing the request and response.
+         * @param result an Object array where [0] is the status code (int) and [1] is the response (byte[])
+         * @throws IOException If an I/O error occurs.
+         */
+        private void send(HttpExchange exchange, Object[] result) throws IOException {
+            long serializing = System.nanoTime();
+            byte[] bytes = (byte[]) result[1];
+            exchange.sendResponseHeaders((int) result[0], bytes.length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(bytes);
+            os.close();
+            Tracer.stage(exchange, "serialize", serializing);
         }
 
         /**
          * Processes GET requests to retrieve user information by ID.
-         * * @param exchange The HTTP exchange.
          * @param path The request URI path.
-         * @throws IOException If an I/O error occurs.
+         * @return an Object array where [0] is the status code (int) and [1] is the response (byte[])
          */
-        private void get (HttpExchange exchange, String path) throws IOException{
+        private Object[] get(String path) {
 
             // tokenize the path
             String[] tokens = path.split("/");
             if (tokens.length != 3) {
                 // send a message back, empty case
-                byte[] bytes = "{}".getBytes(StandardCharsets.UTF_8);
-                exchange.sendResponseHeaders(400, bytes.length);
-                OutputStream os = exchange.getResponseBody();
-                os.write(bytes);
-                os.close();
-                return;
-            } 
+                return response(400, EMPTY);
+            }
 
             try {
                 int id = Integer.parseInt(tokens[2]);
-                if (userDataBase.containsKey(id)) {
+                User user = userDataBase.get(id);
+                if (user != null) {
                     // send a message back, the user's information
-                    byte[] bytes = userDataBase.get(id).getBytes(StandardCharsets.UTF_8);
-                    exchange.sendResponseHeaders(200, bytes.length);
-                    OutputStream os = exchange.getResponseBody();
-                    os.write(bytes);
-                    os.close();
-                }
-                else {
-                    // send a message back, the user does not exists
-                    byte[] bytes = "{}".getBytes(StandardCharsets.UTF_8);
-                    exchange.sendResponseHeaders(404, bytes.length);
-                    OutputStream os = exchange.getResponseBody();
-                    os.write(bytes);
-                    os.close();
+                    return response(200, user.toJson());
                 }
+                // send a message back, the user does not exists
+                return response(404, EMPTY);
             } catch (NumberFormatException e) {
                 // send a message back, empty case (number parsing error)
-                byte[] bytes = "{}".getBytes(StandardCharsets.UTF_8);
-                exchange.sendResponseHeaders(400, bytes.length);
-                OutputStream os = exchange.getResponseBody();
-                os.write(bytes);
-                os.close();
+                return response(400, EMPTY);
             }
         }
 
         /**
          * Processes POST requests for creating, updating, or deleting users.
-         * * @param exchange The HTTP exchange.
-         * @param path The request URI path.
-         * @throws IOException If an I/O error occurs.
+         * @param fields The fields of the request body.
+         * @return an Object array where [0] is the status code (int) and [1] is the response (byte[]),
+         * for a change [2] is the CompletableFuture of its log entry
          */
-        private void post(HttpExchange exchange, String path) throws IOException {
-            // read the request body
-            Scanner scanner = new Scanner(exchange.getRequestBody()).useDelimiter("\\A");
-            String body;
-            if (scanner.hasNext()) {body = scanner.next();}
-            else {body = "";}
-
+        private Object[] post(JsonFields fields) {
             // parse the request body
-            String command = Helpers.parseString(body, "command");
-            Integer id = Helpers.parseInteger(body, "id");
+            String command = fields.getString("command");
+            Integer id = fields.getInteger("id");
 
             // check for valid outputs
             if (command == null || command.isEmpty() || id == null) {
                 // send a message back, empty case
-                byte[] bytes = "{}".getBytes(StandardCharsets.UTF_8);
-                exchange.sendResponseHeaders(400, bytes.length);
-                OutputStream os = exchange.getResponseBody();
-                os.write(bytes);
-                os.close();
-                return;
+                return response(400, EMPTY);
             }
 
             // Delete case:
             if (command.equalsIgnoreCase("delete")) {
 
                 // check if user is in the data base
-                if (!userDataBase.containsKey(id)) {
+                User user = userDataBase.get(id);
+                if (user == null) {
                     // send a message back, the target user to delete doesn't exist it the database
-                    byte[] bytes = "{}".getBytes(StandardCharsets.UTF_8);
-                    exchange.sendResponseHeaders(404, bytes.length);
-                    OutputStream os = exchange.getResponseBody();
-                    os.write(bytes);
-                    os.close();
-                    return;
+                    return response(404, EMPTY);
                 }
 
-                // get the user data from the database
-                String userObject = userDataBase.get(id);
-                String DBUsername = Helpers.parseString(userObject, "username");
-                String DBEmail = Helpers.parseString(userObject, "email");
-                String DBHashedPassword = Helpers.parseString(userObject, "password"); 
-
                 // get the user data from the request
-                String requestUsername = Helpers.parseString(body, "username");
-                String requestEmail = Helpers.parseString(body, "email");
-                String requestPassword = Helpers.parseString(body, "password");
-
-                String requestHashedPassword = passwordHasher(requestPassword);
-
-                if (DBUsername == null || requestUsername == null || DBEmail == null || requestEmail == null || requestEmail.equals("") || DBHashedPassword == null || requestHashedPassword == null) {
-                    byte[] bytes = "{}".getBytes(StandardCharsets.UTF_8);
-                    exchange.sendResponseHeaders(400, bytes.length);
-                    OutputStream os = exchange.getResponseBody();
-                    os.write(bytes);
-                    os.close();
-                }
-                
-                // check for any mismatch
-                if (!DBEmail.equals(requestEmail) || !DBHashedPassword.equals(requestHashedPassword) || !DBUsername.equals(requestUsername)) {
-                    byte[] bytes = "{}".getBytes(StandardCharsets.UTF_8);
-                    exchange.sendResponseHeaders(401, bytes.length);
-                    OutputStream os = exchange.getResponseBody();
-                    os.write(bytes);
-                    os.close();
+                String requestUsername = fields.getString("username");
+                String requestEmail = fields.getString("email");
+                String requestPassword = fields.getString("password");
+
+                if (requestUsername == null || requestEmail == null || requestEmail.equals("") || requestPassword == null) {
+                    return response(400, EMPTY);
                 }
 
-                // can delete safely
-                else {
-                    // send the success message
-                    userDataBase.remove(id);
-                    byte[] bytes = "{}".getBytes(StandardCharsets.UTF_8);
-                    exchange.sendResponseHeaders(200, bytes.length);
-                    OutputStream os = exchange.getResponseBody();
-                    os.write(bytes);
-                    os.close();
+                // check for any mismatch, the password in constant time
+                boolean passwordMatches = PasswordHasher.matches(requestPassword, user.password);
+                if (!user.email.equals(requestEmail) || !passwordMatches || !user.username.equals(requestUsername)) {
+                    return response(401, EMPTY);
                 }
 
+                // can delete safely, send the success message
+                return logged(200, EMPTY, delete(id));
             }
 
             // Create case:
@@ -241,218 +427,149 @@ public class UserService {
                 
                 // check whether the user already is in the database
                 if (userDataBase.containsKey(id)) {
-                    byte[] bytes = "{}".getBytes(StandardCharsets.UTF_8);
-                    exchange.sendResponseHeaders(409, bytes.length);
-                    OutputStream os = exchange.getResponseBody();
-                    os.write(bytes);
-                    os.close();
-                    return;
+                    return response(409, EMPTY);
                 }
 
-                String email = Helpers.parseString(body, "email");
-                String username = Helpers.parseString(body, "username");
-                String password = Helpers.parseString(body, "password");
+                String email = fields.getString("email");
+                String username = fields.getString("username");
+                String password = fields.getString("password");
 
                 if (username == null || username.isEmpty() || email == null || email.isEmpty() || password == null || password.isEmpty()) {
                     // send message back, empty case (failed parsing or bad request input)
-                    byte[] bytes = "{}".getBytes(StandardCharsets.UTF_8);
-                    exchange.sendResponseHeaders(400, bytes.length);
-                    OutputStream os = exchange.getResponseBody();
-                    os.write(bytes);
-                    os.close();
-                    return;
+                    return response(400, EMPTY);
                 }
 
                 // check if the email is valid
                 if (!email.contains("@")) {
-                    byte[] bytes = "{}".getBytes(StandardCharsets.UTF_8);
-                    exchange.sendResponseHeaders(400, bytes.length);
-                    OutputStream os = exchange.getResponseBody();
-                    os.write(bytes);
-                    os.close();
-                    return;
+                    return response(400, EMPTY);
                 }
 
-                // create the new user JSON object
+                // create the new user record
                 String hashedPW = passwordHasher(password);
 
                 // check if the AI generated hash function actually outputted a valid hash
                 if (hashedPW == null) {
                     // send response based on the failure
-                    byte[] bytes = "{\"status\": \"Error during password hashing\"}".getBytes(StandardCharsets.UTF_8);
-                    exchange.sendResponseHeaders(500, bytes.length);
-                    OutputStream os = exchange.getResponseBody();
-                    os.write(bytes);
-                    os.close();
-                    return;
+                    return response(500, "{\"status\": \"Error during password hashing\"}".getBytes(StandardCharsets.UTF_8));
                 }
 
-                String userObject = String.format("{\"id\": %d, \"username\": \"%s\", \"email\": \"%s\", \"password\": \"%s\"}", id, username, email, hashedPW);
-
-                // put the user JSON obect into the data base and send a success message
-                userDataBase.put(id, userObject);
-                byte[] bytes = userObject.getBytes(StandardCharsets.UTF_8);
-                exchange.sendResponseHeaders(200, bytes.length);
-                OutputStream os = exchange.getResponseBody();
-                os.write(bytes);
-                os.close();
-                return;
+                // put the user into the data base and send a success message
+                User user = new User(id, username, email, hashedPW);
+                return logged(200, user.toJson(), save(user));
             }
 
             // Update case:
             else if (command.equalsIgnoreCase("update")) {
 
                 // make sure the user exists in the database
-                if (!userDataBase.containsKey(id)) {
+                User user = userDataBase.get(id);
+                if (user == null) {
                     // user does not exist in the database
-                    byte[] bytes = "{}".getBytes(StandardCharsets.UTF_8);
-                    exchange.sendResponseHeaders(404, bytes.length);
-                    OutputStream os = exchange.getResponseBody();
-                    os.write(bytes);
-                    os.close();
-                    return;
+                    return response(404, EMPTY);
                 }
 
-                // pull the object from the databse
-                String userObject = userDataBase.get(id);
-                
-                // get the non-updated metadata of the object
-                String email = Helpers.parseString(userObject, "email");
-                String username = Helpers.parseString(userObject, "username");
-                String password = Helpers.parseString(userObject, "password");
+                // start from the non-updated metadata of the object
+                String email = user.email;
+                String username = user.username;
+                String password = user.password;
 
                 // get the updated metadata of the object
-                String updatedEmail = Helpers.parseString(body, "email");
-                String updatedUsername = Helpers.parseString(body, "username");
-                String updatedPassword = Helpers.parseString(body, "password");
+                String updatedEmail = fields.getString("email");
+                String updatedUsername = fields.getString("username");
+                String updatedPassword = fields.getString("password");
                 
-                // Check if the email key exists in the  JSON string
-                boolean hasEmail = body.contains("\"email\"");
+                // Check if the email key exists in the JSON object
+                boolean hasEmail = fields.has("email");
 
                 if (hasEmail) {
-                    // If key exists but parseString is null
-                    if (updatedEmail == null) {
-                        byte[] bytes = "{}".getBytes(StandardCharsets.UTF_8);
-                        exchange.sendResponseHeaders(400, bytes.length);
-                        OutputStream os = exchange.getResponseBody();
-                        os.write(bytes);
-                        os.close();
-                        return;
+                    // If key exists but parseString is null, or the email is not valid
+                    if (updatedEmail == null || !updatedEmail.contains("@")) {
+                        return response(400, EMPTY);
                     }
-
-                    // 3. Perform your existing @ validation
-                    if (!updatedEmail.contains("@")) {
-                        byte[] bytes = "{}".getBytes(StandardCharsets.UTF_8);
-                        exchange.sendResponseHeaders(400, bytes.length);
-                        OutputStream os = exchange.getResponseBody();
-                        os.write(bytes);
-                        os.close();
-                        return;
-                    }
-    
-                    // 4. Update the local variable if all checks pass
                     email = updatedEmail;
                 }
 
-                // check if the email is valid
-                if (updatedEmail != null && !updatedEmail.contains("@")) {
-                    byte[] bytes = "{}".getBytes(StandardCharsets.UTF_8);
-                    exchange.sendResponseHeaders(400, bytes.length);
-                    OutputStream os = exchange.getResponseBody();
-                    os.write(bytes);
-                    os.close();
-                    return;
+                if ((updatedUsername != null && updatedUsername.isEmpty()) || 
+                (updatedPassword != null && updatedPassword.isEmpty())) {
+                    // send message back, empty case (failed parsing or bad request input)
+                    return response(400, EMPTY);
                 }
 
-
                 // check if the parameters need updating, if so then update
-                if (updatedEmail != null && !updatedEmail.isEmpty()) {
-                    email = updatedEmail;
-                }
-                if (updatedUsername != null && !updatedUsername.isEmpty()) {
+                if (updatedUsername != null) {
                     username = updatedUsername;
                 }
-                if (updatedPassword != null && !updatedPassword.isEmpty()) {
+                if (updatedPassword != null) {
                     password = passwordHasher(updatedPassword);
                 }
 
-                if ((updatedEmail != null && updatedEmail.isEmpty()) || 
-                (updatedUsername != null && updatedUsername.isEmpty()) || 
-                (updatedPassword != null && updatedPassword.isEmpty())) {
-                    // send message back, empty case (failed parsing or bad request input)
-                    byte[] bytes = "{}".getBytes(StandardCharsets.UTF_8);
-                    exchange.sendResponseHeaders(400, bytes.length);
-                    OutputStream os = exchange.getResponseBody();
-                    os.write(bytes);
-                    os.close();
-                    return;
-                }
-
-                
                 // check if the AI generated hash function actually outputted a valid hash
                 if (password == null) {
                     // send response based on the failure
-                    byte[] bytes = "{\"status\": \"Error during password hashing\"}".getBytes(StandardCharsets.UTF_8);
-                    exchange.sendResponseHeaders(500, bytes.length);
-                    OutputStream os = exchange.getResponseBody();
-                    os.write(bytes);
-                    os.close();
-                    return;
+                    return response(500, "{\"status\": \"Error during password hashing\"}".getBytes(StandardCharsets.UTF_8));
                 }
 
-                // create the new user JSON object and place it into the database
-                String updatedUserObject = String.format("{\"id\": %d, \"username\": \"%s\", \"email\": \"%s\", \"password\": \"%s\"}", id, username, email, password);
-                userDataBase.put(id, updatedUserObject);
+                // create the new user record and place it into the database
+                User updated = new User(id, username, email, password);
 
                 // send the success response back
-                byte[] bytes = updatedUserObject.getBytes(StandardCharsets.UTF_8);
-                exchange.sendResponseHeaders(200, bytes.length);
-                OutputStream os = exchange.getResponseBody();
-                os.write(bytes);
-                os.close();
-                return;
+                return logged(200, updated.toJson(), save(updated));
             }
 
             // Invalid command case:
             else {
-                // 
-                byte[] bytes = "{\"status\": \"Invalid Command\"}".getBytes(StandardCharsets.UTF_8);
-                exchange.sendResponseHeaders(400, bytes.length);
-                OutputStream os = exchange.getResponseBody();
-                os.write(bytes);
-                os.close();
-                return;
+                return response(400, "{\"status\": \"Invalid Command\"}".getBytes(StandardCharsets.UTF_8));
             }
 
         }
 
         /**
-         * Crearte a hashed password based on the SHA-256 algorithm
-         * 
-         * This function was Mostly AI-generate with the following prompt to Gemini:
-         * 
-         * "Create me a function in java without ant external libraries that takes in
-         * a String password and uses the SHA-256 algorithm to hash it and return 
-         * the String output."
-         * 
-         * 
-         * @param pw unhased password
-         * @return hashed password
+         * Pairs a status code with a response body.
+         * @param code the status code
+         * @param bytes the response body
+         * @return an Object array where [0] is the status code (int) and [1] is the response (byte[])
+         */
+        private Object[] response(int code, byte[] bytes) {
+            return new Object[]{code, bytes};
+        }
+
+        /**
+         * Pairs a status code with a response body that may only be sent once a change is logged.
+         * @param code the status code
+         * @param bytes the response body
+         * @param durable completes when the log entry of the change is durable
+         * @return an Object array where [0] is the status code (int), [1] is the response (byte[])
+         * and [2] is the CompletableFuture to wait for
+         */
+        private Object[] logged(int code, byte[] bytes, CompletableFuture<Void> durable) {
+            return new Object[]{code, bytes, durable};
+        }
+
+        /**
+         * Stores a user and logs the change.
+         * @param user the new record
+         * @return completes when the log entry is durable
+         */
+        private CompletableFuture<Void> save(User user) {
+            return userDataBase.put(user.id, user);
+        }
+
+        /**
+         * Removes a user and logs the change.
+         * @param id the user id
+         * @return completes when the log entry is durable
+         */
+        private CompletableFuture<Void> delete(int id) {
+            return userDataBase.remove(id);
+        }
+
+        /**
+         * Creates a hashed password based on the SHA-256 algorithm, see PasswordHasher
+         * @param pw unhashed password
+         * @return hashed password, or null if it could not be hashed
          */
         private String passwordHasher (String pw) {
-            try {
-                MessageDigest digest = MessageDigest.getInstance("SHA-256");
-                byte[] encodedhash = digest.digest(pw.getBytes(StandardCharsets.UTF_8));
-                StringBuilder hexString = new StringBuilder();
-                for (byte b : encodedhash) {
-                    String hex = Integer.toHexString(0xff & b);
-                    if (hex.length() == 1) hexString.append('0');
-                    hexString.append(hex);
-                }
-                return hexString.toString().toUpperCase();
-            } catch (Exception e) {
-                return null;
-            }
+            return PasswordHasher.hash(pw);
         }
     }
 }